@@ -0,0 +1,76 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.ProgressTrackerListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.distilledcode.tools.IndexDefinitionListenerBenchmark.MESSAGES;
+
+/**
+ * Measures the fan-out of {@link CompoundProgressTrackerListener} to a
+ * number of delegates that do not do any work themselves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompoundProgressTrackerListenerBenchmark {
+
+    @Param({"1", "2", "8"})
+    public int delegates;
+
+    private String[] paths;
+
+    private ProgressTrackerListener listener;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        paths = IndexDefinitionListenerBenchmark.createPaths(100);
+        final ProgressTrackerListener[] listeners = new ProgressTrackerListener[delegates];
+        for (int i = 0; i < delegates; i++) {
+            listeners[i] = new ConsumingListener(blackhole);
+        }
+        listener = CompoundProgressTrackerListener.create(listeners);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void onMessage() {
+        for (int i = 0; i < MESSAGES; i++) {
+            listener.onMessage(ProgressTrackerListener.Mode.PATHS, "U", paths[i]);
+        }
+    }
+
+    private static class ConsumingListener implements ProgressTrackerListener {
+
+        private final Blackhole blackhole;
+
+        ConsumingListener(final Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onMessage(final Mode mode, final String action, final String path) {
+            blackhole.consume(path);
+        }
+
+        @Override
+        public void onError(final Mode mode, final String path, final Exception e) {
+            blackhole.consume(e);
+        }
+    }
+}
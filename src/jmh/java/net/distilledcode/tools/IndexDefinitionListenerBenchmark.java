@@ -0,0 +1,85 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.ProgressTrackerListener.Mode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link IndexDefinitionListener#onMessage} for a stream of
+ * import messages that mostly concern content outside of any index
+ * definition, as it is the case for packages that carry content next
+ * to their index definitions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexDefinitionListenerBenchmark {
+
+    static final int MESSAGES = 10000;
+
+    private static final String[] ACTIONS = {"A", "U", "-", "D"};
+
+    @Param({"false", "true"})
+    public boolean restricted;
+
+    @Param({"100"})
+    public int definitions;
+
+    private String[] actions;
+
+    private String[] paths;
+
+    private IndexDefinitionListener listener;
+
+    @Setup
+    public void setup() {
+        actions = new String[MESSAGES];
+        paths = createPaths(definitions);
+        for (int i = 0; i < MESSAGES; i++) {
+            actions[i] = ACTIONS[i % ACTIONS.length];
+        }
+        listener = restricted
+                ? new IndexDefinitionListener(Collections.singleton("/oak:index"), "A", "U", "D")
+                : new IndexDefinitionListener("A", "U", "D");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public IndexDefinitionListener onMessage() {
+        for (int i = 0; i < MESSAGES; i++) {
+            listener.onMessage(Mode.PATHS, actions[i], paths[i]);
+        }
+        return listener;
+    }
+
+    /**
+     * Creates message paths, where every 100th path is located within
+     * one of the index definitions and all others are content paths.
+     */
+    static String[] createPaths(final int definitions) {
+        final String[] paths = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i % 100 == 0) {
+                paths[i] = "/oak:index/definition" + (i / 100) % definitions + "/indexRules/nt:base/properties/prop";
+            } else {
+                paths[i] = "/content/site/page" + i / 10 + "/jcr:content/par/text" + i % 10;
+            }
+        }
+        return paths;
+    }
+}
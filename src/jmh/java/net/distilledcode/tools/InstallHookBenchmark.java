@@ -0,0 +1,84 @@
+package net.distilledcode.tools;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.InstallHook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.jcr.Session;
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static net.distilledcode.tools.IndexChangeHandlerTest.ADMIN_CREDENTIALS;
+import static net.distilledcode.tools.InstallHookTestUtils.installWithHook;
+
+/**
+ * Measures a full PREPARE, INSTALLED and END cycle of the hook by
+ * re-installing a generated package with {@code definitions} index
+ * definitions and {@code contentNodes} unrelated content nodes into an
+ * in-memory repository. The same installation without the hook serves
+ * as baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class InstallHookBenchmark {
+
+    private static final InstallHook NO_HOOK = new InstallHook() {
+        @Override
+        public void execute(final InstallContext context) {
+            // baseline without the reindex hook
+        }
+    };
+
+    @Param({"10", "100"})
+    public int definitions;
+
+    @Param({"1000", "10000"})
+    public int contentNodes;
+
+    @Param({"true", "false"})
+    public boolean hook;
+
+    private File packageDirectory;
+
+    private Session session;
+
+    @Setup
+    public void setup() throws Exception {
+        packageDirectory = new TestPackageBuilder()
+                .withDefinitions(definitions)
+                .withContentNodes(contentNodes)
+                .build(new File(FileUtils.getTempDirectory(), "oak-reindex-hook-benchmark-" + System.nanoTime()));
+        session = new Jcr().createRepository().login(ADMIN_CREDENTIALS, null);
+        installWithHook(session, packageDirectory, new OakReindexInstallHook(), new Properties());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        session.logout();
+        FileUtils.deleteDirectory(packageDirectory);
+    }
+
+    @Benchmark
+    public Session install() throws Exception {
+        installWithHook(session, packageDirectory, hook ? new OakReindexInstallHook() : NO_HOOK, new Properties());
+        return session;
+    }
+}
@@ -0,0 +1,354 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.util.DocViewProperty;
+import org.apache.jackrabbit.vault.util.PlatformNameFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.jcr.PropertyType;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads index definitions straight from the docview files of a content
+ * package {@link Archive}, without importing anything into a repository.
+ * <br>
+ * Index definitions are expected below nodes called {@code oak:index}.
+ * These are either directories called {@code _oak_index}, whose
+ * definitions are inline in the directory's {@code .content.xml} file,
+ * in a {@code <name>.xml} docview file or in a sub-directory per
+ * definition, or {@code oak:index} elements inline in the docview file
+ * of an ancestor, at any depth. The docview files are parsed with a
+ * streaming SAX parser. Docview files of other content are parsed for
+ * inline {@code oak:index} elements only, their other content is not
+ * kept in memory.
+ * <br>
+ * Definitions that contain content which is not serialized as docview
+ * (e.g. files) are returned as well, but they are not
+ * {@link DefinitionNode#isComplete() complete}.
+ */
+final class ArchiveIndexDefinitionReader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveIndexDefinitionReader.class);
+
+    private static final String OAK_INDEX = "oak:index";
+
+    private static final String CONTENT_XML = ".content.xml";
+
+    private static final String XML_EXTENSION = ".xml";
+
+    private static final String JCR_ROOT = "jcr:root";
+
+    private static final String JCR_PRIMARY_TYPE = "jcr:primaryType";
+
+    private static final String JCR_MIXIN_TYPES = "jcr:mixinTypes";
+
+    private final Archive archive;
+
+    private final SAXParser parser;
+
+    ArchiveIndexDefinitionReader(final Archive archive) {
+        this.archive = archive;
+        try {
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            this.parser = factory.newSAXParser();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Failed to create SAX parser", e);
+        } catch (SAXException e) {
+            throw new IllegalStateException("Failed to create SAX parser", e);
+        }
+    }
+
+    /**
+     * Read all index definitions contained in the archive.
+     *
+     * @return index definitions keyed by their repository path
+     * @throws IOException if the archive cannot be read or parsed
+     */
+    Map<String, DefinitionNode> read() throws IOException {
+        final Map<String, DefinitionNode> containers = new LinkedHashMap<String, DefinitionNode>();
+        final Archive.Entry jcrRoot = archive.getJcrRoot();
+        if (jcrRoot != null) {
+            findIndexContainers(jcrRoot, "", containers);
+        }
+        final Map<String, DefinitionNode> definitions = new LinkedHashMap<String, DefinitionNode>();
+        for (final Map.Entry<String, DefinitionNode> container : containers.entrySet()) {
+            for (final DefinitionNode definition : container.getValue().getChildren()) {
+                definitions.put(container.getKey() + "/" + definition.getName(), definition);
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Collect the {@code oak:index} nodes below the directory, keyed by
+     * path. A container may be serialized partly inline in an ancestor's
+     * docview file and partly as {@code _oak_index} directory, both are
+     * read into the same node.
+     */
+    private void findIndexContainers(final Archive.Entry directory, final String path,
+                                     final Map<String, DefinitionNode> containers) throws IOException {
+        for (final Archive.Entry entry : directory.getChildren()) {
+            final String entryName = entry.getName();
+            if (!entry.isDirectory()) {
+                if (CONTENT_XML.equals(entryName)) {
+                    parseContainers(entry, path.length() == 0 ? "/" : path, containers);
+                } else if (entryName.endsWith(XML_EXTENSION)) {
+                    final String name = entryName.substring(0, entryName.length() - XML_EXTENSION.length());
+                    parseContainers(entry, path + "/" + PlatformNameFormat.getRepositoryName(name), containers);
+                }
+                continue;
+            }
+            final String name = PlatformNameFormat.getRepositoryName(entryName);
+            final String childPath = path + "/" + name;
+            if (OAK_INDEX.equals(name)) {
+                readDirectory(entry, getContainer(containers, childPath));
+            } else {
+                findIndexContainers(entry, childPath, containers);
+            }
+        }
+    }
+
+    private static DefinitionNode getContainer(final Map<String, DefinitionNode> containers, final String path) {
+        DefinitionNode container = containers.get(path);
+        if (container == null) {
+            container = new DefinitionNode(OAK_INDEX);
+            containers.put(path, container);
+        }
+        return container;
+    }
+
+    private void readDirectory(final Archive.Entry directory, final DefinitionNode node) throws IOException {
+        final Archive.Entry contentXml = directory.getChild(CONTENT_XML);
+        if (contentXml != null) {
+            parse(contentXml, node);
+        }
+        for (final Archive.Entry entry : directory.getChildren()) {
+            final String entryName = entry.getName();
+            if (entry.isDirectory()) {
+                readDirectory(entry, node.getOrAddChild(PlatformNameFormat.getRepositoryName(entryName)));
+            } else if (!CONTENT_XML.equals(entryName)) {
+                final DefinitionNode child;
+                if (entryName.endsWith(XML_EXTENSION)) {
+                    final String childName = entryName.substring(0, entryName.length() - XML_EXTENSION.length());
+                    child = node.getOrAddChild(PlatformNameFormat.getRepositoryName(childName));
+                    parse(entry, child);
+                } else {
+                    // files are not serialized as docview, their child
+                    // node remains a placeholder
+                    node.getOrAddChild(PlatformNameFormat.getRepositoryName(entryName));
+                }
+            }
+        }
+    }
+
+    private void parse(final Archive.Entry entry, final DefinitionNode node) throws IOException {
+        try {
+            parse(entry, new DocViewHandler(node));
+        } catch (SAXException e) {
+            throw new IOException("Failed to parse " + entry.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Other content may contain XML files that are not well-formed, they
+     * cannot contain index definitions and are skipped.
+     */
+    private void parseContainers(final Archive.Entry entry, final String path,
+                                 final Map<String, DefinitionNode> containers) throws IOException {
+        try {
+            parse(entry, new ContainerHandler(path, containers));
+        } catch (SAXException e) {
+            LOG.debug("Skipping {}, it is not well-formed: {}", entry.getName(), e.getMessage());
+        }
+    }
+
+    private void parse(final Archive.Entry entry, final DefaultHandler handler) throws IOException, SAXException {
+        final InputStream stream = archive.openInputStream(entry);
+        if (stream == null) {
+            return;
+        }
+        try {
+            parser.reset();
+            parser.parse(stream, handler);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Populates a {@link DefinitionNode} from a docview document. Documents
+     * whose root element is not {@code jcr:root} are not docview (e.g. an
+     * XML file stored as {@code nt:file}), in that case the node is left
+     * untouched.
+     */
+    private static class DocViewHandler extends DefaultHandler {
+
+        private final DefinitionNode root;
+
+        private final List<DefinitionNode> stack = new ArrayList<DefinitionNode>();
+
+        private boolean docView = true;
+
+        DocViewHandler(final DefinitionNode root) {
+            this.root = root;
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName,
+                                 final Attributes attributes) throws SAXException {
+            if (!docView) {
+                return;
+            }
+            final DefinitionNode node;
+            if (stack.isEmpty()) {
+                if (!JCR_ROOT.equals(qName)) {
+                    docView = false;
+                    return;
+                }
+                node = root;
+            } else {
+                node = stack.get(stack.size() - 1).getOrAddChild(decodeName(qName));
+            }
+            for (int i = 0; i < attributes.getLength(); i++) {
+                final String name = attributes.getQName(i);
+                if (name.startsWith("xmlns")) {
+                    continue;
+                }
+                node.setProperty(normalize(DocViewProperty.parse(name, attributes.getValue(i))));
+            }
+            stack.add(node);
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            if (docView) {
+                stack.remove(stack.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Finds {@code oak:index} elements at any depth of a docview document
+     * of other content. Only the elements below them are read, into the
+     * container nodes keyed by path, all other elements are skipped.
+     */
+    private static class ContainerHandler extends DefaultHandler {
+
+        private final Map<String, DefinitionNode> containers;
+
+        private final List<String> paths = new ArrayList<String>();
+
+        private DocViewHandler container;
+
+        private int containerDepth;
+
+        private boolean docView = true;
+
+        ContainerHandler(final String path, final Map<String, DefinitionNode> containers) {
+            this.containers = containers;
+            this.paths.add(path);
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName,
+                                 final Attributes attributes) throws SAXException {
+            if (!docView) {
+                return;
+            }
+            if (container != null) {
+                container.startElement(uri, localName, qName, attributes);
+                containerDepth++;
+                return;
+            }
+            if (paths.size() == 1) {
+                // the root element stands for the file's node
+                docView = JCR_ROOT.equals(qName);
+                paths.add(paths.get(0));
+                return;
+            }
+            final String name = decodeName(qName);
+            final String parentPath = paths.get(paths.size() - 1);
+            final String path = ("/".equals(parentPath) ? "" : parentPath) + "/" + name;
+            if (OAK_INDEX.equals(name)) {
+                container = new DocViewHandler(getContainer(containers, path));
+                container.startElement(uri, localName, JCR_ROOT, attributes);
+                containerDepth = 1;
+            } else {
+                paths.add(path);
+            }
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            if (!docView) {
+                return;
+            }
+            if (container != null) {
+                container.endElement(uri, localName, qName);
+                if (--containerDepth == 0) {
+                    container = null;
+                }
+            } else {
+                paths.remove(paths.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Untyped docview values are imported as strings, except for node
+     * type names.
+     */
+    private static DocViewProperty normalize(final DocViewProperty property) {
+        if (property.type != PropertyType.UNDEFINED) {
+            return property;
+        }
+        final int type = JCR_PRIMARY_TYPE.equals(property.name) || JCR_MIXIN_TYPES.equals(property.name)
+                ? PropertyType.NAME
+                : PropertyType.STRING;
+        return new DocViewProperty(property.name, property.values, property.isMulti, type);
+    }
+
+    /**
+     * Decode an ISO 9075 encoded element name, e.g. {@code _x0031_foo}
+     * becomes {@code 1foo}.
+     */
+    static String decodeName(final String name) {
+        if (name.indexOf("_x") == -1) {
+            return name;
+        }
+        final StringBuilder decoded = new StringBuilder(name.length());
+        int i = 0;
+        while (i < name.length()) {
+            if (i + 6 < name.length() && name.charAt(i) == '_' && name.charAt(i + 1) == 'x'
+                    && name.charAt(i + 6) == '_' && isHex(name, i + 2, i + 6)) {
+                decoded.append((char) Integer.parseInt(name.substring(i + 2, i + 6), 16));
+                i += 7;
+            } else {
+                decoded.append(name.charAt(i++));
+            }
+        }
+        return decoded.toString();
+    }
+
+    private static boolean isHex(final String value, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.digit(value.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
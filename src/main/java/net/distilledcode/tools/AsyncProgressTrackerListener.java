@@ -0,0 +1,218 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.ProgressTrackerListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ProgressTrackerListener implementation that hands messages to a
+ * bounded ring buffer, which is drained by a single background thread
+ * calling the delegate. This keeps slow listeners (e.g. listeners that
+ * write to a remote log) off the import thread.
+ * <br>
+ * Messages are delivered in order. If the buffer is full, the calling
+ * thread blocks until the consumer catches up, i.e. no messages are
+ * dropped. The buffer slots are allocated upfront, hence buffering a
+ * message does not allocate.
+ * <br>
+ * {@link #flush()} blocks until all messages buffered so far have been
+ * delivered. {@link #close()} delivers any remaining messages and stops
+ * the background thread, messages received afterwards are delivered
+ * synchronously.
+ */
+public class AsyncProgressTrackerListener implements ProgressTrackerListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncProgressTrackerListener.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final ProgressTrackerListener delegate;
+
+    private final Mode[] modes;
+
+    private final String[] actions;
+
+    private final String[] paths;
+
+    private final Exception[] errors;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final Condition delivered = lock.newCondition();
+
+    private final Thread consumer;
+
+    // sequence numbers of the next message to write, read and deliver
+    private long writeSequence;
+
+    private long readSequence;
+
+    private long deliveredSequence;
+
+    private boolean closed;
+
+    public AsyncProgressTrackerListener(final ProgressTrackerListener delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    public AsyncProgressTrackerListener(final ProgressTrackerListener delegate, final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.delegate = delegate;
+        this.modes = new Mode[capacity];
+        this.actions = new String[capacity];
+        this.paths = new String[capacity];
+        this.errors = new Exception[capacity];
+        this.consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "oak-reindex-hook-listener");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    @Override
+    public void onMessage(final Mode mode, final String action, final String path) {
+        if (!offer(mode, action, path, null)) {
+            delegate.onMessage(mode, action, path);
+        }
+    }
+
+    @Override
+    public void onError(final Mode mode, final String path, final Exception e) {
+        if (!offer(mode, null, path, e)) {
+            delegate.onError(mode, path, e);
+        }
+    }
+
+    /**
+     * Block until all messages received before this call have been
+     * delivered to the delegate.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            final long target = writeSequence;
+            while (deliveredSequence < target && consumer.isAlive()) {
+                delivered.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deliver all buffered messages and stop the background thread.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return {@code false} if the message was not buffered and needs to
+     *         be delivered by the caller
+     */
+    private boolean offer(final Mode mode, final String action, final String path, final Exception error) {
+        lock.lock();
+        try {
+            while (!closed && writeSequence - readSequence == modes.length) {
+                notFull.await();
+            }
+            if (closed) {
+                return false;
+            }
+            final int slot = (int) (writeSequence % modes.length);
+            modes[slot] = mode;
+            actions[slot] = action;
+            paths[slot] = path;
+            errors[slot] = error;
+            writeSequence++;
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final Mode mode;
+            final String action;
+            final String path;
+            final Exception error;
+            lock.lock();
+            try {
+                while (!closed && readSequence == writeSequence) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (readSequence == writeSequence) {
+                    // closed and drained
+                    delivered.signalAll();
+                    return;
+                }
+                final int slot = (int) (readSequence % modes.length);
+                mode = modes[slot];
+                action = actions[slot];
+                path = paths[slot];
+                error = errors[slot];
+                modes[slot] = null;
+                actions[slot] = null;
+                paths[slot] = null;
+                errors[slot] = null;
+                readSequence++;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            deliver(mode, action, path, error);
+
+            lock.lock();
+            try {
+                deliveredSequence++;
+                delivered.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void deliver(final Mode mode, final String action, final String path, final Exception error) {
+        try {
+            if (error == null) {
+                delegate.onMessage(mode, action, path);
+            } else {
+                delegate.onError(mode, path, error);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Progress listener failed to handle message for {}", path, e);
+        }
+    }
+}
@@ -12,6 +12,11 @@ import java.util.List;
  * If a {@code CompoundProgressTrackerListener} instance is among the
  * delegates, its internal list of listeners is added directly to the new
  * instance.
+ * <br>
+ * Delegates that are not critical for the installation can be wrapped
+ * in an {@link AsyncProgressTrackerListener}, which are then called from
+ * a background thread. All other delegates are called synchronously.
+ * Use {@link #flush()} to wait for the asynchronous delegates.
  */
 public class CompoundProgressTrackerListener implements ProgressTrackerListener {
 
@@ -21,7 +26,7 @@ public class CompoundProgressTrackerListener implements ProgressTrackerListener
         this.listeners = listeners;
     }
 
-    public static ProgressTrackerListener create(ProgressTrackerListener... listeners) {
+    public static CompoundProgressTrackerListener create(ProgressTrackerListener... listeners) {
         final List<ProgressTrackerListener> ptls = new ArrayList<ProgressTrackerListener>();
         for (final ProgressTrackerListener listener : listeners) {
             if (listener != null) {
@@ -35,6 +40,29 @@ public class CompoundProgressTrackerListener implements ProgressTrackerListener
         return new CompoundProgressTrackerListener(ptls);
     }
 
+    /**
+     * Block until all asynchronous delegates have handled the messages
+     * received so far.
+     */
+    public void flush() {
+        for (ProgressTrackerListener listener : listeners) {
+            if (listener instanceof AsyncProgressTrackerListener) {
+                ((AsyncProgressTrackerListener) listener).flush();
+            }
+        }
+    }
+
+    /**
+     * Flush and stop all asynchronous delegates.
+     */
+    public void close() {
+        for (ProgressTrackerListener listener : listeners) {
+            if (listener instanceof AsyncProgressTrackerListener) {
+                ((AsyncProgressTrackerListener) listener).close();
+            }
+        }
+    }
+
     @Override
     public void onMessage(Mode mode, String action, String path) {
         for (ProgressTrackerListener listener : listeners) {
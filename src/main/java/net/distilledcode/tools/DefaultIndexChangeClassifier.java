@@ -0,0 +1,141 @@
+package net.distilledcode.tools;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The default {@link IndexChangeClassifier}. Changes are classified
+ * conservatively, i.e. any change that is not known to leave the indexed
+ * content intact requires reindexing.
+ * <br>
+ * Changes of descriptive properties (e.g. {@code jcr:title}) never
+ * affect an index. Changes of properties that are only evaluated at
+ * query time (e.g. {@code costPerEntry} or {@code queryPaths}), as well
+ * as narrowing {@code includedPaths} or widening {@code excludedPaths},
+ * require a refresh of {@code lucene} indexes, whose definitions are
+ * cached. Property and ordered indexes read their definitions on every
+ * query, hence these changes do not affect them. Property and ordered
+ * indexes do not evaluate {@code aggregates} either.
+ * <br>
+ * Subclasses can refine the classification of individual changes.
+ */
+public class DefaultIndexChangeClassifier implements IndexChangeClassifier {
+
+    public static final String TYPE_PROPERTY = "property";
+
+    public static final String TYPE_ORDERED = "ordered";
+
+    public static final String TYPE_LUCENE = "lucene";
+
+    public static final String TYPE_DISABLED = "disabled";
+
+    private static final String PN_INCLUDED_PATHS = "includedPaths";
+
+    private static final String PN_EXCLUDED_PATHS = "excludedPaths";
+
+    private static final String AGGREGATES = "aggregates";
+
+    private static final Set<String> DESCRIPTIVE_PROPERTIES = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("jcr:title", "jcr:description", "info", "refresh",
+                    "jcr:created", "jcr:createdBy", "jcr:lastModified", "jcr:lastModifiedBy")));
+
+    private static final Set<String> QUERY_PROPERTIES = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("costPerEntry", "costPerExecution", "entryCount", "keyCount", "tags",
+                    "selectionPolicy", "queryPaths")));
+
+    @Override
+    public Action classify(final String indexType, final List<DefinitionChange> changes) {
+        Action action = Action.NONE;
+        for (final DefinitionChange change : changes) {
+            final Action changeAction = classify(indexType, change);
+            if (changeAction.compareTo(action) > 0) {
+                action = changeAction;
+                if (action == Action.REINDEX) {
+                    break;
+                }
+            }
+        }
+        return action;
+    }
+
+    /**
+     * Classify a single change.
+     *
+     * @param indexType the index type, or {@code null}
+     * @param change the change
+     * @return the action required for the change
+     */
+    protected Action classify(final String indexType, final DefinitionChange change) {
+        if (TYPE_DISABLED.equals(indexType)) {
+            return Action.NONE;
+        }
+        if (change.isDefinitionProperty()) {
+            return classifyDefinitionProperty(indexType, change);
+        }
+        if (!TYPE_LUCENE.equals(indexType) && isAggregate(change.getPath())) {
+            return Action.NONE;
+        }
+        return Action.REINDEX;
+    }
+
+    private Action classifyDefinitionProperty(final String indexType, final DefinitionChange change) {
+        final String name = change.getPropertyName();
+        if (DESCRIPTIVE_PROPERTIES.contains(name)) {
+            return Action.NONE;
+        }
+        if (QUERY_PROPERTIES.contains(name)
+                || PN_INCLUDED_PATHS.equals(name) && isCovered(change.getAfter(), change.getBefore())
+                || PN_EXCLUDED_PATHS.equals(name)
+                && isCovered(orEmpty(change.getBefore()), orEmpty(change.getAfter()))) {
+            return getQueryAction(indexType);
+        }
+        return Action.REINDEX;
+    }
+
+    /**
+     * The action required for changes that only affect queries.
+     */
+    protected Action getQueryAction(final String indexType) {
+        if (TYPE_LUCENE.equals(indexType)) {
+            return Action.REFRESH;
+        }
+        if (TYPE_PROPERTY.equals(indexType) || TYPE_ORDERED.equals(indexType)) {
+            return Action.NONE;
+        }
+        return Action.REINDEX;
+    }
+
+    private static boolean isAggregate(final String path) {
+        return path.equals(AGGREGATES) || path.startsWith(AGGREGATES + "/");
+    }
+
+    private static String[] orEmpty(final String[] values) {
+        return values == null ? new String[0] : values;
+    }
+
+    /**
+     * Check whether each of the {@code paths} is equal to or below one of
+     * the {@code roots}. A missing property stands for the root path.
+     */
+    private static boolean isCovered(final String[] paths, final String[] roots) {
+        if (roots == null) {
+            return true;
+        }
+        for (final String path : paths == null ? new String[]{"/"} : paths) {
+            boolean covered = false;
+            for (final String root : roots) {
+                if (root.equals("/") || path.equals(root) || path.startsWith(root + "/")) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+package net.distilledcode.tools;
+
+import java.util.Arrays;
+
+/**
+ * A single property-level or node-level change within an index
+ * definition, as detected by comparing the definition before and after
+ * a package installation.
+ * <br>
+ * Paths are relative to the definition node, i.e. changes of the
+ * definition node's own properties have an empty path.
+ */
+public final class DefinitionChange {
+
+    public enum Type {
+        NODE_ADDED, NODE_REMOVED, PROPERTY_ADDED, PROPERTY_CHANGED, PROPERTY_REMOVED
+    }
+
+    private final Type type;
+
+    private final String path;
+
+    private final String propertyName;
+
+    private final String[] before;
+
+    private final String[] after;
+
+    DefinitionChange(final Type type, final String path, final String propertyName,
+                     final String[] before, final String[] after) {
+        this.type = type;
+        this.path = path;
+        this.propertyName = propertyName;
+        this.before = before;
+        this.after = after;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the path of the changed node relative to the definition
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the name of the changed property, or {@code null} for node changes
+     */
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    /**
+     * @return the property's values before the installation, or {@code null}
+     */
+    public String[] getBefore() {
+        return before == null ? null : before.clone();
+    }
+
+    /**
+     * @return the property's values after the installation, or {@code null}
+     */
+    public String[] getAfter() {
+        return after == null ? null : after.clone();
+    }
+
+    /**
+     * @return {@code true} if the change concerns the definition node itself
+     */
+    public boolean isDefinitionProperty() {
+        return propertyName != null && path.length() == 0;
+    }
+
+    @Override
+    public String toString() {
+        final String item = propertyName == null
+                ? path
+                : path.length() == 0 ? propertyName : path + "/" + propertyName;
+        switch (type) {
+            case NODE_ADDED:
+            case PROPERTY_ADDED:
+                return "+" + item + (after == null ? "" : " " + Arrays.toString(after));
+            case NODE_REMOVED:
+            case PROPERTY_REMOVED:
+                return "-" + item + (before == null ? "" : " " + Arrays.toString(before));
+            default:
+                return "~" + item + " " + Arrays.toString(before) + " -> " + Arrays.toString(after);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Decides how the index definitions changed by the import are updated,
+ * once the package is installed. Definitions that were merely rewritten
+ * with identical content, i.e. whose fingerprint did not change, are left
+ * alone. As FileVault does not report reordered nodes, definitions whose
+ * fingerprint depends on the order of their children (see
+ * {@link IndexDefinitionFingerprint}) are checked even if the import did
+ * not report them. The changes of the other definitions are captured property by
+ * property and, optionally, classified by an
+ * {@link IndexChangeClassifier}, in order to only refresh the definition
+ * or to leave the index untouched. If a {@code lucene} definition only
+ * gains property rules, the index can be updated by a
+ * {@link PartialIndexer} instead of a reindex.
+ * <br>
+ * The decisions are recorded in the definitions' {@link ReindexRecord}s,
+ * nothing is written.
+ */
+final class DefinitionChangeHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DefinitionChangeHandler.class);
+
+    private static final String PN_TYPE = "type";
+
+    private final Session session;
+
+    private final IndexChangeClassifier classifier;
+
+    private final PartialIndexer partialIndexer;
+
+    DefinitionChangeHandler(final Session session, final IndexChangeClassifier classifier,
+                            final PartialIndexer partialIndexer) {
+        this.session = session;
+        this.classifier = classifier;
+        this.partialIndexer = partialIndexer;
+    }
+
+    /**
+     * @param records the records of the definitions that existed before the installation
+     * @param paths the paths of the definitions reported as changed by the import
+     * @return the changes of each changed definition, keyed by path
+     * @throws RepositoryException if the definitions cannot be read
+     */
+    Map<String, IndexDefinitionChanges> handle(final Map<String, ReindexRecord> records, final Set<String> paths)
+            throws RepositoryException {
+
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final Map<String, IndexDefinitionChanges> definitionChanges =
+                new LinkedHashMap<String, IndexDefinitionChanges>();
+        final Set<String> changedPaths = new TreeSet<String>(paths);
+        changedPaths.addAll(getReordered(records, fingerprint));
+        for (final String path : changedPaths) {
+            final ReindexRecord record = records.get(path);
+            if (record == null) {
+                if (session.nodeExists(path)) {
+                    // Oak indexes new definitions on its own
+                    final List<DefinitionChange> changes = Collections.singletonList(new DefinitionChange(
+                            DefinitionChange.Type.NODE_ADDED, "", null, null, null));
+                    definitionChanges.put(path,
+                            new IndexDefinitionChanges(path, changes, IndexChangeClassifier.Action.REINDEX));
+                    LOG.info("Index definition at {} was added", path);
+                }
+                continue;
+            }
+            if (record.skipped) {
+                LOG.debug("Index definition at {} was found unchanged before installation", path);
+                continue;
+            }
+            final Node definition = record.getNode(session);
+            if (record.fingerprint != null && definition != null
+                    && record.fingerprint.equals(fingerprint.compute(definition))) {
+                LOG.info("Index definition at {} was rewritten without changes", path);
+                continue;
+            }
+            final List<DefinitionChange> changes = getChanges(record, definition);
+            IndexChangeClassifier.Action action = classify(definition, changes);
+            if (action == IndexChangeClassifier.Action.REINDEX && partialIndexer != null
+                    && isType(definition, DefaultIndexChangeClassifier.TYPE_LUCENE)
+                    && new IncrementalIndexer(session, partialIndexer).index(definition, changes)) {
+                // the added fields are in the index, the added rules need to be loaded
+                action = IndexChangeClassifier.Action.REFRESH;
+            }
+            definitionChanges.put(path, new IndexDefinitionChanges(path, changes, action));
+            LOG.info("Index definition at {} was changed: {}", path, changes);
+            if (action == IndexChangeClassifier.Action.NONE) {
+                LOG.info("Index definition at {} was changed without affecting the index", path);
+            } else if (action == IndexChangeClassifier.Action.REFRESH) {
+                record.refresh = true;
+            } else {
+                record.reindex = true;
+                record.modified = true;
+            }
+        }
+        return definitionChanges;
+    }
+
+    /**
+     * The definitions with ordered children whose fingerprint changed
+     * without the import reporting them.
+     */
+    private Set<String> getReordered(final Map<String, ReindexRecord> records,
+                                     final IndexDefinitionFingerprint fingerprint) throws RepositoryException {
+        final Set<String> reordered = new TreeSet<String>();
+        for (final ReindexRecord record : records.values()) {
+            if (record.skipped || record.snapshot == null
+                    || !IndexDefinitionFingerprint.hasOrderedChildren(record.snapshot)) {
+                continue;
+            }
+            final Node definition = record.getNode(session);
+            if (definition != null && !record.fingerprint.equals(fingerprint.compute(definition))) {
+                LOG.debug("Index definition at {} was reordered", record.path);
+                reordered.add(record.path);
+            }
+        }
+        return reordered;
+    }
+
+    private static List<DefinitionChange> getChanges(final ReindexRecord record, final Node definition)
+            throws RepositoryException {
+        if (definition == null) {
+            return Collections.singletonList(new DefinitionChange(
+                    DefinitionChange.Type.NODE_REMOVED, "", null, null, null));
+        }
+        return DefinitionDiff.compare(record.snapshot, DefinitionDiff.snapshot(definition));
+    }
+
+    /**
+     * Classify the changes of a definition. Without classifier, a changed
+     * definition is reindexed. Changes that cannot be expressed on the
+     * property level (i.e. the fingerprint differs but the snapshot does
+     * not) are reindexed as well.
+     */
+    private IndexChangeClassifier.Action classify(final Node definition, final List<DefinitionChange> changes)
+            throws RepositoryException {
+        if (definition == null) {
+            return IndexChangeClassifier.Action.NONE;
+        }
+        if (classifier == null || changes.isEmpty()) {
+            return IndexChangeClassifier.Action.REINDEX;
+        }
+        final String type = definition.hasProperty(PN_TYPE) ? definition.getProperty(PN_TYPE).getString() : null;
+        final IndexChangeClassifier.Action action = classifier.classify(type, changes);
+        LOG.debug("Classified changes of index definition at {} as {}", definition.getPath(), action);
+        return action == null ? IndexChangeClassifier.Action.REINDEX : action;
+    }
+
+    private static boolean isType(final Node definition, final String type) throws RepositoryException {
+        return definition != null && definition.hasProperty(PN_TYPE)
+                && type.equals(definition.getProperty(PN_TYPE).getString());
+    }
+}
@@ -0,0 +1,135 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.util.DocViewProperty;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Takes snapshots of index definitions and compares them property by
+ * property. Properties that are ignored by the
+ * {@link IndexDefinitionFingerprint} are ignored here as well. The order
+ * of child nodes is not considered a change.
+ */
+final class DefinitionDiff {
+
+    private DefinitionDiff() {
+    }
+
+    /**
+     * Copy an index definition tree into memory.
+     *
+     * @param node the definition node
+     * @return the snapshot
+     * @throws RepositoryException if reading the definition fails
+     */
+    static DefinitionNode snapshot(final Node node) throws RepositoryException {
+        final DefinitionNode snapshot = new DefinitionNode(node.getName());
+        copy(node, snapshot);
+        return snapshot;
+    }
+
+    private static void copy(final Node node, final DefinitionNode snapshot) throws RepositoryException {
+        final PropertyIterator properties = node.getProperties();
+        while (properties.hasNext()) {
+            final Property property = properties.nextProperty();
+            if (IndexDefinitionFingerprint.isIgnored(property.getName())) {
+                continue;
+            }
+            final String[] values;
+            if (property.isMultiple()) {
+                final Value[] jcrValues = property.getValues();
+                values = new String[jcrValues.length];
+                for (int i = 0; i < jcrValues.length; i++) {
+                    values[i] = jcrValues[i].getString();
+                }
+            } else {
+                values = new String[]{property.getValue().getString()};
+            }
+            snapshot.setProperty(new DocViewProperty(property.getName(), values, property.isMultiple(),
+                    property.getType()));
+        }
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            copy(child, snapshot.getOrAddChild(child.getName()));
+        }
+    }
+
+    /**
+     * Compare two snapshots of the same index definition.
+     *
+     * @param before the definition before the installation
+     * @param after the definition after the installation
+     * @return the changes, empty if the definitions are equal
+     */
+    static List<DefinitionChange> compare(final DefinitionNode before, final DefinitionNode after) {
+        final List<DefinitionChange> changes = new ArrayList<DefinitionChange>();
+        compare("", before, after, changes);
+        return changes;
+    }
+
+    private static void compare(final String path, final DefinitionNode before, final DefinitionNode after,
+                                final List<DefinitionChange> changes) {
+        for (final DocViewProperty property : before.getProperties()) {
+            final DocViewProperty afterProperty = after.getProperty(property.name);
+            if (afterProperty == null) {
+                changes.add(new DefinitionChange(DefinitionChange.Type.PROPERTY_REMOVED, path, property.name,
+                        property.values, null));
+            } else if (!isEqual(property, afterProperty)) {
+                changes.add(new DefinitionChange(DefinitionChange.Type.PROPERTY_CHANGED, path, property.name,
+                        property.values, afterProperty.values));
+            }
+        }
+        for (final DocViewProperty property : after.getProperties()) {
+            if (before.getProperty(property.name) == null) {
+                changes.add(new DefinitionChange(DefinitionChange.Type.PROPERTY_ADDED, path, property.name,
+                        null, property.values));
+            }
+        }
+        for (final DefinitionNode child : before.getChildren()) {
+            final String childPath = childPath(path, child.getName());
+            final DefinitionNode afterChild = after.getChild(child.getName());
+            if (afterChild == null) {
+                changes.add(new DefinitionChange(DefinitionChange.Type.NODE_REMOVED, childPath, null, null, null));
+            } else {
+                compare(childPath, child, afterChild, changes);
+            }
+        }
+        for (final DefinitionNode child : after.getChildren()) {
+            if (before.getChild(child.getName()) == null) {
+                final String childPath = childPath(path, child.getName());
+                changes.add(new DefinitionChange(DefinitionChange.Type.NODE_ADDED, childPath, null, null, null));
+                addProperties(childPath, child, changes);
+            }
+        }
+    }
+
+    private static void addProperties(final String path, final DefinitionNode node,
+                                      final List<DefinitionChange> changes) {
+        for (final DocViewProperty property : node.getProperties()) {
+            changes.add(new DefinitionChange(DefinitionChange.Type.PROPERTY_ADDED, path, property.name,
+                    null, property.values));
+        }
+        for (final DefinitionNode child : node.getChildren()) {
+            final String childPath = childPath(path, child.getName());
+            changes.add(new DefinitionChange(DefinitionChange.Type.NODE_ADDED, childPath, null, null, null));
+            addProperties(childPath, child, changes);
+        }
+    }
+
+    private static boolean isEqual(final DocViewProperty a, final DocViewProperty b) {
+        return a.type == b.type && a.isMulti == b.isMulti && Arrays.equals(a.values, b.values);
+    }
+
+    private static String childPath(final String path, final String name) {
+        return path.length() == 0 ? name : path + "/" + name;
+    }
+}
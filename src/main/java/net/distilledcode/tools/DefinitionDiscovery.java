@@ -0,0 +1,196 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.PathFilterSet;
+import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the index definitions affected by a package installation in the
+ * prepare phase, either in the repository below the package's filter
+ * (see {@link HookConfiguration#DISCOVERY}) or in the package's archive
+ * (see {@link HookConfiguration#DETECTION}).
+ */
+final class DefinitionDiscovery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DefinitionDiscovery.class);
+
+    private static final String OAK_INDEX = "/oak:index";
+
+    private final Session session;
+
+    private final Archive archive;
+
+    private final WorkspaceFilter filter;
+
+    DefinitionDiscovery(final InstallContext context) {
+        this.session = context.getSession();
+        this.archive = context.getPackage().getArchive();
+        this.filter = archive.getMetaInf().getFilter();
+    }
+
+    WorkspaceFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param discovery {@value HookConfiguration#DISCOVERY_COVERAGE} or
+     *                  {@value HookConfiguration#DISCOVERY_QUERY}
+     * @return the paths of the existing definitions covered by the filter
+     * @throws RepositoryException if the repository cannot be read
+     */
+    Set<String> findInstalled(final String discovery) throws RepositoryException {
+        if (HookConfiguration.DISCOVERY_QUERY.equals(discovery)) {
+            return new IndexDefinitionFinder(session).find(filter);
+        }
+        final IndexDefinitionListener collector = new IndexDefinitionListener("A");
+        filter.dumpCoverage(session.getRootNode(), collector);
+        return collector.getIndexDefinitionPaths();
+    }
+
+    /**
+     * @return the definitions in the package's archive, keyed by path
+     * @throws RepositoryException if the archive cannot be read
+     */
+    Map<String, DefinitionNode> readPackageDefinitions() throws RepositoryException {
+        try {
+            return new ArchiveIndexDefinitionReader(archive).read();
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to read index definitions from package", e);
+        }
+    }
+
+    /**
+     * @param packageDefinitions the definitions in the package's archive
+     * @return the paths of the package's definitions that exist in the repository
+     * @throws RepositoryException if the repository cannot be read
+     */
+    Set<String> findInstalled(final Map<String, DefinitionNode> packageDefinitions) throws RepositoryException {
+        final Set<String> paths = new HashSet<String>();
+        for (final String path : packageDefinitions.keySet()) {
+            if (filter.contains(path)) {
+                if (session.nodeExists(path)) {
+                    paths.add(path);
+                } else {
+                    LOG.info("Index definition at {} is added by the package", path);
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Compare the existing definitions to the package's definitions.
+     *
+     * @param paths the paths of the existing definitions
+     * @param skippedPaths the definitions that are not compared
+     * @param packageDefinitions the definitions in the package's archive
+     * @param fingerprints fingerprints computed before, by path, receives
+     *                     the missing ones of the compared definitions
+     * @param changedPaths receives the paths of the definitions that differ
+     * @return the paths of the definitions that are identical
+     * @throws RepositoryException if the repository cannot be read
+     */
+    Set<String> compareWithPackage(final Set<String> paths, final Set<String> skippedPaths,
+                                   final Map<String, DefinitionNode> packageDefinitions,
+                                   final Map<String, String> fingerprints, final Set<String> changedPaths)
+            throws RepositoryException {
+
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final Set<String> unchangedPaths = new HashSet<String>();
+        for (final String path : paths) {
+            if (skippedPaths.contains(path)) {
+                continue;
+            }
+            if (!fingerprints.containsKey(path)) {
+                fingerprints.put(path, fingerprint.compute(session.getNode(path)));
+            }
+            final String installed = fingerprints.get(path);
+            final DefinitionNode packageDefinition = packageDefinitions.get(path);
+            if (!packageDefinition.isComplete()) {
+                LOG.info("Index definition at {} cannot be compared before installation, " +
+                        "changes are detected during import", path);
+            } else if (installed.equals(fingerprint.compute(packageDefinition))) {
+                LOG.info("Index definition at {} is identical in the package, it will not be reindexed", path);
+                unchangedPaths.add(path);
+            } else {
+                LOG.info("Index definition at {} differs from the package, it will be reindexed", path);
+                changedPaths.add(path);
+            }
+        }
+        return unchangedPaths;
+    }
+
+    /**
+     * @param paths the paths of the definitions
+     * @return the digests of the definitions' package content, keyed by path
+     * @throws RepositoryException if the archive cannot be read
+     */
+    Map<String, String> getPackageDigests(final Set<String> paths) throws RepositoryException {
+        final PackageDefinitionDigests digests = new PackageDefinitionDigests(archive);
+        final Map<String, String> packageDigests = new HashMap<String, String>();
+        try {
+            for (final String path : paths) {
+                final String digest = digests.getDigest(path);
+                if (digest != null) {
+                    packageDigests.put(path, digest);
+                }
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to read index definitions from package", e);
+        }
+        return packageDigests;
+    }
+
+    /**
+     * The index containers, i.e. {@code oak:index} nodes, in which changes
+     * need to be tracked. These are the parents of the known definitions
+     * and the containers at or above the package's filter roots.
+     *
+     * @param definitionPaths the paths of the known definitions
+     * @return the paths of the containers
+     */
+    Set<String> getContainerPaths(final Set<String> definitionPaths) {
+        final Set<String> containerPaths = new HashSet<String>();
+        for (final String path : definitionPaths) {
+            containerPaths.add(path.substring(0, path.lastIndexOf('/')));
+        }
+        for (final PathFilterSet filterSet : filter.getFilterSets()) {
+            final String root = filterSet.getRoot();
+            final int pos = (root + "/").indexOf(OAK_INDEX + "/");
+            if (pos != -1) {
+                containerPaths.add(root.substring(0, pos + OAK_INDEX.length()));
+            }
+        }
+        return containerPaths;
+    }
+
+    /**
+     * The package's filter roots that are not within an index container.
+     * Containers created by the package below them are
+     * not known before the import, hence changes below any
+     * {@code oak:index} node within them need to be tracked.
+     *
+     * @return the paths of the filter roots
+     */
+    Set<String> getSearchRoots() {
+        final Set<String> searchRoots = new HashSet<String>();
+        for (final PathFilterSet filterSet : filter.getFilterSets()) {
+            final String root = filterSet.getRoot();
+            if ((root + "/").indexOf(OAK_INDEX + "/") == -1) {
+                searchRoots.add(root);
+            }
+        }
+        return searchRoots;
+    }
+}
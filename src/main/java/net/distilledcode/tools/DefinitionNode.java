@@ -0,0 +1,90 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.util.DocViewProperty;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory representation of a (part of an) index definition tree,
+ * e.g. as read from the docview files of a content package.
+ */
+final class DefinitionNode {
+
+    private final String name;
+
+    private final Map<String, DocViewProperty> properties = new LinkedHashMap<String, DocViewProperty>();
+
+    private final Map<String, DefinitionNode> children = new LinkedHashMap<String, DefinitionNode>();
+
+    private boolean placeholder = true;
+
+    DefinitionNode(final String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * A node is a placeholder as long as no content was provided for it,
+     * e.g. for empty docview elements that only define the position of a
+     * node whose content is serialized elsewhere.
+     *
+     * @return {@code true} if no content was provided for this node
+     */
+    boolean isPlaceholder() {
+        return placeholder;
+    }
+
+    void setProperty(final DocViewProperty property) {
+        properties.put(property.name, property);
+        placeholder = false;
+    }
+
+    DocViewProperty getProperty(final String propertyName) {
+        return properties.get(propertyName);
+    }
+
+    Collection<DocViewProperty> getProperties() {
+        return Collections.unmodifiableCollection(properties.values());
+    }
+
+    DefinitionNode getOrAddChild(final String childName) {
+        DefinitionNode child = children.get(childName);
+        if (child == null) {
+            child = new DefinitionNode(childName);
+            children.put(childName, child);
+        }
+        placeholder = false;
+        return child;
+    }
+
+    DefinitionNode getChild(final String childName) {
+        return children.get(childName);
+    }
+
+    Collection<DefinitionNode> getChildren() {
+        return Collections.unmodifiableCollection(children.values());
+    }
+
+    /**
+     * Check whether this node and all its descendants have content.
+     *
+     * @return {@code true} if there is no placeholder in the tree
+     */
+    boolean isComplete() {
+        if (placeholder) {
+            return false;
+        }
+        for (final DefinitionNode child : children.values()) {
+            if (!child.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,145 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persists the package-side digest of each index definition that was
+ * installed with the hook, together with the fingerprint of the
+ * definition once it was installed. If a later installation carries the
+ * same package-side content for a definition, and the definition in the
+ * repository still has the stored fingerprint, the definition does not
+ * need to be inspected again. Definitions changed outside of package
+ * installations in the meantime are inspected, as the package reverts
+ * the change.
+ * <br>
+ * JCR keeps no modification marker covering a definition's subtree, so
+ * detecting such changes still computes the fingerprint of each
+ * definition whose package-side digest matches. The store saves removing
+ * and restoring the definitions' properties and comparing them with the
+ * package, not reading them. The fingerprints are computed once per
+ * installation: they are shared with the hook's other steps, and only
+ * definitions modified by the import or the hook are fingerprinted again
+ * when they are stored.
+ * <br>
+ * The digests are stored below {@code <stateRoot>/fingerprints}, one
+ * node per definition. Writes are transient and saved together with the
+ * hook's other changes.
+ */
+final class FingerprintStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FingerprintStore.class);
+
+    static final String PN_PACKAGE_DIGEST = "packageDigest";
+
+    static final String PN_FINGERPRINT = "fingerprint";
+
+    static final String PN_PACKAGE_ID = "packageId";
+
+    static final String PN_PATH = "path";
+
+    private final Session session;
+
+    private final String storePath;
+
+    FingerprintStore(final Session session, final String stateRoot) {
+        this.session = session;
+        this.storePath = stateRoot + "/fingerprints";
+    }
+
+    String getPackageDigest(final String definitionPath) throws RepositoryException {
+        return getString(definitionPath, PN_PACKAGE_DIGEST);
+    }
+
+    String getFingerprint(final String definitionPath) throws RepositoryException {
+        return getString(definitionPath, PN_FINGERPRINT);
+    }
+
+    void setPackageDigest(final String definitionPath, final String packageDigest, final String fingerprint,
+                          final String packageId) throws RepositoryException {
+        if (packageDigest == null || packageDigest.equals(getPackageDigest(definitionPath))
+                && fingerprint.equals(getFingerprint(definitionPath))) {
+            return;
+        }
+        final Node entry = HookState.getOrCreateNode(session, storePath + "/" + HookState.escapeName(definitionPath));
+        entry.setProperty(PN_PATH, definitionPath);
+        entry.setProperty(PN_PACKAGE_DIGEST, packageDigest);
+        entry.setProperty(PN_FINGERPRINT, fingerprint);
+        entry.setProperty(PN_PACKAGE_ID, packageId);
+    }
+
+    void remove(final String definitionPath) throws RepositoryException {
+        final String path = storePath + "/" + HookState.escapeName(definitionPath);
+        if (session.nodeExists(path)) {
+            session.getNode(path).remove();
+        }
+    }
+
+    /**
+     * @param packageDigests the package-side digests of the definitions, by path
+     * @param fingerprints receives the fingerprints of the definitions whose
+     *                     stored digest matches, by path
+     * @return the paths of the definitions whose stored digest matches and
+     *         whose fingerprint in the repository matches the stored one
+     * @throws RepositoryException if the store or the definitions cannot be read
+     */
+    Set<String> getUnchanged(final Map<String, String> packageDigests, final Map<String, String> fingerprints)
+            throws RepositoryException {
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final Set<String> paths = new HashSet<String>();
+        for (final Map.Entry<String, String> entry : packageDigests.entrySet()) {
+            final String path = entry.getKey();
+            if (!entry.getValue().equals(getPackageDigest(path))) {
+                continue;
+            }
+            final String installed = fingerprint.compute(session.getNode(path));
+            fingerprints.put(path, installed);
+            final String stored = getFingerprint(path);
+            if (stored != null && stored.equals(installed)) {
+                paths.add(path);
+            } else {
+                LOG.info("Index definition at {} changed since it was installed from identical package content", path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Store the digests and the fingerprints of the installed definitions,
+     * and remove the entries of definitions that no longer exist.
+     *
+     * @param packageDigests the package-side digests of the definitions, by path
+     * @param packageId the ID of the installed package
+     * @param unchangedFingerprints the fingerprints of definitions known to
+     *                              be unchanged since they were computed,
+     *                              the other definitions are fingerprinted
+     * @throws RepositoryException if the store cannot be written
+     */
+    void store(final Map<String, String> packageDigests, final String packageId,
+               final Map<String, String> unchangedFingerprints) throws RepositoryException {
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        for (final Map.Entry<String, String> entry : packageDigests.entrySet()) {
+            final String path = entry.getKey();
+            if (session.nodeExists(path)) {
+                final String installed = unchangedFingerprints.containsKey(path)
+                        ? unchangedFingerprints.get(path)
+                        : fingerprint.compute(session.getNode(path));
+                setPackageDigest(path, entry.getValue(), installed, packageId);
+            } else {
+                remove(path);
+            }
+        }
+    }
+
+    private String getString(final String definitionPath, final String propertyName) throws RepositoryException {
+        final String path = storePath + "/" + HookState.escapeName(definitionPath) + "/" + propertyName;
+        return session.propertyExists(path) ? session.getProperty(path).getString() : null;
+    }
+}
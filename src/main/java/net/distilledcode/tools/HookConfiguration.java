@@ -0,0 +1,326 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Configuration of the {@link OakReindexInstallHook}. The hook is
+ * instantiated by FileVault, therefore its configuration is read from
+ * the properties of the installed package (i.e.
+ * {@code META-INF/vault/properties.xml}). All keys are prefixed with
+ * {@value #PREFIX}.
+ */
+final class HookConfiguration {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HookConfiguration.class);
+
+    static final String PREFIX = "oakReindexHook.";
+
+    /**
+     * Path of the repository node below which the hook keeps its state.
+     */
+    static final String STATE_ROOT = "stateRoot";
+
+    static final String DEFAULT_STATE_ROOT = "/var/oakReindexHook";
+
+    /**
+     * Whether package-side fingerprints of index definitions are persisted
+     * and consulted in order to skip definitions that were installed from
+     * identical package content before and were not changed since.
+     */
+    static final String FINGERPRINT_STORE = "fingerprintStore";
+
+    /**
+     * How index definitions and their changes are detected. With
+     * {@value #DETECTION_IMPORT}, the definitions covered by the package
+     * filter are looked up in the repository and changes are detected
+     * from the import. With {@value #DETECTION_ARCHIVE}, the definitions
+     * are read from the package archive and compared to the repository
+     * before the import.
+     */
+    static final String DETECTION = "detection";
+
+    static final String DETECTION_IMPORT = "import";
+
+    static final String DETECTION_ARCHIVE = "archive";
+
+    /**
+     * How existing index definitions are found with
+     * {@link #DETECTION_IMPORT import detection}. With
+     * {@value #DISCOVERY_COVERAGE}, all nodes covered by the package
+     * filter are walked. With {@value #DISCOVERY_QUERY}, definitions are
+     * looked up by their node type, which takes time proportional to the
+     * number of definitions rather than the size of the covered content,
+     * provided the node type index covers {@code oak:QueryIndexDefinition}
+     * (see {@link IndexDefinitionFinder}).
+     */
+    static final String DISCOVERY = "discovery";
+
+    static final String DISCOVERY_COVERAGE = "coverage";
+
+    static final String DISCOVERY_QUERY = "query";
+
+    /**
+     * Whether the progress listener that was registered before the hook's
+     * own listener is called from a background thread. The hook's own
+     * listener is always called on the import thread.
+     */
+    static final String ASYNC_LISTENER = "asyncListener";
+
+    /**
+     * Number of messages buffered for an asynchronous listener before the
+     * import thread has to wait.
+     */
+    static final String ASYNC_LISTENER_CAPACITY = "asyncListenerCapacity";
+
+    /**
+     * Number of index definitions whose {@code reindex} and
+     * {@code reindexCount} properties are saved together. By default all
+     * of them are saved at once at the end of the installation.
+     */
+    static final String BATCH_SIZE = "batchSize";
+
+    /**
+     * How modified index definitions are reindexed. With
+     * {@value #SCHEDULE_ALL}, all of them are marked for reindexing at
+     * once. With {@value #SCHEDULE_SEQUENTIAL}, they are marked one after
+     * another, each once the previous one has been reindexed, ordered by
+     * {@link #PRIORITY}. With {@value #SCHEDULE_LANE}, asynchronous
+     * definitions are moved to the dedicated {@link #LANE}, reindexed and
+     * kept there. Moving them back would skip content changes indexed by
+     * the original lane in the meantime.
+     */
+    static final String SCHEDULE = "schedule";
+
+    static final String SCHEDULE_ALL = "all";
+
+    static final String SCHEDULE_SEQUENTIAL = "sequential";
+
+    static final String SCHEDULE_LANE = "lane";
+
+    /**
+     * Comma separated paths or names of index definitions, which are
+     * reindexed first, in the given order.
+     */
+    static final String PRIORITY = "priority";
+
+    /**
+     * The async lane used for reindexing, it needs to be configured in Oak.
+     */
+    static final String LANE = "lane";
+
+    static final String DEFAULT_LANE = "async-reindex";
+
+    /**
+     * Interval in seconds in which scheduled reindexing is advanced in the
+     * background after the installation. With {@code 0} it is only
+     * advanced by later installations.
+     */
+    static final String POLL_INTERVAL = "pollInterval";
+
+    /**
+     * Seconds after which the background advancing started by an
+     * installation stops, see {@link #POLL_INTERVAL}. Afterwards
+     * scheduled reindexing is advanced by later installations.
+     */
+    static final String WATCH_TIMEOUT = "watchTimeout";
+
+    /**
+     * The {@link IndexChangeClassifier} deciding whether a changed index
+     * definition needs reindexing, a refresh or nothing at all. Either
+     * {@value #CLASSIFIER_DEFAULT} or the name of a class visible to the
+     * hook. Without classifier, all changed definitions are reindexed.
+     */
+    static final String CLASSIFIER = "classifier";
+
+    static final String CLASSIFIER_DEFAULT = "default";
+
+    /**
+     * The name of a {@link PartialIndexer} class visible to the hook. If
+     * set, changes of {@code lucene} definitions that only add property
+     * rules are indexed incrementally, and the definition is refreshed
+     * instead of reindexed.
+     */
+    static final String PARTIAL_INDEXER = "partialIndexer";
+
+    /**
+     * Maximum number of nodes a single reindex may process, as estimated
+     * by the {@link ReindexCostEstimator}. With {@code 0}, reindexing is
+     * not limited.
+     */
+    static final String BUDGET = "budget";
+
+    /**
+     * What happens to reindexes exceeding the {@link #BUDGET}. With
+     * {@value #BUDGET_PROCEED} they are logged only. With
+     * {@value #BUDGET_DEFER} they are not triggered but recorded as
+     * pending. With {@value #BUDGET_FAIL}, the installation fails in the
+     * prepare phase, if the definition is known to change at that time
+     * (i.e. with {@link #DETECTION_ARCHIVE archive detection}), otherwise
+     * the reindex is deferred.
+     */
+    static final String BUDGET_ACTION = "budgetAction";
+
+    static final String BUDGET_PROCEED = "proceed";
+
+    static final String BUDGET_DEFER = "defer";
+
+    static final String BUDGET_FAIL = "fail";
+
+    /**
+     * Maximum number of random probes per included path for estimating
+     * the cost of a reindex.
+     */
+    static final String ESTIMATE_PROBES = "estimateProbes";
+
+    /**
+     * Time limit in milliseconds for estimating the cost of a reindex.
+     */
+    static final String ESTIMATE_TIME_LIMIT = "estimateTimeLimit";
+
+    /**
+     * How installations of the same package on several cluster members
+     * are coordinated. With {@value #COORDINATION_NONE}, each
+     * installation handles all definitions. With
+     * {@value #COORDINATION_LEASE}, a definition is only handled by the
+     * installation that first acquires its {@link ReindexLeases lease}.
+     */
+    static final String COORDINATION = "coordination";
+
+    static final String COORDINATION_NONE = "none";
+
+    static final String COORDINATION_LEASE = "lease";
+
+    /**
+     * Time in seconds after which a lease expires and can be acquired by
+     * another installation. The lease of a completed installation expires
+     * this long after its completion.
+     */
+    static final String LEASE_DURATION = "leaseDuration";
+
+    /**
+     * How definitions marked for reindexing are reindexed. With
+     * {@value #VERSIONING_NONE} they are reindexed in place. With
+     * {@value #VERSIONING_SIDE_BY_SIDE}, they are built as new versions
+     * and retired once the versions are built (see {@link IndexVersions}),
+     * unless the package filter would remove the versions.
+     */
+    static final String VERSIONING = "versioning";
+
+    static final String VERSIONING_NONE = "none";
+
+    static final String VERSIONING_SIDE_BY_SIDE = "sideBySide";
+
+    /**
+     * Number of threads reading the snapshots and fingerprints of the
+     * definitions in the prepare phase, each with its own session (see
+     * {@link ParallelDefinitionReader}). With {@code 0} or {@code 1} they
+     * are read by the installation's session. Removing and restoring the
+     * definitions' properties is always done by the installation's
+     * session.
+     */
+    static final String PREPARE_THREADS = "prepareThreads";
+
+    /**
+     * Where the removed {@code reindex} and {@code reindexCount}
+     * properties are journaled, such that they can be restored after an
+     * interrupted installation (see {@link ReindexJournal}). Either
+     * {@value #JOURNAL_NONE}, {@value #JOURNAL_REPOSITORY} or
+     * {@value #JOURNAL_FILE}, which requires the
+     * {@link #JOURNAL_DIRECTORY} system property.
+     */
+    static final String JOURNAL = "journal";
+
+    static final String JOURNAL_NONE = "none";
+
+    static final String JOURNAL_REPOSITORY = "repository";
+
+    static final String JOURNAL_FILE = "file";
+
+    /**
+     * The name of the {@value #JOURNAL_FILE} journal's file, relative to
+     * the {@link #JOURNAL_DIRECTORY}.
+     */
+    static final String JOURNAL_PATH = "journalPath";
+
+    static final String DEFAULT_JOURNAL_PATH = "oak-reindex-hook.journal";
+
+    /**
+     * The local directory of the {@value #JOURNAL_FILE} journal. This is
+     * read from the system properties rather than the package, such that
+     * packages cannot write files outside a directory chosen by the
+     * operator.
+     */
+    static final String JOURNAL_DIRECTORY = "journalDirectory";
+
+    /**
+     * Whether the installation is a dry run. FileVault only simulates the
+     * import and nothing is saved. Instead of marking indexes, a
+     * {@link ReindexPlan} is computed from the package's definitions,
+     * logged and, optionally, written to the {@link #PLAN_FILE}.
+     */
+    static final String DRY_RUN = "dryRun";
+
+    /**
+     * File to which the JSON {@link ReindexPlan} of a dry run is written.
+     */
+    static final String PLAN_FILE = "planFile";
+
+    /**
+     * Time in seconds the installation waits at its end for the indexes
+     * it marked for reindexing to be reindexed. With {@code 0}, the
+     * installation does not wait. If the time elapses, the indexes that
+     * are still reindexing are logged and the installation succeeds.
+     */
+    static final String WAIT_TIMEOUT = "waitTimeout";
+
+    /**
+     * Comma separated {@link MetricsSink}s to which the metrics of each
+     * installation are published. Either {@value #METRICS_LOG},
+     * {@value #METRICS_JMX} or the name of a class visible to the hook.
+     * Without sinks, no metrics are published.
+     */
+    static final String METRICS = "metrics";
+
+    static final String METRICS_LOG = "log";
+
+    static final String METRICS_JMX = "jmx";
+
+    private final PackageProperties properties;
+
+    HookConfiguration(final PackageProperties properties) {
+        this.properties = properties;
+    }
+
+    static HookConfiguration from(final InstallContext context) {
+        return new HookConfiguration(context.getPackage().getProperties());
+    }
+
+    String get(final String key, final String defaultValue) {
+        final String value = properties == null ? null : properties.getProperty(PREFIX + key);
+        return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+    }
+
+    boolean getBoolean(final String key, final boolean defaultValue) {
+        final String value = get(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    long getLong(final String key, final long defaultValue) {
+        final String value = get(key, null);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring invalid value '{}' for package property {}{}", new Object[]{value, PREFIX, key});
+            }
+        }
+        return defaultValue;
+    }
+
+    int getInt(final String key, final int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+}
@@ -0,0 +1,69 @@
+package net.distilledcode.tools;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+/**
+ * Helpers for the repository nodes in which the hook keeps state
+ * across installations (below the configured
+ * {@link HookConfiguration#STATE_ROOT state root}).
+ * <br>
+ * Index definition paths are flattened into escaped node names, rather
+ * than mirrored as a tree, because Oak treats any node called
+ * {@code oak:index} as a container of index definitions.
+ */
+final class HookState {
+
+    static final String NT_STATE = "oak:Unstructured";
+
+    private static final String ILLEGAL_CHARACTERS = "%/:[]*|";
+
+    private HookState() {
+    }
+
+    static Node getOrCreateNode(final Session session, final String path) throws RepositoryException {
+        if (session.nodeExists(path)) {
+            return session.getNode(path);
+        }
+        final int pos = path.lastIndexOf('/');
+        final Node parent = pos == 0
+                ? session.getRootNode()
+                : getOrCreateNode(session, path.substring(0, pos));
+        return parent.addNode(path.substring(pos + 1), NT_STATE);
+    }
+
+    /**
+     * A separate session of the installing user, for state that is saved
+     * immediately rather than with the installation.
+     *
+     * @param session the installation's session
+     * @return a new session, to be logged out by the caller
+     * @throws RepositoryException if the user cannot be impersonated
+     */
+    static Session impersonate(final Session session) throws RepositoryException {
+        return session.impersonate(new SimpleCredentials(session.getUserID(), new char[0]));
+    }
+
+    /**
+     * Escape a repository path, such that it can be used as a node name.
+     * E.g. {@code /oak:index/foo} becomes {@code %2Foak%3Aindex%2Ffoo}.
+     *
+     * @param path the path to escape
+     * @return a valid node name
+     */
+    static String escapeName(final String path) {
+        final StringBuilder name = new StringBuilder(path.length() + 16);
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (ILLEGAL_CHARACTERS.indexOf(c) != -1) {
+                name.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0x0f, 16)));
+            } else {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,294 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Updates a {@code lucene} index with a {@link PartialIndexer} if its
+ * definition's changes only add property rules, i.e. nodes
+ * {@code indexRules/<nodeType>/properties/<rule>}.
+ * <br>
+ * Only the nodes of the rules' node types below the definition's
+ * {@code includedPaths}, which have at least one of the added properties,
+ * are passed to the partial indexer. They are found by a node type query,
+ * which is answered by Oak's node type index. Rules matching properties
+ * by regular expression or by relative path are not supported, changes
+ * adding them are reindexed.
+ * <br>
+ * Oak indexes a node by the first of the {@code indexRules} matching its
+ * type, hence the changes are reindexed as well if an earlier rule can
+ * match nodes of an added rule's type, if either type is a mixin behind
+ * another rule, or if the type is {@code nt:base}, whose nodes could only
+ * be found by traversing the repository. Rules with {@code inherited=false}
+ * only match nodes of their primary type, and added rules with
+ * {@code index=false} do not add any fields.
+ */
+final class IncrementalIndexer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IncrementalIndexer.class);
+
+    private static final String INDEX_RULES = "indexRules";
+
+    private static final String PROPERTIES = "properties";
+
+    private static final String PN_NAME = "name";
+
+    private static final String PN_IS_REGEXP = "isRegexp";
+
+    private static final String PN_EXCLUDED_PATHS = "excludedPaths";
+
+    private static final String PN_INDEX = "index";
+
+    private static final String PN_INHERITED = "inherited";
+
+    private static final String PN_TYPE = "type";
+
+    private static final String PN_PROPERTY_INDEX = "propertyIndex";
+
+    private static final String PN_ANALYZED = "analyzed";
+
+    private static final String PN_NODE_SCOPE_INDEX = "nodeScopeIndex";
+
+    private static final String PN_ORDERED = "ordered";
+
+    private static final String NT_BASE = "nt:base";
+
+    private static final String JCR_PRIMARY_TYPE = "jcr:primaryType";
+
+    private final Session session;
+
+    private final PartialIndexer indexer;
+
+    IncrementalIndexer(final Session session, final PartialIndexer indexer) {
+        this.session = session;
+        this.indexer = indexer;
+    }
+
+    /**
+     * Index the properties added by the changes, if the changes only add
+     * property rules.
+     *
+     * @param definition the installed definition
+     * @param changes the changes of the definition
+     * @return {@code true} if the index was updated, {@code false} if it
+     *         needs to be reindexed
+     * @throws RepositoryException if the index cannot be updated
+     */
+    boolean index(final Node definition, final List<DefinitionChange> changes) throws RepositoryException {
+        final Set<String> rulePaths = getAddedPropertyRules(changes);
+        if (rulePaths == null) {
+            return false;
+        }
+        final Map<String, Set<PropertyRule>> propertiesByType = new LinkedHashMap<String, Set<PropertyRule>>();
+        for (final String rulePath : rulePaths) {
+            final Node rule = definition.getNode(rulePath);
+            if (getBoolean(rule, PN_IS_REGEXP, false)) {
+                return false;
+            }
+            final String name = rule.hasProperty(PN_NAME) ? rule.getProperty(PN_NAME).getString() : rule.getName();
+            if (name.indexOf('/') != -1) {
+                return false;
+            }
+            if (!getBoolean(rule, PN_INDEX, true)) {
+                continue;
+            }
+            final String nodeType = rulePath.split("/")[1];
+            if (!propertiesByType.containsKey(nodeType)) {
+                propertiesByType.put(nodeType, new LinkedHashSet<PropertyRule>());
+            }
+            propertiesByType.get(nodeType).add(new PropertyRule(nodeType, name,
+                    rule.hasProperty(PN_TYPE) ? rule.getProperty(PN_TYPE).getString() : PropertyRule.TYPE_UNDEFINED,
+                    getBoolean(rule, PN_PROPERTY_INDEX, false), getBoolean(rule, PN_ANALYZED, false),
+                    getBoolean(rule, PN_NODE_SCOPE_INDEX, false), getBoolean(rule, PN_ORDERED, false)));
+        }
+
+        final String indexPath = definition.getPath();
+        for (final String nodeType : propertiesByType.keySet()) {
+            if (!isFirstMatchingRule(definition, nodeType)) {
+                LOG.info("Nodes of type {} can match another rule of index at {}, it is reindexed",
+                        nodeType, indexPath);
+                return false;
+            }
+        }
+        final List<String> excludedPaths = getStrings(definition, PN_EXCLUDED_PATHS);
+        long count = 0;
+        for (final Map.Entry<String, Set<PropertyRule>> entry : propertiesByType.entrySet()) {
+            final boolean inherited = getBoolean(definition.getNode(INDEX_RULES + "/" + entry.getKey()),
+                    PN_INHERITED, true);
+            for (final String root : ReindexCostEstimator.getIncludedPaths(definition)) {
+                if (!session.nodeExists(root)) {
+                    continue;
+                }
+                final NodeIterator nodes;
+                try {
+                    nodes = query(entry.getKey(), root);
+                } catch (InvalidQueryException e) {
+                    LOG.warn("Cannot find nodes of type {} for index at {}, it is reindexed",
+                            new Object[]{entry.getKey(), indexPath, e});
+                    return false;
+                }
+                while (nodes.hasNext()) {
+                    final Node node = nodes.nextNode();
+                    if (isExcluded(node.getPath(), excludedPaths)
+                            || !inherited && !entry.getKey().equals(node.getPrimaryNodeType().getName())) {
+                        continue;
+                    }
+                    final Map<PropertyRule, String[]> fields = getFields(node, entry.getValue());
+                    if (!fields.isEmpty()) {
+                        indexer.addFields(indexPath, node.getPath(), fields);
+                        count++;
+                    }
+                }
+            }
+        }
+        if (!indexer.commit(indexPath)) {
+            return false;
+        }
+        LOG.info("Added properties {} of {} nodes to index at {}", new Object[]{propertiesByType, count, indexPath});
+        return true;
+    }
+
+    private NodeIterator query(final String nodeType, final String root) throws RepositoryException {
+        final QueryManager queryManager = session.getWorkspace().getQueryManager();
+        final String statement = "SELECT * FROM [" + nodeType.replace("]", "]]") + "] AS n";
+        final Query query = queryManager.createQuery("/".equals(root)
+                ? statement
+                : statement + " WHERE ISDESCENDANTNODE(n, [" + root.replace("]", "]]") + "])", Query.JCR_SQL2);
+        return query.execute().getNodes();
+    }
+
+    /**
+     * Whether the rule of a node type is the first rule of the definition
+     * matching the nodes of that type, and its nodes can be queried.
+     */
+    private boolean isFirstMatchingRule(final Node definition, final String nodeType) throws RepositoryException {
+        if (NT_BASE.equals(nodeType)) {
+            return false;
+        }
+        final NodeTypeManager nodeTypeManager = session.getWorkspace().getNodeTypeManager();
+        try {
+            final NodeType type = nodeTypeManager.getNodeType(nodeType);
+            final NodeIterator rules = definition.getNode(INDEX_RULES).getNodes();
+            while (rules.hasNext()) {
+                final Node rule = rules.nextNode();
+                if (nodeType.equals(rule.getName())) {
+                    return !type.isMixin() || getBoolean(rule, PN_INHERITED, true);
+                }
+                final NodeType earlier = nodeTypeManager.getNodeType(rule.getName());
+                if (type.isMixin() || earlier.isMixin()
+                        || type.isNodeType(earlier.getName()) || earlier.isNodeType(nodeType)) {
+                    return false;
+                }
+            }
+        } catch (NoSuchNodeTypeException e) {
+            LOG.debug("Unknown node type in index rules of {}", definition.getPath(), e);
+        }
+        return false;
+    }
+
+    /**
+     * The paths of the added property rules, relative to the definition,
+     * or {@code null} if the changes do not only add property rules.
+     */
+    private static Set<String> getAddedPropertyRules(final List<DefinitionChange> changes) {
+        final Set<String> rulePaths = new LinkedHashSet<String>();
+        for (final DefinitionChange change : changes) {
+            if (change.getType() == DefinitionChange.Type.NODE_ADDED && isPropertyRule(change.getPath())) {
+                rulePaths.add(change.getPath());
+            }
+        }
+        if (rulePaths.isEmpty()) {
+            return null;
+        }
+        for (final DefinitionChange change : changes) {
+            if (!isWithin(change.getPath(), rulePaths) && !isAddedRulesContainer(change)) {
+                return null;
+            }
+        }
+        return rulePaths;
+    }
+
+    private static boolean isPropertyRule(final String path) {
+        final String[] segments = path.split("/");
+        return segments.length == 4 && INDEX_RULES.equals(segments[0]) && PROPERTIES.equals(segments[2]);
+    }
+
+    /**
+     * A {@code properties} node added along with its first rules.
+     */
+    private static boolean isAddedRulesContainer(final DefinitionChange change) {
+        final String[] segments = change.getPath().split("/");
+        return segments.length == 3 && INDEX_RULES.equals(segments[0]) && PROPERTIES.equals(segments[2])
+                && (change.getType() == DefinitionChange.Type.NODE_ADDED
+                || change.getType() == DefinitionChange.Type.PROPERTY_ADDED
+                && JCR_PRIMARY_TYPE.equals(change.getPropertyName()));
+    }
+
+    private static boolean isWithin(final String path, final Set<String> roots) {
+        for (final String root : roots) {
+            if (path.equals(root) || path.startsWith(root + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isExcluded(final String path, final List<String> excludedPaths) {
+        for (final String excluded : excludedPaths) {
+            if (path.equals(excluded) || path.startsWith(excluded + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<PropertyRule, String[]> getFields(final Node node, final Set<PropertyRule> rules)
+            throws RepositoryException {
+        final Map<PropertyRule, String[]> fields = new LinkedHashMap<PropertyRule, String[]>();
+        for (final PropertyRule rule : rules) {
+            if (node.hasProperty(rule.getName())) {
+                fields.put(rule, getStrings(node, rule.getName()).toArray(new String[0]));
+            }
+        }
+        return fields;
+    }
+
+    private static boolean getBoolean(final Node node, final String name, final boolean defaultValue)
+            throws RepositoryException {
+        return node.hasProperty(name) ? node.getProperty(name).getBoolean() : defaultValue;
+    }
+
+    private static List<String> getStrings(final Node node, final String name) throws RepositoryException {
+        final List<String> strings = new ArrayList<String>();
+        if (node.hasProperty(name)) {
+            final Property property = node.getProperty(name);
+            if (property.isMultiple()) {
+                for (final Value value : property.getValues()) {
+                    strings.add(value.getString());
+                }
+            } else {
+                strings.add(property.getString());
+            }
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,36 @@
+package net.distilledcode.tools;
+
+import java.util.List;
+
+/**
+ * Decides how an index needs to be updated after its definition was
+ * changed by a package installation (see
+ * {@link HookConfiguration#CLASSIFIER}).
+ * <br>
+ * Implementations need a public no-argument constructor.
+ */
+public interface IndexChangeClassifier {
+
+    enum Action {
+        /**
+         * The index is not affected by the changes.
+         */
+        NONE,
+        /**
+         * The changed definition needs to be reloaded ({@code refresh=true}).
+         */
+        REFRESH,
+        /**
+         * The index needs to be rebuilt ({@code reindex=true}).
+         */
+        REINDEX
+    }
+
+    /**
+     * @param indexType the {@code type} of the installed index definition,
+     *                  or {@code null} if it has none
+     * @param changes the changes of the definition, never empty
+     * @return the action required for the changes
+     */
+    Action classify(String indexType, List<DefinitionChange> changes);
+}
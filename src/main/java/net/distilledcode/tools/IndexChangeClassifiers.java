@@ -0,0 +1,30 @@
+package net.distilledcode.tools;
+
+/**
+ * Creates {@link IndexChangeClassifier}s by name, as configured for the
+ * hook (see {@link HookConfiguration#CLASSIFIER}) or passed to the
+ * {@link ReindexImpactScanner}.
+ */
+final class IndexChangeClassifiers {
+
+    private IndexChangeClassifiers() {
+    }
+
+    /**
+     * @param name {@value HookConfiguration#CLASSIFIER_DEFAULT} or the name
+     *             of a class implementing {@link IndexChangeClassifier}
+     * @return the classifier
+     * @throws IllegalArgumentException if the class cannot be instantiated
+     */
+    static IndexChangeClassifier create(final String name) {
+        if (HookConfiguration.CLASSIFIER_DEFAULT.equals(name)) {
+            return new DefaultIndexChangeClassifier();
+        }
+        try {
+            return (IndexChangeClassifier) IndexChangeClassifiers.class.getClassLoader()
+                    .loadClass(name).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot create change classifier " + name + ": " + e, e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.distilledcode.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The changes a package installation made to a single index definition,
+ * and the action the hook took in response.
+ * <br>
+ * Node paths are relative to the definition node, the definition node
+ * itself has the empty path. A definition that was added or deleted as
+ * a whole is reported as a single added or deleted node with the empty
+ * path.
+ */
+public final class IndexDefinitionChanges {
+
+    private final String path;
+
+    private final List<DefinitionChange> changes;
+
+    private final IndexChangeClassifier.Action action;
+
+    IndexDefinitionChanges(final String path, final List<DefinitionChange> changes,
+                           final IndexChangeClassifier.Action action) {
+        this.path = path;
+        this.changes = Collections.unmodifiableList(new ArrayList<DefinitionChange>(changes));
+        this.action = action;
+    }
+
+    /**
+     * @return the path of the index definition
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return all node and property changes, in document order
+     */
+    public List<DefinitionChange> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return the action taken for the index
+     */
+    public IndexChangeClassifier.Action getAction() {
+        return action;
+    }
+
+    public Set<String> getAddedNodes() {
+        return getNodes(DefinitionChange.Type.NODE_ADDED);
+    }
+
+    public Set<String> getDeletedNodes() {
+        return getNodes(DefinitionChange.Type.NODE_REMOVED);
+    }
+
+    /**
+     * @return the paths of existing nodes whose properties changed
+     */
+    public Set<String> getUpdatedNodes() {
+        final Set<String> added = getAddedNodes();
+        final Set<String> nodes = new LinkedHashSet<String>();
+        for (final DefinitionChange change : changes) {
+            if (change.getPropertyName() != null && !added.contains(change.getPath())) {
+                nodes.add(change.getPath());
+            }
+        }
+        return nodes;
+    }
+
+    private Set<String> getNodes(final DefinitionChange.Type type) {
+        final Set<String> nodes = new LinkedHashSet<String>();
+        for (final DefinitionChange change : changes) {
+            if (change.getType() == type) {
+                nodes.add(change.getPath());
+            }
+        }
+        return nodes;
+    }
+
+    @Override
+    public String toString() {
+        return path + " " + changes + " (" + action + ")";
+    }
+}
@@ -0,0 +1,138 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.PathFilterSet;
+import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the index definitions covered by a package's workspace filter
+ * without walking the filter's coverage (see
+ * {@link HookConfiguration#DISCOVERY}).
+ * <br>
+ * For each filter root, the definition containing the root (e.g.
+ * {@code /oak:index/foo} for the root {@code /oak:index/foo/bar}) is
+ * looked up directly. Definitions below the root, including definitions
+ * in nested {@code oak:index} nodes, are found by querying for
+ * {@code oak:QueryIndexDefinition} nodes. Only definitions that are
+ * direct children of an {@code oak:index} node and contained in the
+ * filter are returned.
+ * <br>
+ * Oak's node type index answers the query only if it covers
+ * {@code oak:QueryIndexDefinition}. The stock {@code /oak:index/nodetype}
+ * covers all node types, but repositories restricting its
+ * {@code declaringNodeTypes} need to add the type and reindex the index,
+ * otherwise the query traverses the content below the root. The query's
+ * plan is logged, with a warning if it traverses.
+ */
+final class IndexDefinitionFinder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexDefinitionFinder.class);
+
+    private static final String OAK_INDEX = "/oak:index/";
+
+    private static final String QUERY_INDEX_DEFINITION = "oak:QueryIndexDefinition";
+
+    private static final String PLAN = "plan";
+
+    private static final String TRAVERSE = "/* traverse ";
+
+    private final Session session;
+
+    IndexDefinitionFinder(final Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @param filter the package's workspace filter
+     * @return the paths of the existing index definitions covered by the filter
+     * @throws RepositoryException if the repository cannot be queried
+     */
+    Set<String> find(final WorkspaceFilter filter) throws RepositoryException {
+        final Set<String> paths = new HashSet<String>();
+        final QueryManager queryManager = session.getWorkspace().getQueryManager();
+        for (final PathFilterSet filterSet : filter.getFilterSets()) {
+            final String root = filterSet.getRoot();
+            if (!session.nodeExists(root)) {
+                continue;
+            }
+            final String definitionPath = getDefinitionPath(root);
+            if (definitionPath != null) {
+                // the root is within a definition, there are no definitions below it
+                if (isDefinition(session.getNode(definitionPath))) {
+                    paths.add(definitionPath);
+                }
+                continue;
+            }
+            final String plan = getPlan(root);
+            if (plan.contains(TRAVERSE)) {
+                LOG.warn("Finding index definitions below {} traverses the repository, add {} to the "
+                        + "declaringNodeTypes of /oak:index/nodetype and reindex it: {}",
+                        new Object[]{root, QUERY_INDEX_DEFINITION, plan});
+            } else {
+                LOG.debug("Finding index definitions below {}: {}", root, plan);
+            }
+            final Query query = queryManager.createQuery(createStatement(root), Query.JCR_SQL2);
+            final NodeIterator nodes = query.execute().getNodes();
+            while (nodes.hasNext()) {
+                final Node node = nodes.nextNode();
+                final String path = node.getPath();
+                if (isDefinitionPath(path) && filter.contains(path)) {
+                    paths.add(path);
+                }
+            }
+        }
+        LOG.debug("Found index definitions {}", paths);
+        return paths;
+    }
+
+    /**
+     * @param root the root below which definitions are queried
+     * @return the plan of the query for definitions below the root
+     * @throws RepositoryException if the repository cannot be queried
+     */
+    String getPlan(final String root) throws RepositoryException {
+        final QueryManager queryManager = session.getWorkspace().getQueryManager();
+        final RowIterator rows = queryManager.createQuery("explain " + createStatement(root), Query.JCR_SQL2)
+                .execute().getRows();
+        return rows.hasNext() ? rows.nextRow().getValue(PLAN).getString() : "";
+    }
+
+    private static String createStatement(final String root) {
+        final String statement = "SELECT * FROM [" + QUERY_INDEX_DEFINITION + "] AS d";
+        return "/".equals(root)
+                ? statement
+                : statement + " WHERE ISDESCENDANTNODE(d, [" + root.replace("]", "]]") + "])";
+    }
+
+    private static boolean isDefinition(final Node node) throws RepositoryException {
+        return node.isNodeType(QUERY_INDEX_DEFINITION);
+    }
+
+    /**
+     * The path of the definition at or above {@code path}, or {@code null}.
+     */
+    private static String getDefinitionPath(final String path) {
+        final int pos = path.lastIndexOf(OAK_INDEX);
+        if (pos == -1) {
+            return null;
+        }
+        final int end = path.indexOf('/', pos + OAK_INDEX.length());
+        return end == -1 ? path : path.substring(0, end);
+    }
+
+    private static boolean isDefinitionPath(final String path) {
+        final int pos = path.lastIndexOf(OAK_INDEX);
+        return pos != -1 && path.indexOf('/', pos + OAK_INDEX.length()) == -1;
+    }
+}
@@ -0,0 +1,377 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.util.DocViewProperty;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Computes a canonical, order-independent digest of an index definition
+ * subtree. Two definitions have the same fingerprint if they consist of
+ * the same properties (name, type and values) and the same child nodes,
+ * regardless of the order in which properties or child nodes are stored.
+ * <br>
+ * The exception are children whose order matters to Oak: the rules below
+ * {@code indexRules}, which are matched in order, and the regular
+ * expression property definitions ({@code isRegexp=true}) below a rule's
+ * {@code properties}, of which the first matching one applies. Their
+ * position among their (hidden items excluded) siblings is part of the
+ * fingerprint.
+ * <br>
+ * The properties managed by the hook ({@code reindex} and
+ * {@code reindexCount}) as well as hidden items (names starting with
+ * {@code ":"}) are not part of the fingerprint.
+ * <br>
+ * Each node's digest is the hash of the sum of its entries' digests,
+ * which makes the result independent of iteration order without having
+ * to collect and sort names. The tree is walked once, and all buffers are
+ * re-used across nodes of the same depth. Instances are therefore not
+ * thread-safe.
+ */
+final class IndexDefinitionFingerprint {
+
+    static final Set<String> IGNORED_PROPERTIES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            OakReindexInstallHook.PN_REINDEX,
+            OakReindexInstallHook.PN_REINDEX_COUNT
+    )));
+
+    private static final String ALGORITHM = "SHA-1";
+
+    private static final byte PROPERTY_ENTRY = 'P';
+
+    private static final byte NODE_ENTRY = 'N';
+
+    private static final String INDEX_RULES = "indexRules";
+
+    private static final String PROPERTIES = "properties";
+
+    private static final String IS_REGEXP = "isRegexp";
+
+    private static final int UNORDERED = 0;
+
+    private static final int ORDERED = 1;
+
+    private static final int REGEXP_ORDERED = 2;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest;
+
+    private final int length;
+
+    private final byte[] scratch = new byte[512];
+
+    private final byte[] entry;
+
+    private byte[][] accumulators = new byte[0][];
+
+    private byte[][] results = new byte[0][];
+
+    private String[] names = new String[0];
+
+    IndexDefinitionFingerprint() {
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported by this JVM", e);
+        }
+        length = digest.getDigestLength();
+        entry = new byte[length];
+    }
+
+    /**
+     * Compute the fingerprint of the subtree rooted at {@code definition}.
+     *
+     * @param definition the index definition node
+     * @return the hex encoded fingerprint
+     * @throws RepositoryException if the subtree cannot be read
+     */
+    String compute(final Node definition) throws RepositoryException {
+        digestNode(definition, 0);
+        return toHex(results[0]);
+    }
+
+    /**
+     * Compute the fingerprint of a definition tree that was read from
+     * a content package. The result is comparable to the fingerprint
+     * of the same definition in the repository.
+     *
+     * @param definition the index definition tree
+     * @return the hex encoded fingerprint
+     */
+    String compute(final DefinitionNode definition) {
+        digestNode(definition, 0);
+        return toHex(results[0]);
+    }
+
+    static boolean isIgnored(final String name) {
+        return name.startsWith(":") || IGNORED_PROPERTIES.contains(name);
+    }
+
+    private void digestNode(final Node node, final int depth) throws RepositoryException {
+        final byte[] accumulator = buffers(depth);
+        Arrays.fill(accumulator, (byte) 0);
+
+        final PropertyIterator properties = node.getProperties();
+        while (properties.hasNext()) {
+            final Property property = properties.nextProperty();
+            final String name = property.getName();
+            if (isIgnored(name)) {
+                continue;
+            }
+            startProperty(name, property.getType());
+            if (property.isMultiple()) {
+                final Value[] values = property.getValues();
+                updateInt(values.length);
+                for (final Value value : values) {
+                    updateValue(value);
+                }
+            } else {
+                updateInt(-1);
+                updateValue(property.getValue());
+            }
+            finishEntry(accumulator);
+        }
+
+        final int order = getOrder(depth);
+        int position = 0;
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            final String name = child.getName();
+            if (name.startsWith(":")) {
+                continue;
+            }
+            final boolean positioned = order == ORDERED || order == REGEXP_ORDERED && child.hasProperty(IS_REGEXP)
+                    && child.getProperty(IS_REGEXP).getBoolean();
+            buffers(depth + 1);
+            names[depth + 1] = name;
+            digestNode(child, depth + 1);
+            childEntry(name, positioned ? position++ : -1, depth, accumulator);
+        }
+
+        finishNode(depth, accumulator);
+    }
+
+    private void digestNode(final DefinitionNode node, final int depth) {
+        final byte[] accumulator = buffers(depth);
+        Arrays.fill(accumulator, (byte) 0);
+
+        for (final DocViewProperty property : node.getProperties()) {
+            if (isIgnored(property.name)) {
+                continue;
+            }
+            startProperty(property.name, property.type);
+            updateInt(property.isMulti ? property.values.length : -1);
+            for (final String value : property.values) {
+                updateString(value);
+            }
+            finishEntry(accumulator);
+        }
+
+        final int order = getOrder(depth);
+        int position = 0;
+        for (final DefinitionNode child : node.getChildren()) {
+            if (child.getName().startsWith(":")) {
+                continue;
+            }
+            final boolean positioned = order == ORDERED || order == REGEXP_ORDERED && isRegexp(child);
+            buffers(depth + 1);
+            names[depth + 1] = child.getName();
+            digestNode(child, depth + 1);
+            childEntry(child.getName(), positioned ? position++ : -1, depth, accumulator);
+        }
+
+        finishNode(depth, accumulator);
+    }
+
+    private void startProperty(final String name, final int type) {
+        digest.reset();
+        digest.update(PROPERTY_ENTRY);
+        updateString(name);
+        updateInt(type);
+    }
+
+    /**
+     * Whether the position of the children of the node at the given depth
+     * is part of the fingerprint. The names of the node and its ancestors
+     * are taken from the walk, the definition itself is at depth 0.
+     */
+    private int getOrder(final int depth) {
+        if (depth > 0 && INDEX_RULES.equals(names[depth])) {
+            return ORDERED;
+        }
+        if (depth > 1 && PROPERTIES.equals(names[depth]) && INDEX_RULES.equals(names[depth - 2])) {
+            return REGEXP_ORDERED;
+        }
+        return UNORDERED;
+    }
+
+    /**
+     * FileVault reorders nodes without reporting it, hence definitions
+     * whose fingerprint depends on the order of their children need to
+     * be checked even if the import did not report them.
+     *
+     * @param definition the index definition tree
+     * @return {@code true} if more than one child's position is part of the fingerprint
+     */
+    static boolean hasOrderedChildren(final DefinitionNode definition) {
+        final DefinitionNode indexRules = definition.getChild(INDEX_RULES);
+        if (indexRules == null) {
+            return false;
+        }
+        if (indexRules.getChildren().size() > 1) {
+            return true;
+        }
+        for (final DefinitionNode rule : indexRules.getChildren()) {
+            final DefinitionNode properties = rule.getChild(PROPERTIES);
+            int regexps = 0;
+            if (properties != null) {
+                for (final DefinitionNode property : properties.getChildren()) {
+                    if (isRegexp(property) && ++regexps > 1) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRegexp(final DefinitionNode node) {
+        final DocViewProperty property = node.getProperty(IS_REGEXP);
+        return property != null && !property.isMulti && Boolean.parseBoolean(property.values[0]);
+    }
+
+    /**
+     * @param position the child's position among its siblings, or
+     *                 {@code -1} if its order does not matter
+     */
+    private void childEntry(final String name, final int position, final int depth, final byte[] accumulator) {
+        digest.reset();
+        digest.update(NODE_ENTRY);
+        updateString(name);
+        if (position != -1) {
+            updateInt(position);
+        }
+        digest.update(results[depth + 1], 0, length);
+        finishEntry(accumulator);
+    }
+
+    private void finishNode(final int depth, final byte[] accumulator) {
+        digest.reset();
+        digest.update(accumulator, 0, length);
+        finish(results[depth]);
+    }
+
+    private byte[] buffers(final int depth) {
+        if (depth >= accumulators.length) {
+            final int size = Math.max(depth + 2, accumulators.length * 2);
+            accumulators = Arrays.copyOf(accumulators, size);
+            results = Arrays.copyOf(results, size);
+            names = Arrays.copyOf(names, size);
+            for (int i = 0; i < size; i++) {
+                if (accumulators[i] == null) {
+                    accumulators[i] = new byte[length];
+                    results[i] = new byte[length];
+                }
+            }
+        }
+        return accumulators[depth];
+    }
+
+    private void finishEntry(final byte[] accumulator) {
+        finish(entry);
+        // add the entry to the accumulator as an unsigned big-endian number,
+        // which is commutative and therefore independent of iteration order
+        int carry = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            final int sum = (accumulator[i] & 0xff) + (entry[i] & 0xff) + carry;
+            accumulator[i] = (byte) sum;
+            carry = sum >>> 8;
+        }
+    }
+
+    private void finish(final byte[] target) {
+        try {
+            digest.digest(target, 0, length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void updateValue(final Value value) throws RepositoryException {
+        if (value.getType() == PropertyType.BINARY) {
+            final Binary binary = value.getBinary();
+            try {
+                updateStream(binary.getStream());
+            } finally {
+                binary.dispose();
+            }
+        } else {
+            updateString(value.getString());
+        }
+    }
+
+    private void updateStream(final InputStream stream) throws RepositoryException {
+        try {
+            try {
+                int read;
+                while ((read = stream.read(scratch)) != -1) {
+                    digest.update(scratch, 0, read);
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to read binary value", e);
+        }
+    }
+
+    private void updateInt(final int value) {
+        scratch[0] = (byte) (value >>> 24);
+        scratch[1] = (byte) (value >>> 16);
+        scratch[2] = (byte) (value >>> 8);
+        scratch[3] = (byte) value;
+        digest.update(scratch, 0, 4);
+    }
+
+    private void updateString(final String value) {
+        final int len = value.length();
+        updateInt(len);
+        int pos = 0;
+        for (int i = 0; i < len; i++) {
+            if (pos == scratch.length) {
+                digest.update(scratch, 0, pos);
+                pos = 0;
+            }
+            final char c = value.charAt(i);
+            scratch[pos++] = (byte) (c >>> 8);
+            scratch[pos++] = (byte) c;
+        }
+        digest.update(scratch, 0, pos);
+    }
+
+    static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >>> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
@@ -2,31 +2,96 @@ package net.distilledcode.tools;
 
 import org.apache.jackrabbit.vault.fs.api.ProgressTrackerListener;
 
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
-import static java.util.Arrays.asList;
-
 /**
  * A ProgressTrackerListener implementation that collects index
  * definition paths. It records all index definition paths for
  * which its {@link #onMessage(Mode, String, String)} method is
  * called, as long as the {@code action} is in the set of actions
  * passed to the constructor.
+ * <br>
+ * The listener is called for every item of a package installation,
+ * therefore it avoids allocations for messages that do not yield a new
+ * definition path. Actions are matched against a bitmask, and recorded
+ * definitions are kept in a trie of path segments, which is compared
+ * against the message's path in place.
+ * <br>
+ * Optionally the listener can be restricted to a set of index container
+ * paths (i.e. paths of {@code oak:index} nodes). In that case messages
+ * for paths outside of these containers are discarded as soon as the
+ * first unknown path segment is encountered. Below additional search
+ * roots, definitions are recorded below any {@code oak:index} node, such
+ * that containers created by the installation are not missed.
  */
 public class IndexDefinitionListener implements ProgressTrackerListener {
 
     private static final String OAK_INDEX = "/oak:index/";
 
-    private Set<String> paths;
+    private final Set<String> paths;
+
+    private final BitSet actions;
+
+    private final Set<String> otherActions;
+
+    private final boolean restricted;
 
-    private List<String> actions;
+    private final Segment root = new Segment("", 0);
 
     public IndexDefinitionListener(final String... actions) {
-        this.actions = asList(actions);
+        this(null, actions);
+    }
+
+    /**
+     * Create a listener that only records index definitions within
+     * the given index containers.
+     *
+     * @param indexContainerPaths paths of {@code oak:index} nodes, or
+     *                            {@code null} to record definitions
+     *                            below any {@code oak:index} node
+     * @param actions the actions to record
+     */
+    public IndexDefinitionListener(final Collection<String> indexContainerPaths, final String... actions) {
+        this(indexContainerPaths, Collections.<String>emptySet(), actions);
+    }
+
+    /**
+     * Create a listener that only records index definitions within
+     * the given index containers, or below any {@code oak:index} node
+     * below the given search roots.
+     *
+     * @param indexContainerPaths paths of {@code oak:index} nodes, or
+     *                            {@code null} to record definitions
+     *                            below any {@code oak:index} node
+     * @param searchRoots paths below which definitions are recorded
+     *                    below any {@code oak:index} node
+     * @param actions the actions to record
+     */
+    public IndexDefinitionListener(final Collection<String> indexContainerPaths,
+                                   final Collection<String> searchRoots, final String... actions) {
         this.paths = new HashSet<String>();
+        this.actions = new BitSet();
+        this.otherActions = new HashSet<String>();
+        for (final String action : actions) {
+            if (action.length() == 1) {
+                this.actions.set(action.charAt(0));
+            } else {
+                this.otherActions.add(action);
+            }
+        }
+        this.restricted = indexContainerPaths != null;
+        if (restricted) {
+            for (final String path : indexContainerPaths) {
+                root.add(path, path.length()).container = true;
+            }
+            for (final String path : searchRoots) {
+                root.add(path, path.length()).searchRoot = true;
+            }
+        }
     }
 
     /**
@@ -41,10 +106,14 @@ public class IndexDefinitionListener implements ProgressTrackerListener {
 
     @Override
     public void onMessage(final Mode mode, final String action, final String path) {
-        if (actions.contains(action)) {
-            final String mappedPath = getDefinitionPath(path);
-            if (mappedPath != null) {
-                paths.add(mappedPath);
+        if (isRecorded(action)) {
+            final int end = restricted ? getContainedDefinitionEnd(path) : getDefinitionEnd(path);
+            if (end != -1) {
+                final Segment definition = root.add(path, end);
+                if (!definition.definition) {
+                    definition.definition = true;
+                    paths.add(path.substring(0, end));
+                }
             }
         }
     }
@@ -54,25 +123,163 @@ public class IndexDefinitionListener implements ProgressTrackerListener {
         // ignore
     }
 
-    private static String getDefinitionPath(final String path) {
-        // returns the direct child of a node called "oak:index" or null
+    private boolean isRecorded(final String action) {
+        if (action == null) {
+            return false;
+        }
+        return action.length() == 1 ? actions.get(action.charAt(0)) : otherActions.contains(action);
+    }
+
+    private static int getDefinitionEnd(final String path) {
+        return getDefinitionEnd(path, 0);
+    }
+
+    private static int getDefinitionEnd(final String path, final int from) {
+        // returns the end index of the direct child of a node called "oak:index" or -1
         // e.g.
         // /oak:index/foo/bar        -> /oak:index/foo
         // /oak:index/foo            -> /oak:index/foo
-        // /oak:index                -> null
+        // /oak:index                -> -1
         // /foobar/oak:index/foo/bar -> /foobar/oak:index/foo
         // /foobar/oak:index/foo     -> /foobar/oak:index/foo
-        // /foobar/oak:index         -> null
-        final int pos = path.indexOf(OAK_INDEX);
+        // /foobar/oak:index         -> -1
+        final int pos = path.indexOf(OAK_INDEX, from);
         if (pos != -1) {
             final int end = path.indexOf('/', pos + OAK_INDEX.length());
+            return end == -1 ? path.length() : end;
+        }
+        return -1;
+    }
+
+    private int getContainedDefinitionEnd(final String path) {
+        // walks the path's segments along the trie of index containers,
+        // the segment following a container is the definition name, below
+        // a search root any oak:index node is a container
+        Segment segment = root;
+        int start = 1;
+        while (start < path.length()) {
+            if (segment.searchRoot) {
+                return getDefinitionEnd(path, start - 1);
+            }
+            int end = path.indexOf('/', start);
             if (end == -1) {
-                return path;
-            } else {
-                return path.substring(0, end);
+                end = path.length();
+            }
+            if (segment.container) {
+                return end;
+            }
+            segment = segment.child(path, start, end);
+            if (segment == null) {
+                return -1;
             }
+            start = end + 1;
         }
-        return null;
+        return -1;
     }
 
+    /**
+     * A path segment in the trie of recorded paths. Children are kept in
+     * an open addressing hash table, keyed by the same hash as
+     * {@link String#hashCode()}, which allows looking up a segment from a
+     * region of a path without creating a substring.
+     */
+    private static final class Segment {
+
+        private static final Segment[] NO_CHILDREN = new Segment[0];
+
+        private final String name;
+
+        private final int hash;
+
+        private Segment[] children = NO_CHILDREN;
+
+        private int size;
+
+        private boolean container;
+
+        private boolean searchRoot;
+
+        private boolean definition;
+
+        Segment(final String name, final int hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+
+        Segment child(final String path, final int start, final int end) {
+            return size == 0 ? null : child(path, start, end, hash(path, start, end));
+        }
+
+        /**
+         * Get or add the segments for the path up to index {@code end}.
+         */
+        Segment add(final String path, final int end) {
+            Segment segment = this;
+            int start = 1;
+            while (start < end) {
+                int next = path.indexOf('/', start);
+                if (next == -1 || next > end) {
+                    next = end;
+                }
+                final int childHash = hash(path, start, next);
+                Segment child = segment.child(path, start, next, childHash);
+                if (child == null) {
+                    child = segment.addChild(new Segment(path.substring(start, next), childHash));
+                }
+                segment = child;
+                start = next + 1;
+            }
+            return segment;
+        }
+
+        private Segment child(final String path, final int start, final int end, final int childHash) {
+            if (size == 0) {
+                return null;
+            }
+            final int length = end - start;
+            final int mask = children.length - 1;
+            int i = childHash & mask;
+            Segment child;
+            while ((child = children[i]) != null) {
+                if (child.hash == childHash && child.name.length() == length
+                        && path.regionMatches(start, child.name, 0, length)) {
+                    return child;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private Segment addChild(final Segment child) {
+            if ((size + 1) * 2 > children.length) {
+                final Segment[] old = children;
+                children = new Segment[Math.max(4, old.length * 2)];
+                for (final Segment segment : old) {
+                    if (segment != null) {
+                        insert(segment);
+                    }
+                }
+            }
+            insert(child);
+            size++;
+            return child;
+        }
+
+        private void insert(final Segment child) {
+            final int mask = children.length - 1;
+            int i = child.hash & mask;
+            while (children[i] != null) {
+                i = (i + 1) & mask;
+            }
+            children[i] = child;
+        }
+
+        private static int hash(final String path, final int start, final int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + path.charAt(i);
+            }
+            return h;
+        }
+    }
 }
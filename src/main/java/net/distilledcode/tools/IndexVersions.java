@@ -0,0 +1,322 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.ImportMode;
+import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
+import org.apache.jackrabbit.vault.util.DocViewProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+
+/**
+ * Builds changed index definitions side by side with the installed ones,
+ * following Oak's naming of versioned definitions (see
+ * {@link HookConfiguration#VERSIONING}).
+ * <br>
+ * Instead of reindexing a changed definition in place, its installed
+ * content is copied to the next custom version, e.g. {@code foo} to
+ * {@code foo-custom-1}, {@code foo-2} to {@code foo-2-custom-1} and
+ * {@code foo-2-custom-1} to {@code foo-2-custom-2}, which Oak builds as a
+ * new index. The changed definition is reset to its content before the
+ * installation, such that queries keep using its index, whose hidden
+ * data is not touched. If the changed definition was already copied to a
+ * version with identical content, the version is reused.
+ * <br>
+ * The versions are recorded below {@code <stateRoot>/versions}, one node
+ * per superseded definition. Once a version has been built, i.e. Oak has
+ * reset its {@code reindex} property and set its {@code reindexCount},
+ * the superseded definition is retired by setting its type to
+ * {@value #TYPE_DISABLED}. Versions are checked at the end of each
+ * installation and, optionally, by a {@link ReindexQueueWatcher}. Writes
+ * are transient.
+ * <br>
+ * A version is not part of the package. If the package filter contains
+ * its path with {@link ImportMode#REPLACE}, the next installation would
+ * remove it, hence the changed definition is reindexed in place instead.
+ * A retired definition is still owned by the package, which enables it
+ * again when it is installed again. Unless the hook resets the changed
+ * definition to its previous content anyway, it is retired again.
+ */
+final class IndexVersions {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexVersions.class);
+
+    static final String PN_PATH = "path";
+
+    static final String PN_VERSION = "version";
+
+    static final String PN_STATE = "state";
+
+    static final String STATE_BUILDING = "building";
+
+    static final String STATE_RETIRED = "retired";
+
+    static final String PN_TYPE = "type";
+
+    static final String TYPE_DISABLED = "disabled";
+
+    private static final String JCR_PRIMARY_TYPE = "jcr:primaryType";
+
+    private static final String JCR_MIXIN_TYPES = "jcr:mixinTypes";
+
+    private static final Pattern CUSTOM_VERSION = Pattern.compile("(.+)-custom-(\\d+)");
+
+    private final Session session;
+
+    private final String versionsPath;
+
+    IndexVersions(final Session session, final String stateRoot) {
+        this.session = session;
+        this.versionsPath = stateRoot + "/versions";
+    }
+
+    /**
+     * Build the definitions marked for reindexing as new versions instead,
+     * their original {@code reindex} property is restored. Definitions
+     * whose version would be removed by the package are left marked for
+     * reindexing. Retired definitions that are not reset are retired
+     * again.
+     *
+     * @param records the records by path
+     * @param filter the package's filter
+     * @return the paths of the versions
+     * @throws RepositoryException if the definitions cannot be written
+     */
+    Set<String> create(final Map<String, ReindexRecord> records, final WorkspaceFilter filter)
+            throws RepositoryException {
+        final Set<String> versionPaths = new TreeSet<String>();
+        for (final ReindexRecord record : new TreeMap<String, ReindexRecord>(records).values()) {
+            if (record.getNode(session) == null) {
+                continue;
+            }
+            if (!record.modified) {
+                retireAgain(record.path);
+                continue;
+            }
+            final String versionPath = create(record.path, record.snapshot, filter);
+            if (versionPath != null) {
+                versionPaths.add(versionPath);
+                record.modified = false;
+                record.reindex = record.originalReindex;
+            }
+        }
+        return versionPaths;
+    }
+
+    /**
+     * Copy a changed definition to a new version and reset it to its
+     * previous content.
+     *
+     * @param path the changed definition's path
+     * @param previous the definition's content before the installation
+     * @param filter the package's filter
+     * @return the path of the version, or {@code null} if the package
+     *         would remove the version and the definition is left as is
+     * @throws RepositoryException if the definitions cannot be written
+     */
+    String create(final String path, final DefinitionNode previous, final WorkspaceFilter filter)
+            throws RepositoryException {
+        final Node definition = session.getNode(path);
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final String installedFingerprint = fingerprint.compute(definition);
+        final String entryPath = versionsPath + "/" + HookState.escapeName(path);
+        String versionPath = session.nodeExists(entryPath) && session.getNode(entryPath).hasProperty(PN_VERSION)
+                ? session.getNode(entryPath).getProperty(PN_VERSION).getString()
+                : null;
+        if (versionPath != null && session.nodeExists(versionPath)
+                && installedFingerprint.equals(fingerprint.compute(session.getNode(versionPath)))) {
+            LOG.info("Index definition at {} is already built as {}", path, versionPath);
+        } else {
+            final Node parent = definition.getParent();
+            final String versionName = getNextVersionName(parent, definition.getName());
+            versionPath = ("/".equals(parent.getPath()) ? "" : parent.getPath()) + "/" + versionName;
+            if (isRemovedByPackage(filter, versionPath)) {
+                LOG.info("Reindexing changed index definition at {} in place, the package filter would remove {}",
+                        path, versionPath);
+                return null;
+            }
+            final DefinitionNode installed = DefinitionDiff.snapshot(definition);
+            final Node version = parent.addNode(versionName,
+                    getPrimaryType(installed, definition.getPrimaryNodeType().getName()));
+            write(version, installed);
+            version.setProperty(PN_REINDEX, true);
+            final Node entry = HookState.getOrCreateNode(session, entryPath);
+            entry.setProperty(PN_PATH, path);
+            entry.setProperty(PN_VERSION, versionPath);
+            entry.setProperty(PN_STATE, STATE_BUILDING);
+            LOG.info("Building changed index definition at {} as {}", path, versionPath);
+        }
+        write(definition, previous);
+        return versionPath;
+    }
+
+    /**
+     * Nodes contained in a filter root imported with
+     * {@link ImportMode#REPLACE} are removed unless they are part of the
+     * package.
+     */
+    private static boolean isRemovedByPackage(final WorkspaceFilter filter, final String path) {
+        return filter != null && filter.contains(path) && filter.getImportMode(path) == ImportMode.REPLACE;
+    }
+
+    /**
+     * Disable a retired definition again if the installation enabled it.
+     */
+    private void retireAgain(final String path) throws RepositoryException {
+        final String entryPath = versionsPath + "/" + HookState.escapeName(path);
+        if (!session.nodeExists(entryPath)
+                || !STATE_RETIRED.equals(session.getNode(entryPath).getProperty(PN_STATE).getString())) {
+            return;
+        }
+        final Node definition = session.getNode(path);
+        if (!definition.hasProperty(PN_TYPE) || !TYPE_DISABLED.equals(definition.getProperty(PN_TYPE).getString())) {
+            definition.setProperty(PN_TYPE, TYPE_DISABLED);
+            LOG.info("Index definition at {} was enabled by the package, retired it again in favour of {}", path,
+                    session.getNode(entryPath).getProperty(PN_VERSION).getString());
+        }
+    }
+
+    boolean isEmpty() throws RepositoryException {
+        if (!session.nodeExists(versionsPath)) {
+            return true;
+        }
+        final NodeIterator entries = session.getNode(versionsPath).getNodes();
+        while (entries.hasNext()) {
+            if (STATE_BUILDING.equals(entries.nextNode().getProperty(PN_STATE).getString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retire the definitions whose versions have been built.
+     *
+     * @return {@code true} if any definition was retired
+     */
+    boolean retire() throws RepositoryException {
+        if (!session.nodeExists(versionsPath)) {
+            return false;
+        }
+        boolean modified = false;
+        final NodeIterator entries = session.getNode(versionsPath).getNodes();
+        while (entries.hasNext()) {
+            final Node entry = entries.nextNode();
+            if (!STATE_BUILDING.equals(entry.getProperty(PN_STATE).getString())) {
+                continue;
+            }
+            final String path = entry.getProperty(PN_PATH).getString();
+            final String versionPath = entry.getProperty(PN_VERSION).getString();
+            if (!session.nodeExists(path) || !session.nodeExists(versionPath)) {
+                LOG.info("Removing version {} of index definition at {}, either no longer exists", versionPath, path);
+                entry.remove();
+                modified = true;
+            } else if (isBuilt(session.getNode(versionPath))) {
+                session.getNode(path).setProperty(PN_TYPE, TYPE_DISABLED);
+                entry.setProperty(PN_STATE, STATE_RETIRED);
+                LOG.info("Index at {} is built, retired the index at {}", versionPath, path);
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * @param parent the parent of the definition
+     * @param name the name of the definition
+     * @return the name of the definition's next custom version that does not exist
+     */
+    static String getNextVersionName(final Node parent, final String name) throws RepositoryException {
+        final Matcher matcher = CUSTOM_VERSION.matcher(name);
+        final String base = matcher.matches() ? matcher.group(1) : name;
+        int version = matcher.matches() ? Integer.parseInt(matcher.group(2)) + 1 : 1;
+        while (parent.hasNode(base + "-custom-" + version)) {
+            version++;
+        }
+        return base + "-custom-" + version;
+    }
+
+    private static boolean isBuilt(final Node version) throws RepositoryException {
+        return version.hasProperty(PN_REINDEX_COUNT)
+                && !(version.hasProperty(PN_REINDEX) && version.getProperty(PN_REINDEX).getBoolean());
+    }
+
+    /**
+     * Update the visible content of a node to a snapshot. Only properties
+     * that differ are written, children are updated recursively and only
+     * removed if the snapshot does not contain them, such that hidden
+     * items below them, e.g. index data, are kept. The properties managed
+     * by the hook are kept as well.
+     */
+    private static void write(final Node node, final DefinitionNode snapshot) throws RepositoryException {
+        final String primaryType = getPrimaryType(snapshot, null);
+        if (primaryType != null && !primaryType.equals(node.getPrimaryNodeType().getName())) {
+            node.setPrimaryType(primaryType);
+        }
+        final List<Property> removed = new ArrayList<Property>();
+        final PropertyIterator properties = node.getProperties();
+        while (properties.hasNext()) {
+            final Property property = properties.nextProperty();
+            if (snapshot.getProperty(property.getName()) == null && isWritable(property)) {
+                removed.add(property);
+            }
+        }
+        for (final Property property : removed) {
+            property.remove();
+        }
+        for (final DocViewProperty property : snapshot.getProperties()) {
+            if (JCR_PRIMARY_TYPE.equals(property.name) || JCR_MIXIN_TYPES.equals(property.name)
+                    || node.hasProperty(property.name) && !isWritable(node.getProperty(property.name))) {
+                continue;
+            }
+            // only writes values that differ
+            property.apply(node);
+        }
+        final List<Node> removedChildren = new ArrayList<Node>();
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            if (snapshot.getChild(child.getName()) == null) {
+                removedChildren.add(child);
+            }
+        }
+        for (final Node child : removedChildren) {
+            child.remove();
+        }
+        for (final DefinitionNode child : snapshot.getChildren()) {
+            write(node.hasNode(child.getName())
+                    ? node.getNode(child.getName())
+                    : node.addNode(child.getName(), getPrimaryType(child, "nt:unstructured")), child);
+        }
+        if (node.getPrimaryNodeType().hasOrderableChildNodes()) {
+            for (final DefinitionNode child : snapshot.getChildren()) {
+                node.orderBefore(child.getName(), null);
+            }
+        }
+    }
+
+    private static boolean isWritable(final Property property) throws RepositoryException {
+        return !IndexDefinitionFingerprint.isIgnored(property.getName()) && !property.getDefinition().isProtected();
+    }
+
+    private static String getPrimaryType(final DefinitionNode snapshot, final String defaultType) {
+        final DocViewProperty primaryType = snapshot.getProperty(JCR_PRIMARY_TYPE);
+        return primaryType == null || primaryType.values.length == 0 ? defaultType : primaryType.values[0];
+    }
+}
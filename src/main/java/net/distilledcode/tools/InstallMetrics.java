@@ -0,0 +1,118 @@
+package net.distilledcode.tools;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters collected by the {@link OakReindexInstallHook}
+ * during a single package installation, which are published to the
+ * configured {@link MetricsSink}s at the end of the installation.
+ * <br>
+ * Timers are named after the phase and step they measure, e.g.
+ * {@value #PREPARE_COVERAGE}, and are recorded in nanoseconds. Counters
+ * count definitions and listener messages.
+ */
+public final class InstallMetrics {
+
+    public static final String PREPARE = "prepare";
+
+    public static final String PREPARE_COVERAGE = "prepare.coverage";
+
+    public static final String PREPARE_PROPERTIES = "prepare.properties";
+
+    public static final String IMPORT = "import";
+
+    public static final String INSTALLED = "installed";
+
+    public static final String INSTALLED_CHANGES = "installed.changes";
+
+    public static final String END_RESTORE = "end.restore";
+
+    public static final String END_SAVE = "end.save";
+
+    public static final String WAIT = "wait";
+
+    public static final String LISTENER = "listener";
+
+    public static final String DEFINITIONS_SCANNED = "definitions.scanned";
+
+    public static final String DEFINITIONS_SKIPPED = "definitions.skipped";
+
+    public static final String DEFINITIONS_CHANGED = "definitions.changed";
+
+    public static final String DEFINITIONS_REINDEXED = "definitions.reindexed";
+
+    public static final String DEFINITIONS_REFRESHED = "definitions.refreshed";
+
+    public static final String DEFINITIONS_DEFERRED = "definitions.deferred";
+
+    public static final String DEFINITIONS_QUEUED = "definitions.queued";
+
+    public static final String DEFINITIONS_RESTORED = "definitions.restored";
+
+    public static final String LISTENER_MESSAGES = "listener.messages";
+
+    private final String packageId;
+
+    private final Map<String, Long> timers = new LinkedHashMap<String, Long>();
+
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+    InstallMetrics(final String packageId) {
+        this.packageId = packageId;
+    }
+
+    public String getPackageId() {
+        return packageId;
+    }
+
+    /**
+     * @return the timers in nanoseconds, keyed by name
+     */
+    public Map<String, Long> getTimers() {
+        return Collections.unmodifiableMap(timers);
+    }
+
+    /**
+     * @return the counters, keyed by name
+     */
+    public Map<String, Long> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    /**
+     * Add the time elapsed since {@code startNanos} to a timer.
+     *
+     * @return the current time, i.e. the start of the next measurement
+     */
+    long time(final String name, final long startNanos) {
+        final long now = System.nanoTime();
+        addTime(name, now - startNanos);
+        return now;
+    }
+
+    void addTime(final String name, final long nanos) {
+        final Long value = timers.get(name);
+        timers.put(name, value == null ? nanos : value + nanos);
+    }
+
+    void count(final String name, final long delta) {
+        final Long value = counters.get(name);
+        counters.put(name, value == null ? delta : value + delta);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("packageId=").append(packageId);
+        for (final Map.Entry<String, Long> timer : timers.entrySet()) {
+            builder.append(' ').append(timer.getKey()).append(".ms=")
+                    .append(TimeUnit.NANOSECONDS.toMillis(timer.getValue()));
+        }
+        for (final Map.Entry<String, Long> counter : counters.entrySet()) {
+            builder.append(' ').append(counter.getKey()).append('=').append(counter.getValue());
+        }
+        return builder.toString();
+    }
+}
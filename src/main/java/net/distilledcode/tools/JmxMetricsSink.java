@@ -0,0 +1,141 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the metrics of installations as an MXBean registered with
+ * the platform MBean server as {@value #OBJECT_NAME}. The MXBean shows
+ * the metrics of the last installation and totals across installations.
+ * <br>
+ * FileVault loads the hook in a new class loader for each installation,
+ * such that the registered MXBean may belong to an earlier one. Each
+ * instance therefore registers its own MXBean, which takes over the
+ * metrics of the registered one.
+ */
+public class JmxMetricsSink implements MetricsSink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxMetricsSink.class);
+
+    public static final String OBJECT_NAME = "net.distilledcode.tools:type=OakReindexHook,name=metrics";
+
+    private final Metrics metrics;
+
+    public JmxMetricsSink() {
+        metrics = register();
+    }
+
+    @Override
+    public void publish(final InstallMetrics metrics) {
+        this.metrics.update(metrics);
+    }
+
+    private static synchronized Metrics register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final Metrics metrics = new Metrics();
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                try {
+                    metrics.takeOver(JMX.newMXBeanProxy(server, name, OakReindexHookMetricsMXBean.class));
+                } catch (RuntimeException e) {
+                    // registered by an earlier version of the hook
+                    LOG.debug("Cannot take over the metrics of MBean {}", OBJECT_NAME, e);
+                }
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            LOG.warn("Failed to register MBean {}", OBJECT_NAME, e);
+        }
+        return metrics;
+    }
+
+    private static final class Metrics implements OakReindexHookMetricsMXBean {
+
+        private long installations;
+
+        private String lastPackageId;
+
+        private Map<String, Long> lastTimers = Collections.emptyMap();
+
+        private Map<String, Long> lastCounters = Collections.emptyMap();
+
+        private final Map<String, Long> totalTimers = new LinkedHashMap<String, Long>();
+
+        private final Map<String, Long> totalCounters = new LinkedHashMap<String, Long>();
+
+        synchronized void takeOver(final OakReindexHookMetricsMXBean previous) {
+            installations = previous.getInstallations();
+            lastPackageId = previous.getLastPackageId();
+            lastTimers = new LinkedHashMap<String, Long>(previous.getLastTimers());
+            lastCounters = new LinkedHashMap<String, Long>(previous.getLastCounters());
+            totalTimers.putAll(previous.getTotalTimers());
+            totalCounters.putAll(previous.getTotalCounters());
+        }
+
+        synchronized void update(final InstallMetrics metrics) {
+            installations++;
+            lastPackageId = metrics.getPackageId();
+            lastTimers = toMillis(metrics.getTimers());
+            lastCounters = new LinkedHashMap<String, Long>(metrics.getCounters());
+            add(totalTimers, lastTimers);
+            add(totalCounters, lastCounters);
+        }
+
+        @Override
+        public synchronized long getInstallations() {
+            return installations;
+        }
+
+        @Override
+        public synchronized String getLastPackageId() {
+            return lastPackageId;
+        }
+
+        @Override
+        public synchronized Map<String, Long> getLastTimers() {
+            return lastTimers;
+        }
+
+        @Override
+        public synchronized Map<String, Long> getLastCounters() {
+            return lastCounters;
+        }
+
+        @Override
+        public synchronized Map<String, Long> getTotalTimers() {
+            return new LinkedHashMap<String, Long>(totalTimers);
+        }
+
+        @Override
+        public synchronized Map<String, Long> getTotalCounters() {
+            return new LinkedHashMap<String, Long>(totalCounters);
+        }
+
+        private static Map<String, Long> toMillis(final Map<String, Long> timers) {
+            final Map<String, Long> millis = new LinkedHashMap<String, Long>();
+            for (final Map.Entry<String, Long> timer : timers.entrySet()) {
+                millis.put(timer.getKey(), TimeUnit.NANOSECONDS.toMillis(timer.getValue()));
+            }
+            return millis;
+        }
+
+        private static void add(final Map<String, Long> totals, final Map<String, Long> values) {
+            for (final Map.Entry<String, Long> value : values.entrySet()) {
+                final Long total = totals.get(value.getKey());
+                totals.put(value.getKey(), total == null ? value.getValue() : total + value.getValue());
+            }
+        }
+    }
+}
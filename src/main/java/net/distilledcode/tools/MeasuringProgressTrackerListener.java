@@ -0,0 +1,46 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.ProgressTrackerListener;
+
+/**
+ * A ProgressTrackerListener implementation that counts the messages
+ * passed to its delegate and measures the time spent in the delegate.
+ * It is only used if metrics are enabled, because measuring the time
+ * is more expensive than most listeners.
+ */
+final class MeasuringProgressTrackerListener implements ProgressTrackerListener {
+
+    private final ProgressTrackerListener delegate;
+
+    private long messages;
+
+    private long nanos;
+
+    MeasuringProgressTrackerListener(final ProgressTrackerListener delegate) {
+        this.delegate = delegate;
+    }
+
+    long getMessages() {
+        return messages;
+    }
+
+    long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public void onMessage(final Mode mode, final String action, final String path) {
+        final long start = System.nanoTime();
+        delegate.onMessage(mode, action, path);
+        nanos += System.nanoTime() - start;
+        messages++;
+    }
+
+    @Override
+    public void onError(final Mode mode, final String path, final Exception e) {
+        final long start = System.nanoTime();
+        delegate.onError(mode, path, e);
+        nanos += System.nanoTime() - start;
+        messages++;
+    }
+}
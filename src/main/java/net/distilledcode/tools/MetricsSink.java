@@ -0,0 +1,17 @@
+package net.distilledcode.tools;
+
+/**
+ * Receives the {@link InstallMetrics} of each package installation (see
+ * {@link HookConfiguration#METRICS}).
+ * <br>
+ * Implementations need a public no-argument constructor.
+ */
+public interface MetricsSink {
+
+    /**
+     * Called at the end of each installation.
+     *
+     * @param metrics the installation's metrics
+     */
+    void publish(InstallMetrics metrics);
+}
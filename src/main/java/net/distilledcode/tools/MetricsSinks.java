@@ -0,0 +1,63 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the {@link MetricsSink}s configured by
+ * {@link HookConfiguration#METRICS} and publishes to them.
+ */
+final class MetricsSinks {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsSinks.class);
+
+    private MetricsSinks() {
+    }
+
+    /**
+     * @param value comma separated {@value HookConfiguration#METRICS_LOG},
+     *              {@value HookConfiguration#METRICS_JMX} or class names
+     * @return the sinks, sinks that cannot be created are left out
+     */
+    static List<MetricsSink> create(final String value) {
+        final List<MetricsSink> sinks = new ArrayList<MetricsSink>();
+        for (final String name : value.split(",")) {
+            final String sink = name.trim();
+            if (sink.length() == 0) {
+                continue;
+            }
+            if (HookConfiguration.METRICS_LOG.equals(sink)) {
+                sinks.add(new Slf4jMetricsSink());
+            } else if (HookConfiguration.METRICS_JMX.equals(sink)) {
+                sinks.add(new JmxMetricsSink());
+            } else {
+                try {
+                    final Class<?> sinkClass = MetricsSinks.class.getClassLoader().loadClass(sink);
+                    sinks.add((MetricsSink) sinkClass.newInstance());
+                } catch (Exception e) {
+                    LOG.warn("Cannot create metrics sink {}", sink, e);
+                }
+            }
+        }
+        return sinks;
+    }
+
+    /**
+     * Publish the metrics to each sink. Failing sinks are logged.
+     *
+     * @param sinks the sinks
+     * @param metrics the metrics of an installation
+     */
+    static void publish(final List<MetricsSink> sinks, final InstallMetrics metrics) {
+        for (final MetricsSink sink : sinks) {
+            try {
+                sink.publish(metrics);
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to publish metrics to {}", sink, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.distilledcode.tools;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing the metrics of installations with the
+ * {@link OakReindexInstallHook}. Timers are in milliseconds.
+ */
+public interface OakReindexHookMetricsMXBean {
+
+    long getInstallations();
+
+    String getLastPackageId();
+
+    Map<String, Long> getLastTimers();
+
+    Map<String, Long> getLastCounters();
+
+    Map<String, Long> getTotalTimers();
+
+    Map<String, Long> getTotalCounters();
+}
@@ -1,7 +1,6 @@
 package net.distilledcode.tools;
 
 import org.apache.jackrabbit.vault.fs.api.ProgressTrackerListener;
-import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
 import org.apache.jackrabbit.vault.fs.io.ImportOptions;
 import org.apache.jackrabbit.vault.packaging.InstallContext;
 import org.apache.jackrabbit.vault.packaging.InstallHook;
@@ -9,13 +8,21 @@ import org.apache.jackrabbit.vault.packaging.PackageException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jcr.Node;
-import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * The OakReindexInstallHook automatically triggers a re-index of
@@ -34,6 +41,16 @@ import java.util.Set;
  * exception of modified index definitions. For them, only the
  * {@code reindexCount} property is restored and the {@code reindex}
  * property is set to {@code true}.
+ * <br>
+ * FileVault reports an update for a definition even if it was merely
+ * rewritten with identical content (e.g. re-ordered child nodes). In
+ * order to avoid needless reindexing, a fingerprint of each definition
+ * is recorded in the prepare phase and compared to the fingerprint of
+ * the installed definition. Only definitions whose fingerprints differ
+ * are marked for reindexing.
+ * <br>
+ * All further behaviour is optional and configured by package
+ * properties, see {@link HookConfiguration}.
  */
 public class OakReindexInstallHook implements InstallHook {
 
@@ -43,113 +60,523 @@ public class OakReindexInstallHook implements InstallHook {
 
     public static final String PN_REINDEX_COUNT = "reindexCount";
 
+    public static final String PN_REFRESH = "refresh";
+
+    private HookConfiguration configuration;
+
+    private String stateRoot;
+
+    private String packageId;
+
+    private boolean dryRun;
+
+    private boolean failed;
+
     private Map<String, ReindexRecord> reindexRecords;
 
-    private final IndexDefinitionListener modificationCollector = new IndexDefinitionListener("A", "U", "D");
+    private ReindexProperties reindexProperties;
+
+    private Map<String, String> packageDigests;
+
+    private final Map<String, String> fingerprints = new HashMap<String, String>();
+
+    private FingerprintStore fingerprintStore;
+
+    private DefinitionDiscovery discovery;
+
+    private IndexDefinitionListener modificationCollector;
+
+    private CompoundProgressTrackerListener progressListener;
+
+    private IndexChangeClassifier classifier;
+
+    private PartialIndexer partialIndexer;
+
+    private final Map<String, IndexDefinitionChanges> definitionChanges =
+            new LinkedHashMap<String, IndexDefinitionChanges>();
+
+    private ReindexQueue reindexQueue;
+
+    private Set<String> reindexingPaths;
+
+    private ReindexLeases leases;
+
+    private ReindexJournal journal;
+
+    private ReindexPlan plan;
+
+    private InstallMetrics metrics;
+
+    private List<MetricsSink> metricsSinks;
+
+    private MeasuringProgressTrackerListener measuringListener;
+
+    private long importStart;
+
+    /**
+     * Scan content packages for index definitions that would be
+     * reindexed, without repository (see {@link ReindexImpactScanner}).
+     *
+     * @param args {@code [--threads <n>] [--budget <nodes>]
+     *             [--classifier <default|class name>] <snapshot> <package|directory>...}
+     * @throws Exception if the snapshot cannot be read
+     */
+    public static void main(final String[] args) throws Exception {
+        final Writer report = new OutputStreamWriter(System.out, "UTF-8");
+        System.exit(ReindexImpactScanner.run(args, report, System.err));
+    }
 
     @Override
     public void execute(InstallContext context) throws PackageException {
         try {
-            final Session session = context.getSession();
             switch (context.getPhase()) {
                 case PREPARE:
-                    final Set<String> definitionPaths = collectIndexDefinitionPaths(context);
-                    reindexRecords = removeReindexProperties(session, definitionPaths);
-                    registerChangeListener(context, modificationCollector);
+                    prepare(context);
                     break;
                 case INSTALLED:
-                    final Set<String> modifiedIndexDefinitions = modificationCollector.getIndexDefinitionPaths();
-                    reindexRecords = handleChangedIndexDefinitions(
-                            session, reindexRecords, modifiedIndexDefinitions);
-                case END:
-                    restoreUnchangedProperties(session, reindexRecords);
-                    reindexRecords.clear();
-                    if (session.hasPendingChanges()) {
-                        session.save();
+                    if (!dryRun) {
+                        installed(context.getSession());
                     }
                     break;
+                case END:
+                    end(context.getSession());
+                    break;
+                case PREPARE_FAILED:
+                    // FileVault does not call END after a failed prepare phase
+                    failed = true;
+                    closeProgressListener();
+                    releaseLeases();
+                    clearJournal();
+                    break;
+                case INSTALL_FAILED:
+                    failed = true;
+                    closeProgressListener();
+                    break;
             }
         } catch (RepositoryException e) {
             throw new PackageException(e);
         }
     }
 
-    private static void registerChangeListener(final InstallContext context, final ProgressTrackerListener listener) {
-        final ImportOptions options = context.getOptions();
-        options.setListener(CompoundProgressTrackerListener.create(options.getListener(), listener));
+    /**
+     * Find the definitions, remove their {@code reindex} and
+     * {@code reindexCount} properties and register the listener tracking
+     * changes during the import.
+     */
+    private void prepare(final InstallContext context) throws RepositoryException, PackageException {
+        final long prepareStart = System.nanoTime();
+        final Session session = context.getSession();
+        configuration = HookConfiguration.from(context);
+        packageId = String.valueOf(context.getPackage().getId());
+        stateRoot = configuration.get(HookConfiguration.STATE_ROOT, HookConfiguration.DEFAULT_STATE_ROOT);
+        metrics = new InstallMetrics(packageId);
+        metricsSinks = MetricsSinks.create(configuration.get(HookConfiguration.METRICS, ""));
+        measuringListener = null;
+        reindexRecords = null;
+        failed = false;
+        classifier = createClassifier(configuration.get(HookConfiguration.CLASSIFIER, null));
+        discovery = new DefinitionDiscovery(context);
+        plan = null;
+        dryRun = configuration.getBoolean(HookConfiguration.DRY_RUN, false);
+        if (dryRun) {
+            // FileVault only simulates the import, changes are planned from the archive instead
+            context.getOptions().setDryRun(true);
+            plan = createPlan(session);
+            writePlan(plan, configuration.get(HookConfiguration.PLAN_FILE, null));
+            return;
+        }
+        // this installation advances the queue, a new watcher is started at its end
+        ReindexQueueWatcher.stop(session, stateRoot);
+        partialIndexer = createPartialIndexer(configuration.get(HookConfiguration.PARTIAL_INDEXER, null));
+        journal = ReindexJournal.create(configuration, session, stateRoot);
+        if (journal != null) {
+            journal.replay(session);
+        }
+        final boolean archiveDetection = HookConfiguration.DETECTION_ARCHIVE.equals(
+                configuration.get(HookConfiguration.DETECTION, HookConfiguration.DETECTION_IMPORT));
+        final Map<String, DefinitionNode> packageDefinitions = archiveDetection
+                ? discovery.readPackageDefinitions()
+                : null;
+        final Set<String> definitionPaths = archiveDetection
+                ? discovery.findInstalled(packageDefinitions)
+                : discovery.findInstalled(getDiscovery());
+        metrics.time(InstallMetrics.PREPARE_COVERAGE, prepareStart);
+        metrics.count(InstallMetrics.DEFINITIONS_SCANNED, definitionPaths.size());
+        final Set<String> unchangedPaths = new HashSet<String>();
+        fingerprints.clear();
+        if (configuration.getBoolean(HookConfiguration.FINGERPRINT_STORE, false)) {
+            fingerprintStore = new FingerprintStore(session, stateRoot);
+            packageDigests = discovery.getPackageDigests(definitionPaths);
+            unchangedPaths.addAll(fingerprintStore.getUnchanged(packageDigests, fingerprints));
+        } else {
+            fingerprintStore = null;
+            packageDigests = new HashMap<String, String>();
+        }
+        final Set<String> leasedPaths = new HashSet<String>();
+        if (archiveDetection) {
+            final Set<String> changedPaths = new HashSet<String>();
+            unchangedPaths.addAll(discovery.compareWithPackage(definitionPaths, unchangedPaths,
+                    packageDefinitions, fingerprints, changedPaths));
+            createBudget(session).check(changedPaths);
+        }
+        if (HookConfiguration.COORDINATION_LEASE.equals(configuration.get(
+                HookConfiguration.COORDINATION, HookConfiguration.COORDINATION_NONE))) {
+            leases = new ReindexLeases(HookState.impersonate(session), stateRoot, packageId,
+                    configuration.getLong(HookConfiguration.LEASE_DURATION, 3600) * 1000);
+            leasedPaths.addAll(leases.acquire(session, definitionPaths, unchangedPaths, fingerprints));
+            unchangedPaths.addAll(leasedPaths);
+        }
+        metrics.count(InstallMetrics.DEFINITIONS_SKIPPED, unchangedPaths.size());
+        final long propertiesStart = System.nanoTime();
+        final int prepareThreads = configuration.getInt(HookConfiguration.PREPARE_THREADS, 0);
+        final Map<String, ParallelDefinitionReader.Definition> definitions = prepareThreads > 1
+                ? readDefinitions(session, definitionPaths, unchangedPaths, prepareThreads)
+                : null;
+        reindexProperties = new ReindexProperties(session, configuration.getInt(HookConfiguration.BATCH_SIZE, 0));
+        reindexRecords = reindexProperties.remove(definitionPaths, unchangedPaths, fingerprints, definitions);
+        for (final String path : leasedPaths) {
+            reindexRecords.get(path).leased = true;
+        }
+        if (journal != null) {
+            // before FileVault saves any of the removals
+            journal.append(ReindexJournal.entriesOf(reindexRecords.values()));
+        }
+        metrics.time(InstallMetrics.PREPARE_PROPERTIES, propertiesStart);
+        modificationCollector = new IndexDefinitionListener(
+                discovery.getContainerPaths(definitionPaths), discovery.getSearchRoots(), "A", "U", "D");
+        if (!metricsSinks.isEmpty()) {
+            measuringListener = new MeasuringProgressTrackerListener(modificationCollector);
+        }
+        progressListener = registerChangeListener(context,
+                measuringListener != null ? measuringListener : modificationCollector,
+                configuration.getBoolean(HookConfiguration.ASYNC_LISTENER, false)
+                        ? configuration.getInt(HookConfiguration.ASYNC_LISTENER_CAPACITY,
+                                AsyncProgressTrackerListener.DEFAULT_CAPACITY)
+                        : 0);
+        importStart = metrics.time(InstallMetrics.PREPARE, prepareStart);
     }
 
-    private static Map<String, ReindexRecord> handleChangedIndexDefinitions(
-            final Session session, final Map<String, ReindexRecord> records, final Set<String> paths)
-            throws RepositoryException {
+    /**
+     * Decide how the changed definitions are updated and restore the
+     * recorded properties accordingly.
+     */
+    private void installed(final Session session) throws RepositoryException {
+        final long installedStart = System.nanoTime();
+        metrics.addTime(InstallMetrics.IMPORT, installedStart - importStart);
+        // asynchronous listeners must not lag behind the changes handled below
+        progressListener.flush();
+        final Set<String> modifiedIndexDefinitions = modificationCollector.getIndexDefinitionPaths();
+        definitionChanges.clear();
+        definitionChanges.putAll(new DefinitionChangeHandler(session, classifier, partialIndexer)
+                .handle(reindexRecords, modifiedIndexDefinitions));
+        metrics.time(InstallMetrics.INSTALLED_CHANGES, installedStart);
+        metrics.count(InstallMetrics.DEFINITIONS_CHANGED, definitionChanges.size());
+        final IndexVersions indexVersions = new IndexVersions(session, stateRoot);
+        final Set<String> versionPaths = HookConfiguration.VERSIONING_SIDE_BY_SIDE.equals(
+                configuration.get(HookConfiguration.VERSIONING, HookConfiguration.VERSIONING_NONE))
+                ? indexVersions.create(reindexRecords, discovery.getFilter())
+                : Collections.<String>emptySet();
+        final PendingReindexes pendingReindexes = new PendingReindexes(session, stateRoot);
+        createBudget(session).apply(reindexRecords, pendingReindexes, packageId);
+        final ReindexScheduler scheduler = new ReindexScheduler(session,
+                configuration.get(HookConfiguration.SCHEDULE, HookConfiguration.SCHEDULE_ALL),
+                configuration.get(HookConfiguration.LANE, HookConfiguration.DEFAULT_LANE),
+                configuration.get(HookConfiguration.PRIORITY, ""));
+        scheduler.schedule(reindexRecords);
+        final long restoreStart = System.nanoTime();
+        reindexProperties.restore(reindexRecords);
+        metrics.time(InstallMetrics.END_RESTORE, restoreStart);
+        countRecords(reindexRecords);
+        reindexingPaths = getReindexingPaths(reindexRecords, definitionChanges);
+        reindexingPaths.addAll(versionPaths);
+        pendingReindexes.removeCompleted();
+        if (fingerprintStore != null) {
+            // definitions added by the package are recorded as well
+            packageDigests.putAll(discovery.getPackageDigests(modifiedIndexDefinitions));
+            // neither the import nor the hook changed the skipped definitions
+            final Map<String, String> unchangedFingerprints = new HashMap<String, String>();
+            for (final ReindexRecord record : reindexRecords.values()) {
+                if (record.skipped && !modifiedIndexDefinitions.contains(record.path)
+                        && fingerprints.containsKey(record.path)) {
+                    unchangedFingerprints.put(record.path, fingerprints.get(record.path));
+                }
+            }
+            fingerprintStore.store(packageDigests, packageId, unchangedFingerprints);
+        }
+        packageDigests.clear();
+        fingerprints.clear();
+        reindexQueue = new ReindexQueue(session, stateRoot);
+        scheduler.enqueue(reindexQueue, reindexRecords);
+        reindexRecords.clear();
+        reindexQueue.advance();
+        indexVersions.retire();
+        metrics.time(InstallMetrics.INSTALLED, installedStart);
+    }
 
-        final Map<String, ReindexRecord> reindexRecords = new HashMap<String, ReindexRecord>(records);
-        for (final String path : paths) {
-            if (reindexRecords.containsKey(path)) {
-                final ReindexRecord record = reindexRecords.remove(path);
-                record.reindex = true;
-                restoreIndexingProperties(session, path, record);
-                LOG.info("Marked index at {} for reindexing", path);
+    /**
+     * Restore the properties left over by a failed installation, save,
+     * release the leases and the journal and optionally wait for the
+     * reindexing. FileVault calls this phase after every installation.
+     */
+    private void end(final Session session) throws RepositoryException {
+        final long endStart = System.nanoTime();
+        if (reindexRecords != null) {
+            reindexProperties.restore(reindexRecords);
+            if (metrics != null) {
+                countRecords(reindexRecords);
             }
+            reindexRecords.clear();
+        }
+        final long saveStart = System.nanoTime();
+        if (dryRun) {
+            session.refresh(false);
+        } else if (session.hasPendingChanges()) {
+            session.save();
         }
-        return reindexRecords;
+        if (metrics != null) {
+            metrics.addTime(InstallMetrics.END_RESTORE, saveStart - endStart);
+            metrics.time(InstallMetrics.END_SAVE, saveStart);
+        }
+        releaseLeases();
+        clearJournal();
+        if (reindexQueue != null && (!reindexQueue.isEmpty()
+                || !new IndexVersions(session, stateRoot).isEmpty())) {
+            final long pollInterval = configuration.getLong(HookConfiguration.POLL_INTERVAL, 30);
+            if (pollInterval > 0) {
+                ReindexQueueWatcher.start(session, stateRoot, pollInterval * 1000,
+                        configuration.getLong(HookConfiguration.WATCH_TIMEOUT, 86400) * 1000);
+            }
+        }
+        reindexQueue = null;
+        closeProgressListener();
+        if (reindexingPaths != null) {
+            final long waitStart = System.nanoTime();
+            awaitReindexing(session, reindexingPaths, configuration.getLong(HookConfiguration.WAIT_TIMEOUT, 0));
+            if (metrics != null) {
+                metrics.time(InstallMetrics.WAIT, waitStart);
+            }
+            reindexingPaths = null;
+        }
+        publishMetrics();
+    }
+
+    /**
+     * The changes made to index definitions by the last installation,
+     * keyed by definition path. Definitions that were rewritten without
+     * changes are not included.
+     *
+     * @return the changes of each changed index definition
+     */
+    public Map<String, IndexDefinitionChanges> getDefinitionChanges() {
+        return Collections.unmodifiableMap(definitionChanges);
+    }
+
+    /**
+     * The plan computed by the last installation in
+     * {@link HookConfiguration#DRY_RUN dry run} mode.
+     *
+     * @return the plan, or {@code null} if the installation was not a dry run
+     */
+    public ReindexPlan getPlan() {
+        return plan;
+    }
+
+    private String getDiscovery() {
+        return configuration.get(HookConfiguration.DISCOVERY, HookConfiguration.DISCOVERY_COVERAGE);
+    }
+
+    private long getBudget() {
+        return configuration.getLong(HookConfiguration.BUDGET, 0);
     }
 
-    private static void restoreUnchangedProperties(final Session session, final Map<String, ReindexRecord> records)
+    private ReindexCostEstimator createEstimator(final Session session) {
+        return new ReindexCostEstimator(session,
+                configuration.getInt(HookConfiguration.ESTIMATE_PROBES, 32),
+                configuration.getLong(HookConfiguration.ESTIMATE_TIME_LIMIT, 1000));
+    }
+
+    private ReindexBudget createBudget(final Session session) {
+        return new ReindexBudget(session, createEstimator(session), getBudget(),
+                configuration.get(HookConfiguration.BUDGET_ACTION, HookConfiguration.BUDGET_DEFER));
+    }
+
+    /**
+     * Block until the indexes marked for reindexing are reindexed, or
+     * until the timeout elapses. With a timeout of {@code 0}, the
+     * installation does not wait.
+     */
+    private static void awaitReindexing(final Session session, final Set<String> paths, final long timeoutSeconds)
             throws RepositoryException {
+        if (timeoutSeconds <= 0 || paths.isEmpty()) {
+            return;
+        }
+        LOG.info("Waiting up to {}s for reindexing of {}", timeoutSeconds, paths);
+        try {
+            new ReindexCompletionWaiter(session, paths).await(timeoutSeconds * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while waiting for reindexing of {}", paths);
+        }
+    }
 
-        for (final String path : records.keySet()) {
-            final ReindexRecord record = records.get(path);
-            restoreIndexingProperties(session, path, record);
-            LOG.info("Restored unchanged index properties for {}", path);
+    /**
+     * The definitions marked for reindexing, including definitions added
+     * by the package, which Oak indexes on its own.
+     */
+    private static Set<String> getReindexingPaths(final Map<String, ReindexRecord> records,
+                                                  final Map<String, IndexDefinitionChanges> definitionChanges) {
+        final Set<String> paths = new TreeSet<String>();
+        for (final ReindexRecord record : records.values()) {
+            if (record.reindex) {
+                paths.add(record.path);
+            }
+        }
+        for (final String path : definitionChanges.keySet()) {
+            if (!records.containsKey(path)) {
+                paths.add(path);
+            }
         }
+        return paths;
     }
 
-    private static void restoreIndexingProperties(final Session session, final String path, final ReindexRecord record)
-            throws RepositoryException {
+    private void releaseLeases() throws RepositoryException {
+        if (leases != null) {
+            try {
+                leases.release(!failed);
+            } finally {
+                leases.logout();
+                leases = null;
+            }
+        }
+    }
 
-        final String relPath = path.substring(1);
-        if (session.getRootNode().hasNode(relPath)) {
-            final Node definition = session.getNode(path);
-            definition.setProperty(PN_REINDEX, record.reindex);
-            if (record.reindexCount != -1) {
-                definition.setProperty(PN_REINDEX_COUNT, record.reindexCount);
+    /**
+     * The journal is only cleared once the installation is saved, an
+     * installation failing to save is replayed by the next one.
+     */
+    private void clearJournal() throws RepositoryException {
+        if (journal != null) {
+            try {
+                journal.clear();
+            } finally {
+                journal.close();
+                journal = null;
             }
         }
     }
 
-    private static Set<String> collectIndexDefinitionPaths(InstallContext context) throws RepositoryException {
-        final Session session = context.getSession();
-        final WorkspaceFilter filter = context.getPackage().getArchive().getMetaInf().getFilter();
-        final IndexDefinitionListener collector = new IndexDefinitionListener("A");
-        filter.dumpCoverage(session.getRootNode(), collector);
-        return collector.getIndexDefinitionPaths();
+    private void closeProgressListener() {
+        if (progressListener != null) {
+            progressListener.close();
+        }
     }
 
-    private static Map<String, ReindexRecord> removeReindexProperties(final Session session, final Set<String> paths)
-            throws RepositoryException {
+    /**
+     * Publish the metrics of the installation to the configured sinks,
+     * once per installation.
+     */
+    private void publishMetrics() {
+        if (metrics == null) {
+            return;
+        }
+        if (measuringListener != null) {
+            metrics.addTime(InstallMetrics.LISTENER, measuringListener.getNanos());
+            metrics.count(InstallMetrics.LISTENER_MESSAGES, measuringListener.getMessages());
+        }
+        MetricsSinks.publish(metricsSinks, metrics);
+        metrics = null;
+    }
 
-        final Map<String, ReindexRecord> records = new HashMap<String, ReindexRecord>();
-        for (final String path : paths) {
-            final ReindexRecord record = new ReindexRecord();
-            final Node definition = session.getNode(path);
-            if (definition.hasProperty(PN_REINDEX)) {
-                final Property property = definition.getProperty(PN_REINDEX);
-                record.reindex = property.getBoolean();
-                property.remove();
+    private void countRecords(final Map<String, ReindexRecord> records) {
+        for (final ReindexRecord record : records.values()) {
+            metrics.count(InstallMetrics.DEFINITIONS_RESTORED, 1);
+            if (record.queued) {
+                metrics.count(InstallMetrics.DEFINITIONS_QUEUED, 1);
+            } else if (record.modified) {
+                metrics.count(InstallMetrics.DEFINITIONS_REINDEXED, 1);
+            } else if (record.refresh) {
+                metrics.count(InstallMetrics.DEFINITIONS_REFRESHED, 1);
+            } else if (record.deferred) {
+                metrics.count(InstallMetrics.DEFINITIONS_DEFERRED, 1);
             }
-            if (definition.hasProperty(PN_REINDEX_COUNT)) {
-                final Property property = definition.getProperty(PN_REINDEX_COUNT);
-                record.reindexCount = property.getLong();
-                property.remove();
+        }
+    }
+
+    private static CompoundProgressTrackerListener registerChangeListener(
+            final InstallContext context, final ProgressTrackerListener listener, final int asyncCapacity) {
+        final ImportOptions options = context.getOptions();
+        ProgressTrackerListener existingListener = options.getListener();
+        if (existingListener != null && asyncCapacity > 0) {
+            // the existing listener is not needed by the hook, it may lag behind
+            existingListener = new AsyncProgressTrackerListener(existingListener, asyncCapacity);
+        }
+        final CompoundProgressTrackerListener compoundListener =
+                CompoundProgressTrackerListener.create(existingListener, listener);
+        options.setListener(compoundListener);
+        return compoundListener;
+    }
+
+    private ReindexPlan createPlan(final Session session) throws RepositoryException {
+        final Map<String, DefinitionNode> installedDefinitions = new HashMap<String, DefinitionNode>();
+        for (final String path : discovery.findInstalled(getDiscovery())) {
+            installedDefinitions.put(path, DefinitionDiff.snapshot(session.getNode(path)));
+        }
+        return new ReindexPlanner(classifier, getBudget()).plan(packageId, discovery.getFilter(),
+                discovery.readPackageDefinitions(), installedDefinitions, createEstimator(session));
+    }
+
+    private static void writePlan(final ReindexPlan plan, final String file) throws RepositoryException {
+        LOG.info("Reindex plan: {}", plan);
+        if (file == null) {
+            return;
+        }
+        try {
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                plan.writeJson(writer);
+            } finally {
+                writer.close();
             }
-            records.put(path, record);
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to write reindex plan to " + file, e);
         }
-        return records;
     }
 
-    private static class ReindexRecord {
-        boolean reindex = false;
-        long reindexCount = -1;
+    private static Map<String, ParallelDefinitionReader.Definition> readDefinitions(
+            final Session session, final Set<String> paths, final Set<String> unchangedPaths, final int threads)
+            throws RepositoryException {
+        final List<String> changedPaths = new ArrayList<String>();
+        for (final String path : paths) {
+            if (!unchangedPaths.contains(path)) {
+                changedPaths.add(path);
+            }
+        }
+        return new ParallelDefinitionReader(session, threads).read(changedPaths);
+    }
+
+    private static PartialIndexer createPartialIndexer(final String className) {
+        if (className == null) {
+            return null;
+        }
+        try {
+            final Class<?> indexerClass = OakReindexInstallHook.class.getClassLoader().loadClass(className);
+            return (PartialIndexer) indexerClass.newInstance();
+        } catch (Exception e) {
+            LOG.warn("Cannot create partial indexer {}, changed index definitions are reindexed", className, e);
+            return null;
+        }
+    }
+
+    private static IndexChangeClassifier createClassifier(final String className) {
+        if (className == null) {
+            return null;
+        }
+        try {
+            return IndexChangeClassifiers.create(className);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Cannot create change classifier {}, all changed index definitions are reindexed",
+                    className, e.getCause());
+            return null;
+        }
     }
 }
@@ -0,0 +1,148 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.util.PlatformNameFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes digests of the package-side content of index definitions,
+ * i.e. of the raw bytes of all archive entries that may contribute to
+ * a definition. These are the {@code .content.xml} files of the
+ * definition's ancestors (which may contain the definition inline),
+ * an optional {@code <name>.xml} docview file and the definition's
+ * directory with all its descendants.
+ * <br>
+ * The digest is conservative: any change to one of these files changes
+ * the digest, even if the definition itself is not affected. Digests of
+ * individual files are cached, because many definitions usually share
+ * the same {@code .content.xml} file.
+ */
+final class PackageDefinitionDigests {
+
+    private static final String ALGORITHM = "SHA-1";
+
+    private static final String CONTENT_XML = ".content.xml";
+
+    private static final Comparator<Archive.Entry> BY_NAME = new Comparator<Archive.Entry>() {
+        @Override
+        public int compare(final Archive.Entry a, final Archive.Entry b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    private final Archive archive;
+
+    private final Map<String, byte[]> fileDigests = new HashMap<String, byte[]>();
+
+    private final byte[] buffer = new byte[8192];
+
+    PackageDefinitionDigests(final Archive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Compute the package-side digest for an index definition.
+     *
+     * @param definitionPath the repository path of the definition
+     * @return the hex encoded digest or {@code null} if the package does
+     *         not contain any content for the definition
+     * @throws IOException if the archive cannot be read
+     */
+    String getDigest(final String definitionPath) throws IOException {
+        Archive.Entry entry = archive.getJcrRoot();
+        if (entry == null) {
+            return null;
+        }
+
+        final MessageDigest digest = newDigest();
+        final String[] segments = definitionPath.substring(1).split("/");
+        String archivePath = entry.getName();
+        boolean found = false;
+        for (int i = 0; i < segments.length; i++) {
+            final Archive.Entry content = entry.getChild(CONTENT_XML);
+            if (content != null) {
+                update(digest, archivePath + "/" + CONTENT_XML, content);
+                found = true;
+            }
+
+            final String platformName = PlatformNameFormat.getPlatformName(segments[i]);
+            final boolean last = i == segments.length - 1;
+            if (last) {
+                final Archive.Entry docView = entry.getChild(platformName + ".xml");
+                if (docView != null) {
+                    update(digest, archivePath + "/" + docView.getName(), docView);
+                    found = true;
+                }
+            }
+
+            entry = entry.getChild(platformName);
+            if (entry == null) {
+                break;
+            }
+            archivePath = archivePath + "/" + platformName;
+            if (last) {
+                updateTree(digest, archivePath, entry);
+                found = true;
+            }
+        }
+        return found ? IndexDefinitionFingerprint.toHex(digest.digest()) : null;
+    }
+
+    private void updateTree(final MessageDigest digest, final String archivePath, final Archive.Entry entry)
+            throws IOException {
+        if (entry.isDirectory()) {
+            final List<Archive.Entry> children = new ArrayList<Archive.Entry>(entry.getChildren());
+            Collections.sort(children, BY_NAME);
+            for (final Archive.Entry child : children) {
+                updateTree(digest, archivePath + "/" + child.getName(), child);
+            }
+        } else {
+            update(digest, archivePath, entry);
+        }
+    }
+
+    private void update(final MessageDigest digest, final String archivePath, final Archive.Entry entry)
+            throws IOException {
+        byte[] fileDigest = fileDigests.get(archivePath);
+        if (fileDigest == null) {
+            fileDigest = digestFile(entry);
+            fileDigests.put(archivePath, fileDigest);
+        }
+        digest.update(archivePath.getBytes("UTF-8"));
+        digest.update(fileDigest);
+    }
+
+    private byte[] digestFile(final Archive.Entry entry) throws IOException {
+        final MessageDigest digest = newDigest();
+        final InputStream stream = archive.openInputStream(entry);
+        if (stream != null) {
+            try {
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                stream.close();
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported by this JVM", e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package net.distilledcode.tools;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the snapshots and fingerprints of index definitions on a bounded
+ * pool of threads (see {@link HookConfiguration#PREPARE_THREADS}).
+ * <br>
+ * Each thread reads with its own session, impersonating the
+ * installation's user, and takes definitions from a shared queue until
+ * it is empty. Hence the definitions are read from the persisted state:
+ * transient changes of the installation's session are not visible, which
+ * is fine as long as they are limited to the properties ignored by the
+ * {@link IndexDefinitionFingerprint}. All writes remain with the
+ * installation's session.
+ * <br>
+ * Only the walks over the definitions' subtrees are parallelised.
+ * Removing and restoring the {@code reindex} and {@code reindexCount}
+ * properties (see {@link ReindexProperties}) reads and writes them with
+ * the installation's session, which is not thread-safe and holds the
+ * transient state they depend on, hence these steps stay sequential.
+ * They read a few properties per definition rather than its subtree.
+ */
+final class ParallelDefinitionReader {
+
+    private final Session session;
+
+    private final int threads;
+
+    ParallelDefinitionReader(final Session session, final int threads) {
+        this.session = session;
+        this.threads = threads;
+    }
+
+    /**
+     * @param paths the paths of existing definitions
+     * @return the definitions by path
+     * @throws RepositoryException if a definition cannot be read
+     */
+    Map<String, Definition> read(final Collection<String> paths) throws RepositoryException {
+        final Map<String, Definition> definitions = new ConcurrentHashMap<String, Definition>();
+        final Queue<String> queue = new ConcurrentLinkedQueue<String>(paths);
+        final int workers = Math.min(threads, paths.size());
+        if (workers == 0) {
+            return definitions;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws RepositoryException {
+                        read(queue, definitions);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RepositoryException) {
+                throw (RepositoryException) e.getCause();
+            }
+            throw new RepositoryException("Failed to read index definitions", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while reading index definitions", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return definitions;
+    }
+
+    private void read(final Queue<String> queue, final Map<String, Definition> definitions)
+            throws RepositoryException {
+        final Session readSession = session.impersonate(new SimpleCredentials(session.getUserID(), new char[0]));
+        try {
+            final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+            for (String path = queue.poll(); path != null; path = queue.poll()) {
+                final Node node = readSession.getNode(path);
+                definitions.put(path, new Definition(DefinitionDiff.snapshot(node), fingerprint.compute(node)));
+            }
+        } finally {
+            readSession.logout();
+        }
+    }
+
+    static final class Definition {
+
+        final DefinitionNode snapshot;
+
+        final String fingerprint;
+
+        private Definition(final DefinitionNode snapshot, final String fingerprint) {
+            this.snapshot = snapshot;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
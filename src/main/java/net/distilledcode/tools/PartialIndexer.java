@@ -0,0 +1,42 @@
+package net.distilledcode.tools;
+
+import javax.jcr.RepositoryException;
+import java.util.Map;
+
+/**
+ * Adds fields to an existing index, rather than rebuilding it, when a
+ * change of a {@code lucene} index definition only adds property rules
+ * (see {@link HookConfiguration#PARTIAL_INDEXER}).
+ * <br>
+ * The hook finds the nodes matching the added rules and passes their
+ * values to {@link #addFields(String, String, Map)}, along with the rules'
+ * flags. Once all nodes were passed, {@link #commit(String)} is called and
+ * the definition is marked for refresh, such that queries use the added
+ * rules.
+ * <br>
+ * Implementations need a public no-argument constructor.
+ */
+public interface PartialIndexer {
+
+    /**
+     * Add the values of the added properties of a node to the index.
+     *
+     * @param indexPath the path of the index definition
+     * @param nodePath the path of the node
+     * @param fields the string values of the node's added properties,
+     *               keyed by their rule, whose flags tell how to index them
+     * @throws RepositoryException if the index cannot be updated
+     */
+    void addFields(String indexPath, String nodePath, Map<PropertyRule, String[]> fields)
+            throws RepositoryException;
+
+    /**
+     * Make the added fields visible in the index.
+     *
+     * @param indexPath the path of the index definition
+     * @return {@code false} if the index could not be updated, in which
+     *         case it is reindexed
+     * @throws RepositoryException if the index cannot be updated
+     */
+    boolean commit(String indexPath) throws RepositoryException;
+}
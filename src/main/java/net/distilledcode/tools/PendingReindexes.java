@@ -0,0 +1,83 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.Calendar;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+
+/**
+ * Markers for reindexes that were deferred because their estimated cost
+ * exceeded the configured budget (see {@link HookConfiguration#BUDGET}).
+ * <br>
+ * Markers are stored below {@code <stateRoot>/pending}, one node per
+ * definition. An operator triggers the reindex by setting
+ * {@code reindex=true} on the definition. A marker is removed by a later
+ * installation once the definition's {@code reindexCount} has increased,
+ * or once the definition no longer exists. Writes are transient.
+ */
+final class PendingReindexes {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PendingReindexes.class);
+
+    static final String PN_PATH = "path";
+
+    static final String PN_ESTIMATE = "estimate";
+
+    static final String PN_BUDGET = "budget";
+
+    static final String PN_PACKAGE_ID = "packageId";
+
+    static final String PN_DEFERRED = "deferred";
+
+    private final Session session;
+
+    private final String pendingPath;
+
+    PendingReindexes(final Session session, final String stateRoot) {
+        this.session = session;
+        this.pendingPath = stateRoot + "/pending";
+    }
+
+    void add(final String definitionPath, final long reindexCount, final long estimate, final long budget,
+             final String packageId) throws RepositoryException {
+        final Node marker = HookState.getOrCreateNode(session,
+                pendingPath + "/" + HookState.escapeName(definitionPath));
+        marker.setProperty(PN_PATH, definitionPath);
+        marker.setProperty(PN_REINDEX_COUNT, reindexCount);
+        marker.setProperty(PN_ESTIMATE, estimate);
+        marker.setProperty(PN_BUDGET, budget);
+        marker.setProperty(PN_PACKAGE_ID, packageId);
+        marker.setProperty(PN_DEFERRED, Calendar.getInstance());
+    }
+
+    /**
+     * Remove the markers of definitions that were reindexed or removed.
+     */
+    void removeCompleted() throws RepositoryException {
+        if (!session.nodeExists(pendingPath)) {
+            return;
+        }
+        final NodeIterator markers = session.getNode(pendingPath).getNodes();
+        while (markers.hasNext()) {
+            final Node marker = markers.nextNode();
+            final String path = marker.getProperty(PN_PATH).getString();
+            if (!session.nodeExists(path)) {
+                marker.remove();
+                continue;
+            }
+            final Node definition = session.getNode(path);
+            if (definition.hasProperty(PN_REINDEX_COUNT)
+                    && definition.getProperty(PN_REINDEX_COUNT).getLong()
+                    > marker.getProperty(PN_REINDEX_COUNT).getLong()) {
+                LOG.info("Deferred reindex of index at {} has been completed", path);
+                marker.remove();
+            }
+        }
+    }
+}
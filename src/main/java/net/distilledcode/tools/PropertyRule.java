@@ -0,0 +1,115 @@
+package net.distilledcode.tools;
+
+/**
+ * A property rule added to a {@code lucene} index definition, i.e. a node
+ * {@code indexRules/<nodeType>/properties/<rule>}, with the flags telling
+ * how Oak indexes the property. Flags missing in the definition have
+ * Oak's defaults.
+ */
+public final class PropertyRule {
+
+    /**
+     * The property type of rules without {@code type}, the type of each
+     * value is kept.
+     */
+    public static final String TYPE_UNDEFINED = "undefined";
+
+    private final String nodeType;
+
+    private final String name;
+
+    private final String type;
+
+    private final boolean propertyIndex;
+
+    private final boolean analyzed;
+
+    private final boolean nodeScopeIndex;
+
+    private final boolean ordered;
+
+    PropertyRule(final String nodeType, final String name, final String type, final boolean propertyIndex,
+                 final boolean analyzed, final boolean nodeScopeIndex, final boolean ordered) {
+        this.nodeType = nodeType;
+        this.name = name;
+        this.type = type;
+        this.propertyIndex = propertyIndex;
+        this.analyzed = analyzed;
+        this.nodeScopeIndex = nodeScopeIndex;
+        this.ordered = ordered;
+    }
+
+    /**
+     * @return the node type of the index rule
+     */
+    public String getNodeType() {
+        return nodeType;
+    }
+
+    /**
+     * @return the name of the indexed property
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the property type of the rule's {@code type}, or
+     *         {@value #TYPE_UNDEFINED}
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return {@code true} if the property is indexed for property restrictions
+     */
+    public boolean isPropertyIndex() {
+        return propertyIndex;
+    }
+
+    /**
+     * @return {@code true} if the property is indexed for full-text restrictions
+     */
+    public boolean isAnalyzed() {
+        return analyzed;
+    }
+
+    /**
+     * @return {@code true} if the property is part of the node's full-text
+     */
+    public boolean isNodeScopeIndex() {
+        return nodeScopeIndex;
+    }
+
+    /**
+     * @return {@code true} if the property is indexed for sorting
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PropertyRule)) {
+            return false;
+        }
+        final PropertyRule other = (PropertyRule) o;
+        return nodeType.equals(other.nodeType) && name.equals(other.name) && type.equals(other.type)
+                && propertyIndex == other.propertyIndex && analyzed == other.analyzed
+                && nodeScopeIndex == other.nodeScopeIndex && ordered == other.ordered;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * nodeType.hashCode() + name.hashCode()) + type.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
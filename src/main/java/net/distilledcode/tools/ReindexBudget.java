@@ -0,0 +1,104 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the estimated cost of each reindex against the
+ * {@link HookConfiguration#BUDGET budget} and applies the
+ * {@link HookConfiguration#BUDGET_ACTION budget action} to reindexes
+ * exceeding it.
+ */
+final class ReindexBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexBudget.class);
+
+    private final Session session;
+
+    private final ReindexCostEstimator estimator;
+
+    private final long budget;
+
+    private final String action;
+
+    /**
+     * @param session the installation's session
+     * @param estimator the estimator of the cost of a reindex
+     * @param budget the maximum number of nodes a reindex may process, {@code 0} for no limit
+     * @param action the budget action
+     */
+    ReindexBudget(final Session session, final ReindexCostEstimator estimator, final long budget,
+                  final String action) {
+        this.session = session;
+        this.estimator = estimator;
+        this.budget = budget;
+        this.action = action;
+    }
+
+    /**
+     * Fail the installation if a definition that is known to change before
+     * the import exceeds the budget, with the action
+     * {@link HookConfiguration#BUDGET_FAIL}.
+     *
+     * @param changedPaths the paths of the definitions known to change
+     * @throws PackageException if a definition exceeds the budget
+     * @throws RepositoryException if the cost cannot be estimated
+     */
+    void check(final Set<String> changedPaths) throws PackageException, RepositoryException {
+        if (budget <= 0 || !HookConfiguration.BUDGET_FAIL.equals(action)) {
+            return;
+        }
+        for (final String path : changedPaths) {
+            final long estimate = estimator.estimate(session.getNode(path));
+            if (estimate > budget) {
+                throw new PackageException("Reindexing index at " + path + " is estimated to process " + estimate
+                        + " nodes, which exceeds the budget of " + budget + " nodes");
+            }
+        }
+    }
+
+    /**
+     * Check the estimated cost of each modified definition against the
+     * budget. Unless the action is {@link HookConfiguration#BUDGET_PROCEED},
+     * definitions exceeding the budget are not marked for reindexing but
+     * recorded as pending.
+     *
+     * @param records the records by path
+     * @param pending the pending reindexes
+     * @param packageId the ID of the installed package
+     * @throws RepositoryException if the cost cannot be estimated
+     */
+    void apply(final Map<String, ReindexRecord> records, final PendingReindexes pending, final String packageId)
+            throws RepositoryException {
+        if (budget <= 0) {
+            return;
+        }
+        for (final ReindexRecord record : records.values()) {
+            final Node definition = record.getNode(session);
+            if (!record.modified || definition == null) {
+                continue;
+            }
+            final long estimate = estimator.estimate(definition);
+            if (estimate <= budget) {
+                LOG.debug("Reindexing index at {} is estimated to process {} nodes", record.path, estimate);
+            } else if (HookConfiguration.BUDGET_PROCEED.equals(action)) {
+                LOG.warn("Reindexing index at {} is estimated to process {} nodes, which exceeds the budget of {}",
+                        new Object[]{record.path, estimate, budget});
+            } else {
+                LOG.warn("Deferring reindexing of index at {}, it is estimated to process {} nodes, " +
+                        "which exceeds the budget of {}", new Object[]{record.path, estimate, budget});
+                record.reindex = false;
+                record.modified = false;
+                record.deferred = true;
+                pending.add(record.path, record.reindexCount, estimate, budget, packageId);
+            }
+        }
+    }
+}
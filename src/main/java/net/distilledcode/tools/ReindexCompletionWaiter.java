@@ -0,0 +1,265 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+
+/**
+ * Waits for the reindexing of index definitions to complete (see
+ * {@link HookConfiguration#WAIT_TIMEOUT}). A definition is reindexed once
+ * Oak has reset its {@code reindex} property, or once it was removed.
+ * <br>
+ * Instead of polling, the waiter observes property changes of the
+ * definitions and checks them whenever they change. A session has a
+ * single registration per listener, hence a listener is registered per
+ * definition, deep at its path, and events below the definition are
+ * ignored. Progress is logged
+ * periodically. For asynchronous indexes, the throughput is calculated
+ * from the updates reported by Oak's {@code IndexStats} MBean of the
+ * index's lane, if it is registered with the platform MBean server.
+ */
+final class ReindexCompletionWaiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexCompletionWaiter.class);
+
+    private static final String INDEX_STATS = "org.apache.jackrabbit.oak:type=IndexStats,*";
+
+    private static final String ATTRIBUTE_UPDATES = "Updates";
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 10000;
+
+    private final Session session;
+
+    private final Set<String> paths;
+
+    private final long progressIntervalMillis;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private boolean dirty;
+
+    ReindexCompletionWaiter(final Session session, final Set<String> paths) {
+        this(session, paths, PROGRESS_INTERVAL_MILLIS);
+    }
+
+    ReindexCompletionWaiter(final Session session, final Set<String> paths, final long progressIntervalMillis) {
+        this.session = session;
+        this.paths = new TreeSet<String>(paths);
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    /**
+     * Block until all definitions are reindexed or the timeout elapses.
+     * The session must not have pending changes.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @return {@code true} if all definitions were reindexed
+     * @throws RepositoryException if the definitions cannot be read
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    boolean await(final long timeoutMillis) throws RepositoryException, InterruptedException {
+        if (paths.isEmpty()) {
+            return true;
+        }
+        final ObservationManager observationManager = session.getWorkspace().getObservationManager();
+        final List<EventListener> listeners = new ArrayList<EventListener>();
+        try {
+            for (final String path : paths) {
+                final EventListener listener = new DefinitionListener(path);
+                observationManager.addEventListener(listener, Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+                        | Event.PROPERTY_REMOVED | Event.NODE_REMOVED, path, true, null, null, false);
+                listeners.add(listener);
+            }
+            return awaitCompletion(timeoutMillis);
+        } finally {
+            for (final EventListener listener : listeners) {
+                observationManager.removeEventListener(listener);
+            }
+        }
+    }
+
+    private boolean awaitCompletion(final long timeoutMillis) throws RepositoryException, InterruptedException {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + timeoutMillis;
+        final Map<String, String> lanes = getLanes();
+        final Map<String, Long> updates = getUpdates(lanes.values());
+        long lastProgress = start;
+        while (true) {
+            session.refresh(true);
+            final List<String> remaining = getRemaining();
+            final long now = System.currentTimeMillis();
+            if (remaining.isEmpty()) {
+                LOG.info("Reindexing of {} indexes completed after {}ms", paths.size(), now - start);
+                return true;
+            }
+            if (now >= deadline) {
+                LOG.warn("Reindexing of {} indexes did not complete within {}ms, still reindexing: {}",
+                        new Object[]{paths.size(), timeoutMillis, remaining});
+                return false;
+            }
+            if (now - lastProgress >= progressIntervalMillis) {
+                logProgress(remaining, lanes, updates, now - lastProgress);
+                lastProgress = now;
+            }
+            awaitChange(Math.min(deadline, lastProgress + progressIntervalMillis) - now);
+        }
+    }
+
+    private void awaitChange(final long millis) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+            while (!dirty && nanos > 0) {
+                nanos = changed.awaitNanos(nanos);
+            }
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalChange() {
+        lock.lock();
+        try {
+            dirty = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String getParent(final String path) {
+        final int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+
+    private List<String> getRemaining() throws RepositoryException {
+        final List<String> remaining = new ArrayList<String>();
+        for (final String path : paths) {
+            if (session.nodeExists(path)) {
+                final Node definition = session.getNode(path);
+                if (definition.hasProperty(PN_REINDEX) && definition.getProperty(PN_REINDEX).getBoolean()) {
+                    remaining.add(path);
+                }
+            }
+        }
+        return remaining;
+    }
+
+    private void logProgress(final List<String> remaining, final Map<String, String> lanes,
+                             final Map<String, Long> updates, final long intervalMillis) {
+        LOG.info("Reindexing {} of {} indexes completed, still reindexing: {}",
+                new Object[]{paths.size() - remaining.size(), paths.size(), remaining});
+        final Map<String, Long> current = getUpdates(lanes.values());
+        for (final Map.Entry<String, Long> entry : current.entrySet()) {
+            final Long previous = updates.get(entry.getKey());
+            // the updates are reset when the lane starts a new run
+            final long delta = previous == null || previous > entry.getValue()
+                    ? entry.getValue()
+                    : entry.getValue() - previous;
+            LOG.info("Async lane {} indexed {} nodes per second", entry.getKey(),
+                    delta * 1000 / Math.max(1, intervalMillis));
+        }
+        updates.putAll(current);
+    }
+
+    /**
+     * The async lanes of the definitions, if any, keyed by path.
+     */
+    private Map<String, String> getLanes() throws RepositoryException {
+        final Map<String, String> lanes = new LinkedHashMap<String, String>();
+        for (final String path : paths) {
+            if (session.nodeExists(path) && session.getNode(path).hasProperty(ReindexQueue.PN_ASYNC)) {
+                final Property async = session.getNode(path).getProperty(ReindexQueue.PN_ASYNC);
+                final String lane = async.isMultiple()
+                        ? async.getValues().length > 0 ? async.getValues()[0].getString() : null
+                        : async.getString();
+                if (lane != null) {
+                    lanes.put(path, lane);
+                }
+            }
+        }
+        return lanes;
+    }
+
+    /**
+     * The number of updates of the current run of each of the lanes, as
+     * far as Oak exposes them via JMX.
+     */
+    private static Map<String, Long> getUpdates(final Iterable<String> lanes) {
+        final Map<String, Long> updates = new LinkedHashMap<String, Long>();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (final ObjectName name : server.queryNames(new ObjectName(INDEX_STATS), null)) {
+                final String lane = unquote(name.getKeyProperty("name"));
+                for (final String candidate : lanes) {
+                    if (candidate.equals(lane)) {
+                        updates.put(lane, ((Number) server.getAttribute(name, ATTRIBUTE_UPDATES)).longValue());
+                        break;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOG.debug("Async index statistics are not available", e);
+        }
+        return updates;
+    }
+
+    private static String unquote(final String value) {
+        return value != null && value.length() > 1 && value.startsWith("\"") ? ObjectName.unquote(value) : value;
+    }
+
+    /**
+     * Signals changes of the properties of a definition and its removal,
+     * changes below the definition are ignored.
+     */
+    private final class DefinitionListener implements EventListener {
+
+        private final String path;
+
+        DefinitionListener(final String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void onEvent(final EventIterator events) {
+            while (events.hasNext()) {
+                try {
+                    final String eventPath = events.nextEvent().getPath();
+                    if (!path.equals(eventPath) && !path.equals(getParent(eventPath))) {
+                        continue;
+                    }
+                } catch (RepositoryException e) {
+                    // checked like a change
+                }
+                signalChange();
+                return;
+            }
+        }
+    }
+}
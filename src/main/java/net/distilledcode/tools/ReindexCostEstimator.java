@@ -0,0 +1,152 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.util.DocViewProperty;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Estimates the cost of reindexing an index as the number of nodes the
+ * reindex has to process.
+ * <br>
+ * If the definition has an {@code entryCount}, that count is used.
+ * Otherwise the nodes below the definition's {@code includedPaths} (or
+ * the root node) are counted by random probing (Knuth's estimator): each
+ * probe walks from the root to a leaf along randomly chosen children and
+ * multiplies the branching factors it encounters. The average over all
+ * probes is an unbiased estimate of the tree size. Probing is bounded by
+ * the number of probes, the number of children inspected per node and
+ * the elapsed time, hence the estimate is cheap even for large trees.
+ * <br>
+ * Definitions that are not installed yet can be estimated as well, from
+ * their {@link DefinitionNode} read from a package.
+ * <br>
+ * The size of the index data itself is kept in hidden nodes, which
+ * cannot be read via JCR, and is therefore not taken into account.
+ */
+final class ReindexCostEstimator {
+
+    static final String PN_ENTRY_COUNT = "entryCount";
+
+    static final String PN_INCLUDED_PATHS = "includedPaths";
+
+    private static final int MAX_DEPTH = 64;
+
+    private static final int MAX_CHILDREN = 10000;
+
+    private final Session session;
+
+    private final int probes;
+
+    private final long timeLimitMillis;
+
+    private final Random random;
+
+    ReindexCostEstimator(final Session session, final int probes, final long timeLimitMillis) {
+        this(session, probes, timeLimitMillis, new Random());
+    }
+
+    ReindexCostEstimator(final Session session, final int probes, final long timeLimitMillis, final Random random) {
+        this.session = session;
+        this.probes = Math.max(1, probes);
+        this.timeLimitMillis = timeLimitMillis;
+        this.random = random;
+    }
+
+    /**
+     * @param definition the index definition
+     * @return the estimated number of nodes processed by a reindex
+     * @throws RepositoryException if the repository cannot be read
+     */
+    long estimate(final Node definition) throws RepositoryException {
+        if (definition.hasProperty(PN_ENTRY_COUNT)) {
+            return definition.getProperty(PN_ENTRY_COUNT).getLong();
+        }
+        return estimate(getIncludedPaths(definition));
+    }
+
+    /**
+     * @param definition an index definition that is not installed yet
+     * @return the estimated number of nodes processed by a reindex
+     * @throws RepositoryException if the repository cannot be read
+     */
+    long estimate(final DefinitionNode definition) throws RepositoryException {
+        final DocViewProperty entryCount = definition.getProperty(PN_ENTRY_COUNT);
+        if (entryCount != null && entryCount.values.length > 0) {
+            try {
+                return Long.parseLong(entryCount.values[0]);
+            } catch (NumberFormatException e) {
+                // estimated below
+            }
+        }
+        final DocViewProperty includedPaths = definition.getProperty(PN_INCLUDED_PATHS);
+        return estimate(includedPaths == null || includedPaths.values.length == 0
+                ? Collections.singletonList("/")
+                : Arrays.asList(includedPaths.values));
+    }
+
+    private long estimate(final List<String> includedPaths) throws RepositoryException {
+        final long deadline = System.currentTimeMillis() + timeLimitMillis;
+        long estimate = 0;
+        for (final String root : includedPaths) {
+            if (session.nodeExists(root)) {
+                estimate += estimateTreeSize(session.getNode(root), deadline);
+            }
+        }
+        return estimate;
+    }
+
+    private long estimateTreeSize(final Node root, final long deadline) throws RepositoryException {
+        double sum = 0;
+        int completed = 0;
+        final List<Node> children = new ArrayList<Node>();
+        while (completed < probes && (completed == 0 || System.currentTimeMillis() < deadline)) {
+            double estimate = 1;
+            double width = 1;
+            Node node = root;
+            for (int depth = 0; depth < MAX_DEPTH; depth++) {
+                children.clear();
+                final NodeIterator iterator = node.getNodes();
+                while (iterator.hasNext() && children.size() < MAX_CHILDREN) {
+                    children.add(iterator.nextNode());
+                }
+                if (children.isEmpty()) {
+                    break;
+                }
+                width *= children.size();
+                estimate += width;
+                node = children.get(random.nextInt(children.size()));
+            }
+            sum += estimate;
+            completed++;
+        }
+        return Math.round(sum / completed);
+    }
+
+    static List<String> getIncludedPaths(final Node definition) throws RepositoryException {
+        final List<String> paths = new ArrayList<String>();
+        if (definition.hasProperty(PN_INCLUDED_PATHS)) {
+            final Property property = definition.getProperty(PN_INCLUDED_PATHS);
+            if (property.isMultiple()) {
+                for (final Value value : property.getValues()) {
+                    paths.add(value.getString());
+                }
+            } else {
+                paths.add(property.getString());
+            }
+        }
+        if (paths.isEmpty()) {
+            paths.add("/");
+        }
+        return paths;
+    }
+}
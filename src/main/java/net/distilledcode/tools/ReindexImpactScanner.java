@@ -0,0 +1,227 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.fs.io.FileArchive;
+import org.apache.jackrabbit.vault.fs.io.ZipArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The command line entry point of the hook jar (see
+ * {@link OakReindexInstallHook#main(String[])}), which scans content
+ * packages for index definitions that would be reindexed, without
+ * repository.
+ * <br>
+ * The installed definitions are read once from a snapshot, i.e. a
+ * package of the repository's index containers (e.g. {@code /oak:index})
+ * as zip file or exploded directory. Each package is then planned with
+ * a {@link ReindexPlanner}, on a pool of threads. Arguments that are
+ * neither zip files nor exploded packages are searched for zip files
+ * recursively.
+ * <br>
+ * The report contains one tab separated line per package, in the order
+ * of the arguments: the package file, the package ID, the number of
+ * reindexed and refreshed definitions, whether the budget is exceeded
+ * and the paths of the reindexed definitions. Packages that cannot be
+ * read are reported with {@code ERROR} and the message instead.
+ */
+final class ReindexImpactScanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexImpactScanner.class);
+
+    static final String USAGE = "Usage: " + OakReindexInstallHook.class.getName()
+            + " [--threads <n>] [--budget <nodes>] [--classifier <default|class name>]"
+            + " <snapshot> <package|directory>...";
+
+    static final int EXIT_FAILED = 1;
+
+    static final int EXIT_USAGE = 2;
+
+    private static final String ZIP_SUFFIX = ".zip";
+
+    private final IndexChangeClassifier classifier;
+
+    private final long budget;
+
+    private final int threads;
+
+    ReindexImpactScanner(final IndexChangeClassifier classifier, final long budget, final int threads) {
+        this.classifier = classifier;
+        this.budget = budget;
+        this.threads = threads;
+    }
+
+    /**
+     * Parse the arguments and scan the packages.
+     *
+     * @param args the command line arguments
+     * @param report the writer of the report
+     * @param err the stream for usage errors
+     * @return the exit code
+     * @throws IOException if the snapshot or the report cannot be accessed
+     * @throws InterruptedException if interrupted while waiting for the scan
+     */
+    static int run(final String[] args, final Writer report, final PrintStream err)
+            throws IOException, InterruptedException {
+        IndexChangeClassifier classifier = null;
+        long budget = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("--"); i += 2) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value of " + args[i]);
+                }
+                final String option = args[i].substring(2);
+                if ("threads".equals(option)) {
+                    threads = Integer.parseInt(args[i + 1]);
+                } else if (HookConfiguration.BUDGET.equals(option)) {
+                    budget = Long.parseLong(args[i + 1]);
+                } else if (HookConfiguration.CLASSIFIER.equals(option)) {
+                    classifier = IndexChangeClassifiers.create(args[i + 1]);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length - i < 2) {
+                throw new IllegalArgumentException("Missing snapshot or packages");
+            }
+            if (threads < 1) {
+                throw new IllegalArgumentException("Invalid number of threads " + threads);
+            }
+        } catch (IllegalArgumentException e) {
+            // includes NumberFormatException
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        final List<File> packages = new ArrayList<File>();
+        for (final String arg : Arrays.asList(args).subList(i + 1, args.length)) {
+            collectPackages(new File(arg), packages);
+        }
+        final int failed = new ReindexImpactScanner(classifier, budget, threads)
+                .scan(new File(args[i]), packages, report);
+        return failed == 0 ? 0 : EXIT_FAILED;
+    }
+
+    /**
+     * @param snapshot the snapshot of the installed definitions
+     * @param packages the packages to scan
+     * @param report the writer of the report
+     * @return the number of packages that could not be scanned
+     * @throws IOException if the snapshot or the report cannot be accessed
+     * @throws InterruptedException if interrupted while waiting for the scan
+     */
+    int scan(final File snapshot, final List<File> packages, final Writer report)
+            throws IOException, InterruptedException {
+        final Map<String, DefinitionNode> installedDefinitions = readSnapshot(snapshot);
+        final ReindexPlanner planner = new ReindexPlanner(classifier, budget);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<String>> lines = new ArrayList<Future<String>>();
+            for (final File file : packages) {
+                lines.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return scan(planner, file, installedDefinitions);
+                    }
+                }));
+            }
+            int failed = 0;
+            for (int i = 0; i < lines.size(); i++) {
+                String line;
+                try {
+                    line = lines.get(i).get();
+                } catch (ExecutionException e) {
+                    LOG.debug("Failed to scan package {}", packages.get(i), e.getCause());
+                    line = packages.get(i) + "\tERROR\t" + e.getCause();
+                    failed++;
+                }
+                report.write(line);
+                report.write('\n');
+            }
+            report.flush();
+            return failed;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String scan(final ReindexPlanner planner, final File file,
+                               final Map<String, DefinitionNode> installedDefinitions) throws IOException {
+        final Archive archive = openArchive(file);
+        try {
+            final ReindexPlan plan = planner.plan(archive, installedDefinitions);
+            int refreshed = 0;
+            for (final ReindexPlan.Entry entry : plan.getEntries()) {
+                if (entry.getAction() == IndexChangeClassifier.Action.REFRESH) {
+                    refreshed++;
+                }
+            }
+            final StringBuilder line = new StringBuilder();
+            line.append(file).append('\t').append(plan.getPackageId())
+                    .append("\treindex=").append(plan.getReindexed().size())
+                    .append("\trefresh=").append(refreshed)
+                    .append("\texceedsBudget=").append(plan.exceedsBudget())
+                    .append('\t');
+            String separator = "";
+            for (final ReindexPlan.Entry entry : plan.getReindexed()) {
+                line.append(separator).append(entry.getPath());
+                separator = ",";
+            }
+            return line.toString();
+        } finally {
+            archive.close();
+        }
+    }
+
+    private static Map<String, DefinitionNode> readSnapshot(final File snapshot) throws IOException {
+        final Archive archive = openArchive(snapshot);
+        try {
+            return new ArchiveIndexDefinitionReader(archive).read();
+        } finally {
+            archive.close();
+        }
+    }
+
+    private static Archive openArchive(final File file) throws IOException {
+        final Archive archive = file.isDirectory() ? new FileArchive(file) : new ZipArchive(file);
+        archive.open(true);
+        return archive;
+    }
+
+    private static void collectPackages(final File file, final List<File> packages) {
+        if (file.isFile() || new File(file, "META-INF/vault").isDirectory()) {
+            packages.add(file);
+            return;
+        }
+        final File[] children = file.listFiles();
+        if (children == null) {
+            // reported as unreadable package
+            packages.add(file);
+            return;
+        }
+        Arrays.sort(children);
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                collectPackages(child, packages);
+            } else if (child.getName().endsWith(ZIP_SUFFIX)) {
+                packages.add(child);
+            }
+        }
+    }
+}
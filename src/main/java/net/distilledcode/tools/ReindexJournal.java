@@ -0,0 +1,427 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+
+/**
+ * An append-only journal of the {@code reindex} and {@code reindexCount}
+ * properties the hook removes in the prepare phase (see
+ * {@link HookConfiguration#JOURNAL}).
+ * <br>
+ * The removals are transient, but FileVault saves the import's changes
+ * in between. If the installation is interrupted before the properties
+ * are restored, e.g. by a crash of the JVM, definitions are left without
+ * them. Hence the removed values are appended to the journal before
+ * anything is imported, and the journal is cleared once the installation
+ * is saved. A journal that is not empty at the next installation is
+ * {@link #replay(Session) replayed}, restoring only the affected
+ * definitions.
+ * <br>
+ * Each entry is one line with the definition's path, the removed values
+ * and the definition's fingerprint before the installation, separated by
+ * tabs. The journal is kept either in the repository, where each append
+ * adds a node with the batch's entries and is saved by a separate
+ * session, or in a local file, which is forced to disk after each append. A partially written last line of a
+ * file is ignored. Files are only kept in the directory set by the
+ * operator in the {@link HookConfiguration#JOURNAL_DIRECTORY} system
+ * property.
+ */
+abstract class ReindexJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexJournal.class);
+
+    static final String PN_ENTRIES = "entries";
+
+    private static final String SEPARATOR = "\t";
+
+    private static final String UTF_8 = "UTF-8";
+
+    /**
+     * @param entries the entries to append
+     * @throws RepositoryException if the journal cannot be written
+     */
+    abstract void append(List<Entry> entries) throws RepositoryException;
+
+    /**
+     * @return the entries in the order they were appended
+     * @throws RepositoryException if the journal cannot be read
+     */
+    abstract List<Entry> read() throws RepositoryException;
+
+    /**
+     * @throws RepositoryException if the journal cannot be written
+     */
+    abstract void clear() throws RepositoryException;
+
+    void close() {
+    }
+
+    /**
+     * Restore the properties of definitions left without them by an
+     * interrupted installation. Definitions whose properties are present
+     * were restored by that installation and are left alone. Definitions
+     * that changed since they were journaled are marked for reindexing, as
+     * the interrupted installation may have saved the change.
+     *
+     * @param session the installation's session
+     * @throws RepositoryException if the journal or the definitions cannot be read
+     */
+    void replay(final Session session) throws RepositoryException {
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final Set<String> replayed = new HashSet<String>();
+        for (final Entry entry : read()) {
+            // the first entry holds the values from before the interrupted installation
+            if (!replayed.add(entry.path) || !session.nodeExists(entry.path)) {
+                continue;
+            }
+            final Node definition = session.getNode(entry.path);
+            final boolean reindexCountMissing = entry.reindexCount != -1 && !definition.hasProperty(PN_REINDEX_COUNT);
+            final boolean reindexMissing = !definition.hasProperty(PN_REINDEX);
+            if (!reindexCountMissing && !reindexMissing) {
+                continue;
+            }
+            if (reindexCountMissing) {
+                definition.setProperty(PN_REINDEX_COUNT, entry.reindexCount);
+            }
+            if (reindexMissing) {
+                final boolean changed = !entry.fingerprint.equals(fingerprint.compute(definition));
+                definition.setProperty(PN_REINDEX, entry.reindex || changed);
+                LOG.info("Restored index properties for {} from the journal{}", entry.path,
+                        changed ? ", marked for reindexing as it changed" : "");
+            } else {
+                LOG.info("Restored index properties for {} from the journal", entry.path);
+            }
+        }
+    }
+
+    /**
+     * The configured journal (see {@link HookConfiguration#JOURNAL}).
+     *
+     * @param configuration the hook's configuration
+     * @param session the installation's session
+     * @param stateRoot the state root
+     * @return the journal, or {@code null} if none is configured
+     * @throws RepositoryException if the journal cannot be created
+     */
+    static ReindexJournal create(final HookConfiguration configuration, final Session session,
+                                 final String stateRoot) throws RepositoryException {
+        final String type = configuration.get(HookConfiguration.JOURNAL, HookConfiguration.JOURNAL_NONE);
+        if (HookConfiguration.JOURNAL_REPOSITORY.equals(type)) {
+            return inRepository(HookState.impersonate(session), stateRoot);
+        }
+        if (HookConfiguration.JOURNAL_FILE.equals(type)) {
+            final String directory = System.getProperty(HookConfiguration.PREFIX
+                    + HookConfiguration.JOURNAL_DIRECTORY);
+            if (directory == null) {
+                throw new RepositoryException("The file journal requires the system property "
+                        + HookConfiguration.PREFIX + HookConfiguration.JOURNAL_DIRECTORY);
+            }
+            return inFile(getJournalFile(new File(directory),
+                    configuration.get(HookConfiguration.JOURNAL_PATH, HookConfiguration.DEFAULT_JOURNAL_PATH)));
+        }
+        return null;
+    }
+
+    /**
+     * Resolve the journal's file, which must be within the directory.
+     */
+    static File getJournalFile(final File directory, final String path) throws RepositoryException {
+        try {
+            final File canonicalDirectory = directory.getCanonicalFile();
+            final File file = new File(canonicalDirectory, path).getCanonicalFile();
+            for (File parent = file.getParentFile(); parent != null; parent = parent.getParentFile()) {
+                if (parent.equals(canonicalDirectory)) {
+                    return file;
+                }
+            }
+            throw new RepositoryException("The journal " + path + " is outside of " + canonicalDirectory);
+        } catch (IOException e) {
+            throw new RepositoryException("Cannot resolve the journal " + path, e);
+        }
+    }
+
+    /**
+     * @param records the records of the definitions whose properties were removed
+     * @return the journal entries of the definitions that are not skipped
+     */
+    static List<Entry> entriesOf(final Collection<ReindexRecord> records) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (final ReindexRecord record : records) {
+            if (!record.skipped) {
+                entries.add(new Entry(record.path, record.reindex, record.reindexCount, record.fingerprint));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * A journal kept below the node {@code <stateRoot>/journal}, with one
+     * child node per appended batch, holding its entries in the property
+     * {@value #PN_ENTRIES}. The given session must not be the
+     * installation's session, as the journal is saved immediately.
+     */
+    static ReindexJournal inRepository(final Session session, final String stateRoot) {
+        return new NodeJournal(session, stateRoot + "/journal");
+    }
+
+    static ReindexJournal inFile(final File file) {
+        return new FileJournal(file);
+    }
+
+    /**
+     * A definition's removed {@code reindex} and {@code reindexCount}
+     * properties.
+     */
+    static final class Entry {
+
+        final String path;
+
+        final boolean reindex;
+
+        final long reindexCount;
+
+        final String fingerprint;
+
+        /**
+         * @param path the definition's path
+         * @param reindex the removed {@code reindex} value
+         * @param reindexCount the removed {@code reindexCount} value, {@code -1} if there was none
+         * @param fingerprint the definition's fingerprint before the installation
+         */
+        Entry(final String path, final boolean reindex, final long reindexCount, final String fingerprint) {
+            this.path = path;
+            this.reindex = reindex;
+            this.reindexCount = reindexCount;
+            this.fingerprint = fingerprint;
+        }
+
+        String format() {
+            return path + SEPARATOR + reindex + SEPARATOR + reindexCount + SEPARATOR + fingerprint;
+        }
+
+        /**
+         * @return the entry, or {@code null} if the line is not an entry
+         */
+        static Entry parse(final String line) {
+            final String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Entry(fields[0], Boolean.parseBoolean(fields[1]), Long.parseLong(fields[2]), fields[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class NodeJournal extends ReindexJournal {
+
+        private final Session session;
+
+        private final String path;
+
+        private NodeJournal(final Session session, final String path) {
+            this.session = session;
+            this.path = path;
+        }
+
+        @Override
+        void append(final List<Entry> entries) throws RepositoryException {
+            if (entries.isEmpty()) {
+                return;
+            }
+            session.refresh(false);
+            final List<String> batches = getBatchNames();
+            final long next = batches.isEmpty() ? 0 : Long.parseLong(batches.get(batches.size() - 1)) + 1;
+            final String[] values = new String[entries.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = entries.get(i).format();
+            }
+            HookState.getOrCreateNode(session, path).addNode(String.format("%019d", next), HookState.NT_STATE)
+                    .setProperty(PN_ENTRIES, values);
+            session.save();
+        }
+
+        @Override
+        List<Entry> read() throws RepositoryException {
+            session.refresh(false);
+            final List<Entry> entries = new ArrayList<Entry>();
+            if (!session.nodeExists(path)) {
+                return entries;
+            }
+            final Node journal = session.getNode(path);
+            // entries of a journal written as a single property
+            readEntries(journal, entries);
+            for (final String batch : getBatchNames()) {
+                readEntries(journal.getNode(batch), entries);
+            }
+            return entries;
+        }
+
+        @Override
+        void clear() throws RepositoryException {
+            session.refresh(false);
+            if (!session.nodeExists(path)) {
+                return;
+            }
+            final Node journal = session.getNode(path);
+            boolean modified = false;
+            if (journal.hasProperty(PN_ENTRIES)) {
+                journal.getProperty(PN_ENTRIES).remove();
+                modified = true;
+            }
+            for (final String batch : getBatchNames()) {
+                journal.getNode(batch).remove();
+                modified = true;
+            }
+            if (modified) {
+                session.save();
+            }
+        }
+
+        @Override
+        void close() {
+            session.logout();
+        }
+
+        /**
+         * The names of the batches in the order they were appended, the
+         * journal's node is not orderable but the names are zero-padded.
+         */
+        private List<String> getBatchNames() throws RepositoryException {
+            final List<String> names = new ArrayList<String>();
+            if (session.nodeExists(path)) {
+                final NodeIterator batches = session.getNode(path).getNodes();
+                while (batches.hasNext()) {
+                    names.add(batches.nextNode().getName());
+                }
+            }
+            Collections.sort(names);
+            return names;
+        }
+
+        private static void readEntries(final Node node, final List<Entry> entries) throws RepositoryException {
+            if (node.hasProperty(PN_ENTRIES)) {
+                for (final Value value : node.getProperty(PN_ENTRIES).getValues()) {
+                    final Entry entry = Entry.parse(value.getString());
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class FileJournal extends ReindexJournal {
+
+        private final File file;
+
+        private FileJournal(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        void append(final List<Entry> entries) throws RepositoryException {
+            if (entries.isEmpty()) {
+                return;
+            }
+            final StringBuilder lines = new StringBuilder();
+            for (final Entry entry : entries) {
+                lines.append(entry.format()).append('\n');
+            }
+            try {
+                final File parent = file.getAbsoluteFile().getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create directory " + parent);
+                }
+                final FileOutputStream out = new FileOutputStream(file, true);
+                try {
+                    final FileChannel channel = out.getChannel();
+                    final ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(UTF_8));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                throw new RepositoryException("Failed to append to reindex journal " + file, e);
+            }
+        }
+
+        @Override
+        List<Entry> read() throws RepositoryException {
+            if (!file.isFile()) {
+                return Collections.emptyList();
+            }
+            try {
+                final FileInputStream in = new FileInputStream(file);
+                final String content;
+                try {
+                    final FileChannel channel = in.getChannel();
+                    final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                    while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                        // read fully
+                    }
+                    content = new String(buffer.array(), 0, buffer.position(), UTF_8);
+                } finally {
+                    in.close();
+                }
+                final List<Entry> entries = new ArrayList<Entry>();
+                int start = 0;
+                for (int end = content.indexOf('\n'); end != -1; end = content.indexOf('\n', start)) {
+                    final Entry entry = Entry.parse(content.substring(start, end));
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                    start = end + 1;
+                }
+                return entries;
+            } catch (IOException e) {
+                throw new RepositoryException("Failed to read reindex journal " + file, e);
+            }
+        }
+
+        @Override
+        void clear() throws RepositoryException {
+            if (!file.isFile()) {
+                return;
+            }
+            try {
+                final RandomAccessFile journal = new RandomAccessFile(file, "rw");
+                try {
+                    journal.getChannel().truncate(0);
+                    journal.getChannel().force(true);
+                } finally {
+                    journal.close();
+                }
+            } catch (IOException e) {
+                throw new RepositoryException("Failed to clear reindex journal " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Coordinates the installations of a package on several cluster members
+ * sharing one repository (see {@link HookConfiguration#COORDINATION}).
+ * <br>
+ * Before an installation changes the {@code reindex} and
+ * {@code reindexCount} properties of a definition, it acquires a lease
+ * for the definition, keyed by the package ID and the definition's
+ * fingerprint before the installation. If another installation holds a
+ * lease with the same key, which has not expired, the definition is left
+ * alone. Hence the first cluster member to install a package marks the
+ * changed definitions, and the others skip them.
+ * <br>
+ * Leases are stored below {@code <stateRoot>/leases}, one node per
+ * definition, and saved immediately. The given session must therefore
+ * not be the installation's session. A completed lease expires after the
+ * lease duration as well, it only covers installations running
+ * concurrently: a later installation of the package sees the installed
+ * definition and its fingerprint. Leases of failed installations are
+ * removed, expired leases are removed whenever leases are released.
+ */
+final class ReindexLeases {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexLeases.class);
+
+    static final String PN_PATH = "path";
+
+    static final String PN_PACKAGE_ID = "packageId";
+
+    static final String PN_FINGERPRINT = "fingerprint";
+
+    static final String PN_OWNER = "owner";
+
+    static final String PN_EXPIRES = "expires";
+
+    static final String PN_STATE = "state";
+
+    static final String STATE_LEASED = "leased";
+
+    static final String STATE_COMPLETED = "completed";
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Session session;
+
+    private final String leasesPath;
+
+    private final String packageId;
+
+    private final long durationMillis;
+
+    private final String owner = UUID.randomUUID().toString();
+
+    private final Set<String> acquired = new HashSet<String>();
+
+    ReindexLeases(final Session session, final String stateRoot, final String packageId, final long durationMillis) {
+        this.session = session;
+        this.leasesPath = stateRoot + "/leases";
+        this.packageId = packageId;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Acquire the lease for a definition.
+     *
+     * @param definitionPath the definition's path
+     * @param fingerprint the definition's fingerprint before the installation
+     * @return {@code false} if another installation holds the lease
+     * @throws RepositoryException if the lease cannot be read or written
+     */
+    boolean acquire(final String definitionPath, final String fingerprint) throws RepositoryException {
+        final String path = leasesPath + "/" + HookState.escapeName(definitionPath);
+        for (int attempt = 1; ; attempt++) {
+            session.refresh(false);
+            if (session.nodeExists(path) && isHeldByOther(session.getNode(path), fingerprint)) {
+                return false;
+            }
+            final Node lease = HookState.getOrCreateNode(session, path);
+            lease.setProperty(PN_PATH, definitionPath);
+            lease.setProperty(PN_PACKAGE_ID, packageId);
+            lease.setProperty(PN_FINGERPRINT, fingerprint);
+            lease.setProperty(PN_OWNER, owner);
+            lease.setProperty(PN_STATE, STATE_LEASED);
+            lease.setProperty(PN_EXPIRES, getExpiry());
+            try {
+                session.save();
+                acquired.add(path);
+                return true;
+            } catch (InvalidItemStateException e) {
+                handleConflict(attempt, e);
+            } catch (ItemExistsException e) {
+                handleConflict(attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Acquire the leases of the definitions that are not known to be
+     * unchanged. Definitions leased by another installation of the package
+     * are returned, they are left alone like unchanged definitions, except
+     * for restoring properties removed by the import.
+     *
+     * @param installSession the installation's session
+     * @param paths the paths of the existing definitions
+     * @param unchangedPaths the definitions known to be unchanged
+     * @param fingerprints fingerprints computed before, by path, receives the missing ones
+     * @return the paths of the definitions leased by another installation
+     * @throws RepositoryException if the leases cannot be read or written
+     */
+    Set<String> acquire(final Session installSession, final Set<String> paths, final Set<String> unchangedPaths,
+                        final Map<String, String> fingerprints) throws RepositoryException {
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final Set<String> leasedPaths = new HashSet<String>();
+        for (final String path : paths) {
+            if (unchangedPaths.contains(path)) {
+                continue;
+            }
+            if (!fingerprints.containsKey(path)) {
+                fingerprints.put(path, fingerprint.compute(installSession.getNode(path)));
+            }
+            if (!acquire(path, fingerprints.get(path))) {
+                LOG.info("Index definition at {} is handled by another installation of the package", path);
+                leasedPaths.add(path);
+            }
+        }
+        return leasedPaths;
+    }
+
+    /**
+     * Mark the acquired leases as completed, or remove them if the
+     * installation failed.
+     *
+     * @param succeeded whether the installation succeeded
+     * @throws RepositoryException if the leases cannot be written
+     */
+    void release(final boolean succeeded) throws RepositoryException {
+        session.refresh(false);
+        for (final String path : acquired) {
+            if (!session.nodeExists(path)) {
+                continue;
+            }
+            final Node lease = session.getNode(path);
+            if (!owner.equals(lease.getProperty(PN_OWNER).getString())) {
+                LOG.warn("Lease for index definition at {} expired and was taken over",
+                        lease.getProperty(PN_PATH).getString());
+            } else if (succeeded) {
+                lease.setProperty(PN_STATE, STATE_COMPLETED);
+                lease.setProperty(PN_EXPIRES, getExpiry());
+            } else {
+                lease.remove();
+            }
+        }
+        acquired.clear();
+        removeExpired();
+        session.save();
+    }
+
+    /**
+     * Remove the expired leases of all installations, including those of
+     * installations that never released them.
+     */
+    private void removeExpired() throws RepositoryException {
+        if (!session.nodeExists(leasesPath)) {
+            return;
+        }
+        final NodeIterator leases = session.getNode(leasesPath).getNodes();
+        while (leases.hasNext()) {
+            final Node lease = leases.nextNode();
+            if (isExpired(lease)) {
+                LOG.debug("Removing expired lease {}", lease.getPath());
+                lease.remove();
+            }
+        }
+    }
+
+    void logout() {
+        session.logout();
+    }
+
+    private boolean isHeldByOther(final Node lease, final String fingerprint) throws RepositoryException {
+        if (owner.equals(lease.getProperty(PN_OWNER).getString())
+                || !packageId.equals(lease.getProperty(PN_PACKAGE_ID).getString())
+                || !fingerprint.equals(lease.getProperty(PN_FINGERPRINT).getString())) {
+            return false;
+        }
+        return !isExpired(lease);
+    }
+
+    private static boolean isExpired(final Node lease) throws RepositoryException {
+        return !lease.hasProperty(PN_EXPIRES)
+                || lease.getProperty(PN_EXPIRES).getDate().getTimeInMillis() <= System.currentTimeMillis();
+    }
+
+    private Calendar getExpiry() {
+        final Calendar expires = Calendar.getInstance();
+        expires.setTimeInMillis(System.currentTimeMillis() + durationMillis);
+        return expires;
+    }
+
+    private static void handleConflict(final int attempt, final RepositoryException e) throws RepositoryException {
+        if (attempt == MAX_ATTEMPTS) {
+            throw e;
+        }
+        LOG.debug("Conflict while acquiring a lease, retrying", e);
+    }
+}
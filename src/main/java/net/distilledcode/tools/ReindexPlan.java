@@ -0,0 +1,200 @@
+package net.distilledcode.tools;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The reindexing a package installation would cause, as computed by a
+ * {@link HookConfiguration#DRY_RUN dry run} or by a {@link ReindexPlanner}
+ * without repository.
+ * <br>
+ * The plan lists every index definition the package changes, the action
+ * the hook would take and, for reindexed definitions, the estimated
+ * number of nodes to process. It can be written as JSON.
+ */
+public final class ReindexPlan {
+
+    /**
+     * Estimate of definitions whose reindex cost is not known.
+     */
+    public static final long UNKNOWN = -1;
+
+    private final String packageId;
+
+    private final long budget;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    ReindexPlan(final String packageId, final long budget) {
+        this.packageId = packageId;
+        this.budget = budget;
+    }
+
+    void add(final IndexDefinitionChanges changes, final String type, final long estimate) {
+        entries.add(new Entry(changes, type, estimate));
+    }
+
+    public String getPackageId() {
+        return packageId;
+    }
+
+    /**
+     * @return the budget the estimates are checked against, {@code 0} if
+     *         reindexing is not limited
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the entries of definitions that would be reindexed
+     */
+    public List<Entry> getReindexed() {
+        final List<Entry> reindexed = new ArrayList<Entry>();
+        for (final Entry entry : entries) {
+            if (entry.getAction() == IndexChangeClassifier.Action.REINDEX) {
+                reindexed.add(entry);
+            }
+        }
+        return reindexed;
+    }
+
+    /**
+     * @return whether any reindex exceeds the budget
+     */
+    public boolean exceedsBudget() {
+        for (final Entry entry : entries) {
+            if (entry.exceedsBudget()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void writeJson(final Writer writer) throws IOException {
+        writer.write("{\"packageId\":");
+        writeString(writer, packageId);
+        writer.write(",\"budget\":" + budget + ",\"exceedsBudget\":" + exceedsBudget() + ",\"indexes\":[");
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            entries.get(i).writeJson(writer);
+        }
+        writer.write("]}");
+    }
+
+    public String toJson() {
+        final StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    private static void writeString(final Writer writer, final String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * A definition changed by the package.
+     */
+    public final class Entry {
+
+        private final IndexDefinitionChanges changes;
+
+        private final String type;
+
+        private final long estimate;
+
+        private Entry(final IndexDefinitionChanges changes, final String type, final long estimate) {
+            this.changes = changes;
+            this.type = type;
+            this.estimate = estimate;
+        }
+
+        public String getPath() {
+            return changes.getPath();
+        }
+
+        /**
+         * @return the index type, or {@code null} if unknown
+         */
+        public String getType() {
+            return type;
+        }
+
+        public IndexChangeClassifier.Action getAction() {
+            return changes.getAction();
+        }
+
+        /**
+         * @return the changes that cause the action, empty if the
+         *         definition could not be compared
+         */
+        public List<DefinitionChange> getChanges() {
+            return changes.getChanges();
+        }
+
+        /**
+         * @return the estimated number of nodes processed by the reindex,
+         *         or {@link #UNKNOWN}
+         */
+        public long getEstimate() {
+            return estimate;
+        }
+
+        public boolean exceedsBudget() {
+            return budget > 0 && getAction() == IndexChangeClassifier.Action.REINDEX && estimate > budget;
+        }
+
+        private void writeJson(final Writer writer) throws IOException {
+            writer.write("{\"path\":");
+            writeString(writer, getPath());
+            writer.write(",\"type\":");
+            writeString(writer, type);
+            writer.write(",\"action\":");
+            writeString(writer, getAction().name().toLowerCase());
+            writer.write(",\"estimate\":" + estimate + ",\"exceedsBudget\":" + exceedsBudget() + ",\"changes\":[");
+            final List<DefinitionChange> definitionChanges = getChanges();
+            for (int i = 0; i < definitionChanges.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeString(writer, definitionChanges.get(i).toString());
+            }
+            writer.write("]}");
+        }
+    }
+}
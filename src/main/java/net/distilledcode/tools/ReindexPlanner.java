@@ -0,0 +1,166 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.apache.jackrabbit.vault.util.DocViewProperty;
+
+import javax.jcr.RepositoryException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Computes the {@link ReindexPlan} of a package without repository, by
+ * comparing the index definitions in the package to a snapshot of the
+ * installed definitions.
+ * <br>
+ * The snapshot is a content package of the repository's index
+ * containers (e.g. a package with the filter root {@code /oak:index},
+ * built and downloaded with the package manager). Both packages are
+ * read with the {@link ArchiveIndexDefinitionReader}, hence definitions
+ * are compared like with {@link HookConfiguration#DETECTION_ARCHIVE
+ * archive detection}. As there is no content to sample, reindex costs
+ * are only known for definitions with an {@code entryCount}.
+ * <br>
+ * The hook uses the planner in {@link HookConfiguration#DRY_RUN dry run}
+ * mode as well, with snapshots of the definitions in the repository.
+ */
+public final class ReindexPlanner {
+
+    private static final String PN_TYPE = "type";
+
+    private static final String PN_ENTRY_COUNT = "entryCount";
+
+    private final IndexChangeClassifier classifier;
+
+    private final long budget;
+
+    /**
+     * @param classifier the classifier deciding the action for changed
+     *                   definitions, or {@code null} to reindex all of them
+     * @param budget the maximum number of nodes a reindex may process,
+     *               {@code 0} for no limit
+     */
+    public ReindexPlanner(final IndexChangeClassifier classifier, final long budget) {
+        this.classifier = classifier;
+        this.budget = budget;
+    }
+
+    /**
+     * @param packageArchive the package to install, opened
+     * @param snapshot a package of the installed index definitions, opened
+     * @return the plan
+     * @throws IOException if either archive cannot be read
+     */
+    public ReindexPlan plan(final Archive packageArchive, final Archive snapshot) throws IOException {
+        return plan(packageArchive, new ArchiveIndexDefinitionReader(snapshot).read());
+    }
+
+    /**
+     * @param packageArchive the package to install, opened
+     * @param installedDefinitions the installed definitions, read from a snapshot
+     * @return the plan
+     * @throws IOException if the archive cannot be read
+     */
+    ReindexPlan plan(final Archive packageArchive, final Map<String, DefinitionNode> installedDefinitions)
+            throws IOException {
+        try {
+            return plan(getPackageId(packageArchive), packageArchive.getMetaInf().getFilter(),
+                    new ArchiveIndexDefinitionReader(packageArchive).read(), installedDefinitions, null);
+        } catch (RepositoryException e) {
+            // not thrown without estimator
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * @param packageId the ID of the package
+     * @param filter the package's workspace filter
+     * @param packageDefinitions the definitions in the package
+     * @param installedDefinitions the installed definitions
+     * @param estimator the estimator for reindex costs, or {@code null}
+     *                  to only use the definitions' {@code entryCount}
+     * @return the plan
+     * @throws RepositoryException if a cost cannot be estimated
+     */
+    ReindexPlan plan(final String packageId, final WorkspaceFilter filter,
+                     final Map<String, DefinitionNode> packageDefinitions,
+                     final Map<String, DefinitionNode> installedDefinitions,
+                     final ReindexCostEstimator estimator) throws RepositoryException {
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final ReindexPlan plan = new ReindexPlan(packageId, budget);
+        final TreeSet<String> paths = new TreeSet<String>(packageDefinitions.keySet());
+        paths.addAll(installedDefinitions.keySet());
+        for (final String path : paths) {
+            if (!filter.contains(path)) {
+                continue;
+            }
+            final DefinitionNode installed = installedDefinitions.get(path);
+            final DefinitionNode packaged = packageDefinitions.get(path);
+            if (packaged == null) {
+                plan.add(new IndexDefinitionChanges(path, Collections.singletonList(new DefinitionChange(
+                        DefinitionChange.Type.NODE_REMOVED, "", null, null, null)), IndexChangeClassifier.Action.NONE),
+                        getType(installed), ReindexPlan.UNKNOWN);
+            } else if (installed == null) {
+                plan.add(new IndexDefinitionChanges(path, Collections.singletonList(new DefinitionChange(
+                        DefinitionChange.Type.NODE_ADDED, "", null, null, null)), IndexChangeClassifier.Action.REINDEX),
+                        getType(packaged), getEstimate(packaged, estimator));
+            } else if (!packaged.isComplete()) {
+                // cannot be compared, the hook would detect changes during the import
+                plan.add(new IndexDefinitionChanges(path, Collections.<DefinitionChange>emptyList(),
+                        IndexChangeClassifier.Action.REINDEX), getType(packaged), getEstimate(packaged, estimator));
+            } else if (!fingerprint.compute(installed).equals(fingerprint.compute(packaged))) {
+                final List<DefinitionChange> changes = DefinitionDiff.compare(installed, packaged);
+                final String type = getType(packaged);
+                final IndexChangeClassifier.Action action = classify(type, changes);
+                plan.add(new IndexDefinitionChanges(path, changes, action), type,
+                        action == IndexChangeClassifier.Action.REINDEX
+                                ? getEstimate(packaged, estimator)
+                                : ReindexPlan.UNKNOWN);
+            }
+        }
+        return plan;
+    }
+
+    private IndexChangeClassifier.Action classify(final String type, final List<DefinitionChange> changes) {
+        if (classifier == null || changes.isEmpty()) {
+            return IndexChangeClassifier.Action.REINDEX;
+        }
+        final IndexChangeClassifier.Action action = classifier.classify(type, changes);
+        return action == null ? IndexChangeClassifier.Action.REINDEX : action;
+    }
+
+    private static String getType(final DefinitionNode definition) {
+        final DocViewProperty type = definition.getProperty(PN_TYPE);
+        return type == null || type.values.length == 0 ? null : type.values[0];
+    }
+
+    private static long getEstimate(final DefinitionNode definition, final ReindexCostEstimator estimator)
+            throws RepositoryException {
+        if (estimator != null) {
+            return estimator.estimate(definition);
+        }
+        final DocViewProperty entryCount = definition.getProperty(PN_ENTRY_COUNT);
+        if (entryCount != null && entryCount.values.length > 0) {
+            try {
+                return Long.parseLong(entryCount.values[0]);
+            } catch (NumberFormatException e) {
+                // unknown
+            }
+        }
+        return ReindexPlan.UNKNOWN;
+    }
+
+    private static String getPackageId(final Archive archive) {
+        final Properties properties = archive.getMetaInf().getProperties();
+        if (properties == null) {
+            return null;
+        }
+        return new PackageId(properties.getProperty("group"), properties.getProperty("name"),
+                properties.getProperty("version")).toString();
+    }
+}
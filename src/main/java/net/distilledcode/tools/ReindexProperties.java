@@ -0,0 +1,200 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REFRESH;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+
+/**
+ * Removes the {@code reindex} and {@code reindexCount} properties of the
+ * index definitions in the prepare phase, such that the import does not
+ * report them as changes, and restores them once the package is
+ * installed, applying the decisions recorded in each
+ * {@link ReindexRecord}.
+ * <br>
+ * With a positive {@link HookConfiguration#BATCH_SIZE batch size}, the
+ * session is saved after every batch of restored definitions, retrying
+ * on conflicts. A retry refreshes the session, discarding all transient
+ * changes, and restores the batch again. Hence transient changes made
+ * before restoring (e.g. versions or pending markers) are saved first,
+ * such that a retry only discards the batch. Otherwise the restored
+ * properties are left for a single save.
+ */
+final class ReindexProperties {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexProperties.class);
+
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+
+    private final Session session;
+
+    private final int batchSize;
+
+    ReindexProperties(final Session session, final int batchSize) {
+        this.session = session;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Record and remove the properties of the definitions. Unchanged
+     * definitions keep their properties. Snapshots and fingerprints are
+     * taken from {@code definitions} if they were read in parallel,
+     * otherwise from the installation's session.
+     *
+     * @param paths the paths of the existing definitions
+     * @param unchangedPaths the definitions known to be unchanged
+     * @param fingerprints fingerprints computed before, by path
+     * @param definitions the definitions read in parallel, or {@code null}
+     * @return the records by path
+     * @throws RepositoryException if the definitions cannot be read
+     */
+    Map<String, ReindexRecord> remove(final Set<String> paths, final Set<String> unchangedPaths,
+                                      final Map<String, String> fingerprints,
+                                      final Map<String, ParallelDefinitionReader.Definition> definitions)
+            throws RepositoryException {
+
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final Map<String, ReindexRecord> records = new HashMap<String, ReindexRecord>();
+        for (final String path : paths) {
+            final Node definition = session.getNode(path);
+            final ReindexRecord record = new ReindexRecord(path, definition);
+            record.skipped = unchangedPaths.contains(path);
+            if (definition.hasProperty(PN_REINDEX)) {
+                final Property property = definition.getProperty(PN_REINDEX);
+                record.reindex = property.getBoolean();
+                record.originalReindex = record.reindex;
+                if (!record.skipped) {
+                    property.remove();
+                }
+            }
+            if (definition.hasProperty(PN_REINDEX_COUNT)) {
+                final Property property = definition.getProperty(PN_REINDEX_COUNT);
+                record.reindexCount = property.getLong();
+                if (!record.skipped) {
+                    property.remove();
+                }
+            }
+            if (!record.skipped && definitions != null) {
+                record.snapshot = definitions.get(path).snapshot;
+                record.fingerprint = fingerprints.containsKey(path)
+                        ? fingerprints.get(path)
+                        : definitions.get(path).fingerprint;
+            } else if (!record.skipped) {
+                record.snapshot = DefinitionDiff.snapshot(definition);
+                record.fingerprint = fingerprints.containsKey(path)
+                        ? fingerprints.get(path)
+                        : fingerprint.compute(definition);
+            }
+            records.put(path, record);
+        }
+        return records;
+    }
+
+    /**
+     * Restore the recorded properties.
+     *
+     * @param records the records by path
+     * @throws RepositoryException if the properties cannot be written or saved
+     */
+    void restore(final Map<String, ReindexRecord> records) throws RepositoryException {
+        if (batchSize > 0 && !records.isEmpty() && session.hasPendingChanges()) {
+            // a retry must not discard changes that are not part of a batch
+            session.save();
+        }
+        final List<ReindexRecord> batch = new ArrayList<ReindexRecord>();
+        for (final ReindexRecord record : records.values()) {
+            restore(record);
+            if (record.queued && record.lane != null) {
+                LOG.info("Marked index at {} for reindexing on lane {}", record.path, record.lane);
+            } else if (record.queued) {
+                LOG.info("Queued index at {} for reindexing", record.path);
+            } else if (record.modified) {
+                LOG.info("Marked index at {} for reindexing", record.path);
+            } else if (record.refresh) {
+                LOG.info("Marked index at {} for refresh", record.path);
+            } else if (record.deferred) {
+                LOG.info("Restored index properties for {}, reindexing is pending", record.path);
+            } else if (record.leased) {
+                LOG.info("Restored index properties removed by the import for {}", record.path);
+            } else {
+                LOG.info("Restored unchanged index properties for {}", record.path);
+            }
+            if (batchSize > 0) {
+                batch.add(record);
+                if (batch.size() == batchSize) {
+                    saveBatch(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            saveBatch(batch);
+        }
+    }
+
+    private void saveBatch(final List<ReindexRecord> batch) throws RepositoryException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (session.hasPendingChanges()) {
+                    session.save();
+                }
+                return;
+            } catch (InvalidItemStateException e) {
+                if (attempt == MAX_SAVE_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.warn("Saving index properties for {} definitions failed ({}), retrying",
+                        batch.size(), e.getMessage());
+                session.refresh(false);
+                for (final ReindexRecord record : batch) {
+                    record.reset();
+                    restore(record);
+                }
+            }
+        }
+    }
+
+    private void restore(final ReindexRecord record) throws RepositoryException {
+        final Node definition = record.getNode(session);
+        if (definition != null && record.leased) {
+            // the lease holder may have changed the properties meanwhile, they are only restored if removed
+            if (!definition.hasProperty(PN_REINDEX)) {
+                definition.setProperty(PN_REINDEX, record.reindex);
+            }
+            if (record.reindexCount != -1 && !definition.hasProperty(PN_REINDEX_COUNT)) {
+                definition.setProperty(PN_REINDEX_COUNT, record.reindexCount);
+            }
+        } else if (definition != null) {
+            if (!definition.hasProperty(PN_REINDEX) || definition.getProperty(PN_REINDEX).getBoolean() != record.reindex) {
+                definition.setProperty(PN_REINDEX, record.reindex);
+            }
+            if (record.reindexCount != -1 && (!definition.hasProperty(PN_REINDEX_COUNT)
+                    || definition.getProperty(PN_REINDEX_COUNT).getLong() != record.reindexCount)) {
+                definition.setProperty(PN_REINDEX_COUNT, record.reindexCount);
+            }
+            if (record.refresh) {
+                definition.setProperty(PN_REFRESH, true);
+            }
+            if (record.lane != null) {
+                if (!definition.getProperty(ReindexQueue.PN_ASYNC).isMultiple()) {
+                    definition.setProperty(ReindexQueue.PN_ASYNC, record.lane);
+                } else {
+                    definition.setProperty(ReindexQueue.PN_ASYNC, new String[]{record.lane});
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+
+/**
+ * Persistent queue of index definitions whose reindexing is scheduled
+ * by the hook rather than triggered at once (see
+ * {@link HookConfiguration#SCHEDULE}).
+ * <br>
+ * Entries are stored below {@code <stateRoot>/reindexQueue}, one node
+ * per definition. An entry is either {@value #STATE_WAITING}, i.e. its
+ * definition will be marked for reindexing once no other entry is
+ * reindexing, or {@value #STATE_REINDEXING}, i.e. its definition was
+ * marked for reindexing. A reindexing entry is finished once Oak has
+ * reset the definition's {@code reindex} property and incremented its
+ * {@code reindexCount}.
+ * <br>
+ * Definitions reindexed on a dedicated lane are kept on that lane. Moving
+ * them back would skip the content changes the original lane indexed
+ * while they were on the dedicated lane, or require another reindex on
+ * the original lane.
+ * <br>
+ * The queue is advanced at the end of each installation and, optionally,
+ * by a {@link ReindexQueueWatcher}. Writes are transient.
+ */
+final class ReindexQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexQueue.class);
+
+    static final String PN_PATH = "path";
+
+    static final String PN_PRIORITY = "priority";
+
+    static final String PN_STATE = "state";
+
+    static final String PN_ASYNC = "async";
+
+    static final String STATE_WAITING = "waiting";
+
+    static final String STATE_REINDEXING = "reindexing";
+
+    private static final Comparator<Node> BY_PRIORITY = new Comparator<Node>() {
+        @Override
+        public int compare(final Node a, final Node b) {
+            try {
+                final long priorityA = a.getProperty(PN_PRIORITY).getLong();
+                final long priorityB = b.getProperty(PN_PRIORITY).getLong();
+                if (priorityA != priorityB) {
+                    return priorityA < priorityB ? -1 : 1;
+                }
+                return a.getProperty(PN_PATH).getString().compareTo(b.getProperty(PN_PATH).getString());
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final Session session;
+
+    private final String queuePath;
+
+    ReindexQueue(final Session session, final String stateRoot) {
+        this.session = session;
+        this.queuePath = stateRoot + "/reindexQueue";
+    }
+
+    /**
+     * Add a definition that is marked for reindexing once it is first in
+     * line. A definition that is already queued is moved back to waiting.
+     */
+    void addWaiting(final String definitionPath, final long priority) throws RepositoryException {
+        final Node entry = getOrCreateEntry(definitionPath);
+        entry.setProperty(PN_PRIORITY, priority);
+        entry.setProperty(PN_STATE, STATE_WAITING);
+        entry.setProperty(PN_REINDEX_COUNT, (Value) null);
+    }
+
+    /**
+     * Add a definition that was marked for reindexing on a dedicated
+     * lane, it remains on that lane once reindexing has finished.
+     */
+    void addReindexing(final String definitionPath, final long reindexCount) throws RepositoryException {
+        final Node entry = getOrCreateEntry(definitionPath);
+        entry.setProperty(PN_PRIORITY, 0L);
+        entry.setProperty(PN_STATE, STATE_REINDEXING);
+        entry.setProperty(PN_REINDEX_COUNT, reindexCount);
+    }
+
+    boolean isEmpty() throws RepositoryException {
+        return !session.nodeExists(queuePath) || !session.getNode(queuePath).hasNodes();
+    }
+
+    /**
+     * Finish the entries whose reindexing has completed and, if no entry
+     * is reindexing anymore, mark the first waiting entry's definition
+     * for reindexing.
+     *
+     * @return {@code true} if the queue was modified
+     */
+    boolean advance() throws RepositoryException {
+        if (isEmpty()) {
+            return false;
+        }
+        boolean modified = false;
+        boolean reindexing = false;
+        final List<Node> waiting = new ArrayList<Node>();
+        final NodeIterator entries = session.getNode(queuePath).getNodes();
+        while (entries.hasNext()) {
+            final Node entry = entries.nextNode();
+            final String path = entry.getProperty(PN_PATH).getString();
+            if (!session.nodeExists(path)) {
+                LOG.info("Removing index definition at {} from the reindex queue, it no longer exists", path);
+                entry.remove();
+                modified = true;
+            } else if (STATE_WAITING.equals(entry.getProperty(PN_STATE).getString())) {
+                waiting.add(entry);
+            } else if (isFinished(session.getNode(path), entry)) {
+                finish(session.getNode(path), entry);
+                modified = true;
+            } else {
+                reindexing = true;
+            }
+        }
+        if (!reindexing && !waiting.isEmpty()) {
+            Collections.sort(waiting, BY_PRIORITY);
+            start(waiting.get(0));
+            modified = true;
+        }
+        return modified;
+    }
+
+    private void start(final Node entry) throws RepositoryException {
+        final String path = entry.getProperty(PN_PATH).getString();
+        final Node definition = session.getNode(path);
+        entry.setProperty(PN_STATE, STATE_REINDEXING);
+        entry.setProperty(PN_REINDEX_COUNT, definition.hasProperty(PN_REINDEX_COUNT)
+                ? definition.getProperty(PN_REINDEX_COUNT).getLong()
+                : -1L);
+        definition.setProperty(PN_REINDEX, true);
+        LOG.info("Marked index at {} for reindexing", path);
+    }
+
+    private static boolean isFinished(final Node definition, final Node entry) throws RepositoryException {
+        if (definition.hasProperty(PN_REINDEX) && definition.getProperty(PN_REINDEX).getBoolean()) {
+            return false;
+        }
+        final long reindexCount = entry.hasProperty(PN_REINDEX_COUNT)
+                ? entry.getProperty(PN_REINDEX_COUNT).getLong()
+                : -1L;
+        return reindexCount == -1
+                || definition.hasProperty(PN_REINDEX_COUNT)
+                && definition.getProperty(PN_REINDEX_COUNT).getLong() > reindexCount;
+    }
+
+    private static void finish(final Node definition, final Node entry) throws RepositoryException {
+        LOG.info("Reindexing of index at {} finished", definition.getPath());
+        entry.remove();
+    }
+
+    private Node getOrCreateEntry(final String definitionPath) throws RepositoryException {
+        final Node entry = HookState.getOrCreateNode(session, queuePath + "/" + HookState.escapeName(definitionPath));
+        entry.setProperty(PN_PATH, definitionPath);
+        return entry;
+    }
+}
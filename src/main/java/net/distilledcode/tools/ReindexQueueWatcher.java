@@ -0,0 +1,184 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.UUID;
+
+/**
+ * Advances a {@link ReindexQueue} and retires definitions superseded by
+ * built {@link IndexVersions} in a background thread, until neither is
+ * left or the {@link HookConfiguration#WATCH_TIMEOUT timeout} has
+ * elapsed. The installation's session cannot be used after the
+ * installation, therefore the watcher impersonates the installing user.
+ * <br>
+ * FileVault loads the hook in a new class loader for each installation,
+ * hence the watcher's ownership is kept in the repository rather than in
+ * a static field: each watcher writes its ID to
+ * {@code <stateRoot>/watcher} and exits at its next poll once the ID was
+ * replaced or removed. Starting a watcher takes over from the running one,
+ * and the next installation {@link #stop(Session, String) stops} it, as
+ * it advances the queue itself and starts a new watcher at its end if
+ * entries are left. This also holds for watchers on other cluster members.
+ */
+final class ReindexQueueWatcher implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReindexQueueWatcher.class);
+
+    static final String PN_OWNER = "owner";
+
+    private final Session session;
+
+    private final String stateRoot;
+
+    private final String owner;
+
+    private final long pollIntervalMillis;
+
+    private final long timeoutMillis;
+
+    private ReindexQueueWatcher(final Session session, final String stateRoot, final String owner,
+                                final long pollIntervalMillis, final long timeoutMillis) {
+        this.session = session;
+        this.stateRoot = stateRoot;
+        this.owner = owner;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Start a watcher, which takes over from the running one, if any.
+     *
+     * @param installSession the installation's session, which is impersonated
+     * @param stateRoot the hook's state root
+     * @param pollIntervalMillis the interval in which the queue is advanced
+     * @param timeoutMillis the time after which the watcher stops
+     * @return the watcher's thread, or {@code null} if it cannot be started
+     */
+    static Thread start(final Session installSession, final String stateRoot,
+                        final long pollIntervalMillis, final long timeoutMillis) {
+        final String owner = UUID.randomUUID().toString();
+        final Session session;
+        try {
+            session = HookState.impersonate(installSession);
+        } catch (RepositoryException e) {
+            LOG.warn("Cannot watch the reindex queue and index versions, they are advanced with the next installation",
+                    e);
+            return null;
+        }
+        try {
+            HookState.getOrCreateNode(session, getPath(stateRoot)).setProperty(PN_OWNER, owner);
+            session.save();
+        } catch (RepositoryException e) {
+            session.logout();
+            LOG.warn("Cannot watch the reindex queue and index versions, they are advanced with the next installation",
+                    e);
+            return null;
+        }
+        final Thread thread = new Thread(
+                new ReindexQueueWatcher(session, stateRoot, owner, pollIntervalMillis, timeoutMillis),
+                "oak-reindex-hook-queue");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Make the running watcher, if any, exit at its next poll. It may run
+     * in the class loader of an earlier installation or on another cluster
+     * member.
+     *
+     * @param installSession the installation's session, which is impersonated
+     * @param stateRoot the hook's state root
+     * @throws RepositoryException if the ownership cannot be removed
+     */
+    static void stop(final Session installSession, final String stateRoot) throws RepositoryException {
+        final String path = getPath(stateRoot);
+        if (!installSession.nodeExists(path)) {
+            return;
+        }
+        final Session session = HookState.impersonate(installSession);
+        try {
+            remove(session, path);
+        } finally {
+            session.logout();
+        }
+    }
+
+    private static String getPath(final String stateRoot) {
+        return stateRoot + "/watcher";
+    }
+
+    private static void remove(final Session session, final String path) throws RepositoryException {
+        if (!session.nodeExists(path)) {
+            return;
+        }
+        session.getNode(path).remove();
+        try {
+            session.save();
+        } catch (InvalidItemStateException e) {
+            // concurrently removed or taken over
+            LOG.debug("Conflict while removing the watcher's ownership", e);
+            session.refresh(false);
+        }
+    }
+
+    private boolean isOwner() throws RepositoryException {
+        final String path = getPath(stateRoot);
+        return session.nodeExists(path) && session.getNode(path).hasProperty(PN_OWNER)
+                && owner.equals(session.getNode(path).getProperty(PN_OWNER).getString());
+    }
+
+    @Override
+    public void run() {
+        final ReindexQueue queue = new ReindexQueue(session, stateRoot);
+        final IndexVersions versions = new IndexVersions(session, stateRoot);
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean owning = true;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (System.currentTimeMillis() >= deadline) {
+                    LOG.info("Stopped watching the reindex queue and index versions after {}s, "
+                            + "they are advanced with the next installation", timeoutMillis / 1000);
+                    break;
+                }
+                Thread.sleep(pollIntervalMillis);
+                session.refresh(false);
+                if (!isOwner()) {
+                    LOG.debug("Stopped watching the reindex queue and index versions, taken over by an installation");
+                    owning = false;
+                    break;
+                }
+                if (queue.isEmpty() && versions.isEmpty()) {
+                    break;
+                }
+                try {
+                    final boolean advanced = queue.advance();
+                    if (versions.retire() || advanced) {
+                        session.save();
+                    }
+                } catch (InvalidItemStateException e) {
+                    // concurrently advanced, e.g. by an installation
+                    LOG.debug("Conflict while advancing the reindex queue, retrying", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RepositoryException e) {
+            LOG.warn("Failed to advance the reindex queue, it is advanced with the next installation", e);
+        } finally {
+            try {
+                if (owning && isOwner()) {
+                    remove(session, getPath(stateRoot));
+                }
+            } catch (RepositoryException e) {
+                LOG.debug("Failed to remove the watcher's ownership", e);
+            } finally {
+                session.logout();
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package net.distilledcode.tools;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * The state of an index definition during one installation: its
+ * {@code reindex} and {@code reindexCount} properties removed in the
+ * prepare phase, its content before the import and the decisions taken
+ * once the package is installed, which are applied when the properties
+ * are restored (see {@link ReindexProperties}).
+ */
+final class ReindexRecord {
+
+    final String path;
+
+    boolean reindex = false;
+
+    boolean originalReindex = false;
+
+    long reindexCount = -1;
+
+    String fingerprint;
+
+    boolean skipped = false;
+
+    boolean leased = false;
+
+    boolean modified = false;
+
+    boolean refresh = false;
+
+    boolean deferred = false;
+
+    boolean queued = false;
+
+    DefinitionNode snapshot;
+
+    String lane;
+
+    private Node node;
+
+    ReindexRecord(final String path, final Node node) {
+        this.path = path;
+        this.node = node;
+    }
+
+    /**
+     * The definition node resolved in the prepare phase is reused, unless
+     * it was replaced or removed by the import, or {@link #reset()}.
+     *
+     * @param session the installation's session
+     * @return the definition node, or {@code null} if it no longer exists
+     * @throws RepositoryException if the node cannot be read
+     */
+    Node getNode(final Session session) throws RepositoryException {
+        if (node != null) {
+            try {
+                if (path.equals(node.getPath())) {
+                    return node;
+                }
+            } catch (InvalidItemStateException e) {
+                // stale node, resolved again below
+            }
+        }
+        node = session.nodeExists(path) ? session.getNode(path) : null;
+        return node;
+    }
+
+    /**
+     * Resolve the definition node again, e.g. after the session was refreshed.
+     */
+    void reset() {
+        node = null;
+    }
+}
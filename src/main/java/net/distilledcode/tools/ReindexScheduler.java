@@ -0,0 +1,115 @@
+package net.distilledcode.tools;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Defers reindexing of modified definitions according to the
+ * {@link HookConfiguration#SCHEDULE schedule}. With
+ * {@link HookConfiguration#SCHEDULE_SEQUENTIAL}, modified definitions are
+ * not marked for reindexing but queued, in the order of the
+ * {@link HookConfiguration#PRIORITY priorities}. With
+ * {@link HookConfiguration#SCHEDULE_LANE}, modified asynchronous
+ * definitions are moved to a dedicated lane, where they are reindexed
+ * and kept.
+ */
+final class ReindexScheduler {
+
+    private final Session session;
+
+    private final String schedule;
+
+    private final String lane;
+
+    private final List<String> priorities;
+
+    /**
+     * @param session the installation's session
+     * @param schedule the schedule
+     * @param lane the lane of the {@link HookConfiguration#SCHEDULE_LANE} schedule
+     * @param priorities comma separated paths or names of definitions that are reindexed first
+     */
+    ReindexScheduler(final Session session, final String schedule, final String lane, final String priorities) {
+        this.session = session;
+        this.schedule = schedule;
+        this.lane = lane;
+        this.priorities = getPriorities(priorities);
+    }
+
+    /**
+     * Record in each modified definition's record how it is reindexed.
+     *
+     * @param records the records by path
+     * @throws RepositoryException if the definitions cannot be read
+     */
+    void schedule(final Map<String, ReindexRecord> records) throws RepositoryException {
+        final boolean sequential = HookConfiguration.SCHEDULE_SEQUENTIAL.equals(schedule);
+        final boolean dedicatedLane = HookConfiguration.SCHEDULE_LANE.equals(schedule);
+        if (!sequential && !dedicatedLane) {
+            return;
+        }
+        for (final ReindexRecord record : records.values()) {
+            if (!record.modified) {
+                continue;
+            }
+            if (sequential) {
+                record.reindex = false;
+                record.queued = true;
+            } else {
+                final Node definition = record.getNode(session);
+                if (definition != null && definition.hasProperty(ReindexQueue.PN_ASYNC)) {
+                    record.lane = lane;
+                    record.queued = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the queued definitions to the queue.
+     *
+     * @param queue the reindex queue
+     * @param records the records by path
+     * @throws RepositoryException if the queue cannot be written
+     */
+    void enqueue(final ReindexQueue queue, final Map<String, ReindexRecord> records) throws RepositoryException {
+        for (final ReindexRecord record : records.values()) {
+            if (!record.queued) {
+                continue;
+            }
+            if (record.lane != null) {
+                queue.addReindexing(record.path, record.reindexCount);
+            } else {
+                queue.addWaiting(record.path, getPriority(record.path));
+            }
+        }
+    }
+
+    /**
+     * The position of the definition's path or name in the list of
+     * prioritized definitions. Definitions that are not listed come last.
+     */
+    private long getPriority(final String path) {
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        for (int i = 0; i < priorities.size(); i++) {
+            if (priorities.get(i).equals(path) || priorities.get(i).equals(name)) {
+                return i;
+            }
+        }
+        return priorities.size();
+    }
+
+    private static List<String> getPriorities(final String value) {
+        final List<String> priorities = new ArrayList<String>();
+        for (final String priority : value.split(",")) {
+            if (priority.trim().length() > 0) {
+                priorities.add(priority.trim());
+            }
+        }
+        return priorities;
+    }
+}
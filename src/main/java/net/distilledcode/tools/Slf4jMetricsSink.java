@@ -0,0 +1,21 @@
+package net.distilledcode.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs the metrics of each installation as a single line of
+ * {@code key=value} pairs at INFO level, using the logger
+ * {@value #LOGGER}.
+ */
+public class Slf4jMetricsSink implements MetricsSink {
+
+    public static final String LOGGER = "net.distilledcode.tools.metrics";
+
+    private static final Logger LOG = LoggerFactory.getLogger(LOGGER);
+
+    @Override
+    public void publish(final InstallMetrics metrics) {
+        LOG.info("{}", metrics);
+    }
+}
@@ -0,0 +1,89 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.ProgressTrackerListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompoundProgressTrackerListenerTest {
+
+    @Test
+    public void flushAsyncListeners() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> asyncPaths = Collections.synchronizedList(new ArrayList<String>());
+        final RecordingListener slowListener = new RecordingListener(asyncPaths) {
+            @Override
+            public void onMessage(final Mode mode, final String action, final String path) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onMessage(mode, action, path);
+            }
+        };
+        final List<String> syncPaths = new ArrayList<String>();
+        final CompoundProgressTrackerListener listener = CompoundProgressTrackerListener.create(
+                new AsyncProgressTrackerListener(slowListener, 4), new RecordingListener(syncPaths));
+
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            listener.onMessage(ProgressTrackerListener.Mode.PATHS, "A", "/content/node" + i);
+            expected.add("/content/node" + i);
+        }
+        listener.onError(ProgressTrackerListener.Mode.PATHS, "/content/error", new Exception());
+        expected.add("/content/error");
+
+        // synchronous listeners are called on the calling thread
+        assertEquals(expected, syncPaths);
+        assertTrue(asyncPaths.isEmpty());
+
+        release.countDown();
+        listener.flush();
+        assertEquals(expected, asyncPaths);
+
+        // messages after closing are delivered synchronously
+        listener.close();
+        listener.onMessage(ProgressTrackerListener.Mode.PATHS, "A", "/content/closed");
+        assertEquals("/content/closed", asyncPaths.get(asyncPaths.size() - 1));
+    }
+
+    @Test
+    public void blockWhenBufferIsFull() {
+        final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+        final AsyncProgressTrackerListener listener = new AsyncProgressTrackerListener(new RecordingListener(paths), 1);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            listener.onMessage(ProgressTrackerListener.Mode.PATHS, "U", "/content/node" + i);
+            expected.add("/content/node" + i);
+        }
+        listener.close();
+        assertEquals(expected, paths);
+    }
+
+    private static class RecordingListener implements ProgressTrackerListener {
+
+        private final List<String> paths;
+
+        RecordingListener(final List<String> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public void onMessage(final Mode mode, final String action, final String path) {
+            paths.add(path);
+        }
+
+        @Override
+        public void onError(final Mode mode, final String path, final Exception e) {
+            paths.add(path);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package net.distilledcode.tools;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.distilledcode.tools.DefaultIndexChangeClassifier.TYPE_LUCENE;
+import static net.distilledcode.tools.DefaultIndexChangeClassifier.TYPE_PROPERTY;
+import static net.distilledcode.tools.IndexChangeClassifier.Action.NONE;
+import static net.distilledcode.tools.IndexChangeClassifier.Action.REFRESH;
+import static net.distilledcode.tools.IndexChangeClassifier.Action.REINDEX;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DefaultIndexChangeClassifierTest {
+
+    private final IndexChangeClassifier classifier = new DefaultIndexChangeClassifier();
+
+    @Test
+    public void classifyQueryTimeProperties() {
+        final DefinitionChange costPerEntry = changed("", "costPerEntry", "1", "0.5");
+        assertEquals(REFRESH, classify(TYPE_LUCENE, costPerEntry));
+        assertEquals(NONE, classify(TYPE_PROPERTY, costPerEntry));
+        assertEquals(REINDEX, classify("custom", costPerEntry));
+        assertEquals(NONE, classify("custom", changed("", "jcr:title", "foo", "bar")));
+    }
+
+    @Test
+    public void classifyIncludedAndExcludedPaths() {
+        assertEquals(REFRESH, classify(TYPE_LUCENE, changed("", "includedPaths", "/content", "/content/foo")));
+        assertEquals(REFRESH, classify(TYPE_LUCENE, added("", "includedPaths", "/content")));
+        assertEquals(REINDEX, classify(TYPE_LUCENE, changed("", "includedPaths", "/content/foo", "/content")));
+        assertEquals(REINDEX, classify(TYPE_LUCENE, removed("", "includedPaths", "/content")));
+        assertEquals(REFRESH, classify(TYPE_LUCENE, added("", "excludedPaths", "/content/foo")));
+        assertEquals(REINDEX, classify(TYPE_LUCENE, removed("", "excludedPaths", "/content/foo")));
+    }
+
+    @Test
+    public void classifyNestedChanges() {
+        final DefinitionChange aggregate = added("aggregates/nt:file", "include0", "jcr:content");
+        assertEquals(NONE, classify(TYPE_PROPERTY, aggregate));
+        assertEquals(REINDEX, classify(TYPE_LUCENE, aggregate));
+        assertEquals(REINDEX, classify(TYPE_LUCENE,
+                new DefinitionChange(DefinitionChange.Type.NODE_REMOVED, "indexRules/nt:base", null, null, null)));
+    }
+
+    @Test
+    public void mostExpensiveActionWins() {
+        assertEquals(REINDEX, classifier.classify(TYPE_LUCENE, Arrays.asList(
+                changed("", "costPerEntry", "1", "0.5"),
+                changed("", "propertyNames", "jcr:mimeType", "jcr:encoding"),
+                changed("", "jcr:title", "foo", "bar"))));
+        assertEquals(NONE, classify(DefaultIndexChangeClassifier.TYPE_DISABLED,
+                changed("", "propertyNames", "jcr:mimeType", "jcr:encoding")));
+    }
+
+    @Test
+    public void createClassifiersByName() {
+        assertTrue(IndexChangeClassifiers.create(HookConfiguration.CLASSIFIER_DEFAULT)
+                instanceof DefaultIndexChangeClassifier);
+        assertTrue(IndexChangeClassifiers.create(DefaultIndexChangeClassifier.class.getName())
+                instanceof DefaultIndexChangeClassifier);
+        try {
+            IndexChangeClassifiers.create("net.distilledcode.tools.MissingClassifier");
+            fail("Unknown classifiers cannot be created");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private IndexChangeClassifier.Action classify(final String type, final DefinitionChange change) {
+        return classifier.classify(type, Arrays.asList(change));
+    }
+
+    private static DefinitionChange changed(final String path, final String name,
+                                            final String before, final String after) {
+        return new DefinitionChange(DefinitionChange.Type.PROPERTY_CHANGED, path, name,
+                new String[]{before}, new String[]{after});
+    }
+
+    private static DefinitionChange added(final String path, final String name, final String after) {
+        return new DefinitionChange(DefinitionChange.Type.PROPERTY_ADDED, path, name, null, new String[]{after});
+    }
+
+    private static DefinitionChange removed(final String path, final String name, final String before) {
+        return new DefinitionChange(DefinitionChange.Type.PROPERTY_REMOVED, path, name, new String[]{before}, null);
+    }
+}
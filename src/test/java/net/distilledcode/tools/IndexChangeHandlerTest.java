@@ -2,27 +2,51 @@ package net.distilledcode.tools;
 
 import org.apache.jackrabbit.oak.jcr.Jcr;
 import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexEditorProvider;
+import org.apache.jackrabbit.vault.fs.io.FileArchive;
 import org.apache.jackrabbit.vault.packaging.PackageException;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import javax.jcr.Node;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
+import static net.distilledcode.tools.InstallHookTestUtils.assertReindexCounts;
+import static net.distilledcode.tools.InstallHookTestUtils.getChildNames;
 import static net.distilledcode.tools.InstallHookTestUtils.installWithHook;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REFRESH;
 import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
 import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class IndexChangeHandlerTest {
 
     public static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private Session admin;
 
     @Before
@@ -107,6 +131,37 @@ public class IndexChangeHandlerTest {
         assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
     }
 
+    @Test
+    public void noReindexWhenIndexDefinitionIsRewrittenWithoutChanges() throws PackageException, IOException, RepositoryException {
+        // install package version 1
+        installWithHook(admin, "reordered-index-definition/version1", new OakReindexInstallHook());
+        assertExists(admin, "/oak:index/ntFile");
+        final Node definition = admin.getNode("/oak:index/ntFile");
+        assertFalse("reindex != false", definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // install package version 2 (re-ordered nodes and explicit reindex flag)
+        installWithHook(admin, "reordered-index-definition/version2", new OakReindexInstallHook());
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void reindexWhenIndexRulesAreReordered() throws PackageException, IOException, RepositoryException {
+        // install package version 1
+        installWithHook(admin, "reordered-index-rules/version1", new OakReindexInstallHook());
+        final Node definition = admin.getNode("/oak:index/ntFile");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // install package version 2 (nt:base rule before nt:file rule, the first matching rule applies)
+        final OakReindexInstallHook hook = new OakReindexInstallHook();
+        installWithHook(admin, "reordered-index-rules/version2", hook);
+        assertEquals(Arrays.asList("nt:base", "nt:file"),
+                getChildNames(admin.getNode("/oak:index/ntFile/indexRules")));
+        assertEquals(Collections.singleton("/oak:index/ntFile"), hook.getDefinitionChanges().keySet());
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
     @Test
     public void handleDeletedIndexDefinitionsGracefully() throws PackageException, IOException, RepositoryException {
         // install package version 1
@@ -132,6 +187,609 @@ public class IndexChangeHandlerTest {
         assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
     }
 
+    @Test
+    public void skipDefinitionsInstalledFromIdenticalPackageContent() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.FINGERPRINT_STORE, "true");
+
+        // install package version 1
+        installWithHook(admin, "property-index-definition/version1", new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/jcrMimeType");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+        final String storedDigest = "/var/oakReindexHook/fingerprints/%2Foak%3Aindex%2FjcrMimeType/packageDigest";
+        final String storedFingerprint = "/var/oakReindexHook/fingerprints/%2Foak%3Aindex%2FjcrMimeType/fingerprint";
+        assertTrue(admin.propertyExists(storedDigest));
+        assertEquals(new IndexDefinitionFingerprint().compute(definition),
+                admin.getProperty(storedFingerprint).getString());
+
+        // re-install package version 1, which is not inspected due to the stored digest
+        final OakReindexInstallHook skippingHook = new OakReindexInstallHook();
+        installWithHook(admin, "property-index-definition/version1", skippingHook, properties);
+        assertTrue(skippingHook.getDefinitionChanges().isEmpty());
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // modify the definition outside of a package installation
+        definition.setProperty("propertyNames", new String[]{"jcr:encoding"}, PropertyType.NAME);
+        admin.save();
+
+        // re-install package version 1, which reverts the modification and is reindexed
+        installWithHook(admin, "property-index-definition/version1", new OakReindexInstallHook(), properties);
+        assertEquals("jcr:mimeType", definition.getProperty("propertyNames").getValues()[0].getString());
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // install package version 2, which has a different digest
+        final String digest = admin.getProperty(storedDigest).getString();
+        installWithHook(admin, "property-index-definition/version2", new OakReindexInstallHook(), properties);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(3, definition.getProperty(PN_REINDEX_COUNT).getLong());
+        assertFalse(digest.equals(admin.getProperty(storedDigest).getString()));
+    }
+
+    @Test
+    public void recordDefinitionsCreatedBelowContentRoots() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.FINGERPRINT_STORE, "true");
+        final TestPackageBuilder builder = new TestPackageBuilder()
+                .withDefinitions(1).withContentNodes(10).withNestedDefinitions(1);
+
+        // the nested oak:index node is created by the package below the content's filter root
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertTrue(admin.propertyExists("/var/oakReindexHook/fingerprints/"
+                + HookState.escapeName("/content/generated/oak:index/nested0") + "/packageDigest"));
+    }
+
+    @Test
+    public void detectChangesFromArchiveBeforeImport() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.DETECTION,
+                HookConfiguration.DETECTION_ARCHIVE);
+
+        // install package version 1
+        installWithHook(admin, "reordered-index-definition/version1", new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/ntFile");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // install package version 2 (re-ordered nodes and explicit reindex flag)
+        installWithHook(admin, "reordered-index-definition/version2", new OakReindexInstallHook(), properties);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // install a modified definition
+        installWithHook(admin, "lucene-index-definition/version2", new OakReindexInstallHook(), properties);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // re-install the modified definition
+        installWithHook(admin, "lucene-index-definition/version2", new OakReindexInstallHook(), properties);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // install a definition with a deleted child node
+        installWithHook(admin, "lucene-index-definition/version1", new OakReindexInstallHook(), properties);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(3, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void detectInlineDefinitionsFromArchive() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.DETECTION,
+                HookConfiguration.DETECTION_ARCHIVE);
+
+        // install package version 1, with definitions inline in the .content.xml of /inline
+        installWithHook(admin, "inline-index-definition/version1", new OakReindexInstallHook(), properties);
+        final Node title = admin.getNode("/inline/oak:index/title");
+        final Node pageTitle = admin.getNode("/inline/page/oak:index/pageTitle");
+        assertEquals(1, title.getProperty(PN_REINDEX_COUNT).getLong());
+        assertEquals(1, pageTitle.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // re-install package version 1, both definitions are found identical before the import
+        final OakReindexInstallHook unchangedHook = new OakReindexInstallHook();
+        installWithHook(admin, "inline-index-definition/version1", unchangedHook, properties);
+        assertTrue(unchangedHook.getDefinitionChanges().isEmpty());
+        assertEquals(1, title.getProperty(PN_REINDEX_COUNT).getLong());
+        assertEquals(1, pageTitle.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // install package version 2, which changes the definition nested below /inline/page
+        final OakReindexInstallHook hook = new OakReindexInstallHook();
+        installWithHook(admin, "inline-index-definition/version2", hook, properties);
+        assertEquals(Collections.singleton("/inline/page/oak:index/pageTitle"), hook.getDefinitionChanges().keySet());
+        assertEquals(1, title.getProperty(PN_REINDEX_COUNT).getLong());
+        assertEquals(2, pageTitle.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void reindexModifiedIndexWithAsyncListener() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.ASYNC_LISTENER, "true");
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.ASYNC_LISTENER_CAPACITY, "2");
+
+        // install package version 1
+        installWithHook(admin, "lucene-index-definition/version1", new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/ntFile");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // install package version 2
+        installWithHook(admin, "lucene-index-definition/version2", new OakReindexInstallHook(), properties);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void saveDefinitionsInBatches() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.BATCH_SIZE, "2");
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(5);
+
+        // install 5 definitions
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(1, admin.getProperty("/oak:index/generated" + i + "/" + PN_REINDEX_COUNT).getLong());
+        }
+
+        // re-install the same definitions
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(1, admin.getProperty("/oak:index/generated" + i + "/" + PN_REINDEX_COUNT).getLong());
+        }
+
+        // install modified definitions
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertFalse(admin.hasPendingChanges());
+        for (int i = 0; i < 5; i++) {
+            assertFalse(admin.getProperty("/oak:index/generated" + i + "/" + PN_REINDEX).getBoolean());
+            assertEquals(2, admin.getProperty("/oak:index/generated" + i + "/" + PN_REINDEX_COUNT).getLong());
+        }
+    }
+
+    @Test
+    public void reindexModifiedDefinitionsSequentially() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.SCHEDULE,
+                HookConfiguration.SCHEDULE_SEQUENTIAL);
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.PRIORITY, "generated2");
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.POLL_INTERVAL, "0");
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(3);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+
+        // install modified definitions, only the prioritized one is reindexed
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertReindexCounts(admin, 1, 1, 2);
+
+        // the remaining definitions are reindexed one after another
+        final ReindexQueue queue = new ReindexQueue(admin, HookConfiguration.DEFAULT_STATE_ROOT);
+        assertTrue(queue.advance());
+        admin.save();
+        assertReindexCounts(admin, 2, 1, 2);
+        assertTrue(queue.advance());
+        admin.save();
+        assertReindexCounts(admin, 2, 2, 2);
+        assertTrue(queue.advance());
+        admin.save();
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.advance());
+    }
+
+    @Test
+    public void reindexModifiedDefinitionsOnDedicatedLane() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.SCHEDULE,
+                HookConfiguration.SCHEDULE_LANE);
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.POLL_INTERVAL, "0");
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1).withAsync("async");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        definition.setProperty(PN_REINDEX, false);
+        definition.setProperty(PN_REINDEX_COUNT, 1L);
+        admin.save();
+
+        // install the modified definition, it is moved to the dedicated lane
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertEquals(HookConfiguration.DEFAULT_LANE, definition.getProperty("async").getString());
+        assertTrue(definition.getProperty(PN_REINDEX).getBoolean());
+        final ReindexQueue queue = new ReindexQueue(admin, HookConfiguration.DEFAULT_STATE_ROOT);
+        assertFalse(queue.advance());
+
+        // once reindexed, the definition is kept on the dedicated lane
+        definition.setProperty(PN_REINDEX, false);
+        definition.setProperty(PN_REINDEX_COUNT, 2L);
+        admin.save();
+        assertTrue(queue.advance());
+        admin.save();
+        assertEquals(HookConfiguration.DEFAULT_LANE, definition.getProperty("async").getString());
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void classifyDefinitionChanges() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.CLASSIFIER,
+                HookConfiguration.CLASSIFIER_DEFAULT);
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // query time properties do not affect property indexes
+        builder.withDefinitionProperty("entryCount", "{Long}1000");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertEquals(1000, definition.getProperty("entryCount").getLong());
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertFalse(definition.hasProperty(PN_REFRESH));
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // indexed properties do
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void refreshLuceneIndexForQueryTimeChanges() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.CLASSIFIER,
+                DefaultIndexChangeClassifier.class.getName());
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1).withType("lucene");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        builder.withDefinitionProperty("costPerEntry", "{Double}0.5");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertTrue(definition.getProperty(PN_REFRESH).getBoolean());
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void captureDefinitionChanges() throws PackageException, IOException, RepositoryException {
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(2);
+        final OakReindexInstallHook hook = new OakReindexInstallHook();
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), hook, new Properties());
+        assertEquals(new HashSet<String>(Arrays.asList("/oak:index/generated0", "/oak:index/generated1")),
+                hook.getDefinitionChanges().keySet());
+        assertEquals(Collections.singleton(""),
+                hook.getDefinitionChanges().get("/oak:index/generated0").getAddedNodes());
+
+        builder.withIndexedProperty("jcr:encoding").withDefinitionProperty("entryCount", "{Long}10");
+        final OakReindexInstallHook updateHook = new OakReindexInstallHook();
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), updateHook, new Properties());
+        final IndexDefinitionChanges changes = updateHook.getDefinitionChanges().get("/oak:index/generated0");
+        assertEquals(IndexChangeClassifier.Action.REINDEX, changes.getAction());
+        assertEquals(Collections.singleton(""), changes.getUpdatedNodes());
+        assertTrue(changes.getAddedNodes().isEmpty());
+        assertEquals(2, changes.getChanges().size());
+        final DefinitionChange propertyNames = changes.getChanges().get(0);
+        assertEquals(DefinitionChange.Type.PROPERTY_CHANGED, propertyNames.getType());
+        assertEquals("propertyNames", propertyNames.getPropertyName());
+        assertArrayEquals(new String[]{"jcr:mimeType"}, propertyNames.getBefore());
+        assertArrayEquals(new String[]{"jcr:encoding"}, propertyNames.getAfter());
+        assertEquals("+entryCount [10]", changes.getChanges().get(1).toString());
+    }
+
+    @Test
+    public void deferReindexExceedingBudget() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.BUDGET, "1000");
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1).withContentNodes(3000)
+                .withDefinitionProperty("includedPaths", "[/content/generated]");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // 3004 nodes below /content/generated exceed the budget
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+        final String marker = "/var/oakReindexHook/pending/%2Foak%3Aindex%2Fgenerated0";
+        assertEquals(3004, admin.getProperty(marker + "/" + PendingReindexes.PN_ESTIMATE).getLong());
+
+        // the marker is removed after the reindex was triggered manually
+        definition.setProperty(PN_REINDEX, true);
+        admin.save();
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+        assertFalse(admin.nodeExists(marker));
+    }
+
+    @Test
+    public void failPrepareWhenReindexExceedsBudget() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.BUDGET, "1000");
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.BUDGET_ACTION,
+                HookConfiguration.BUDGET_FAIL);
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.DETECTION,
+                HookConfiguration.DETECTION_ARCHIVE);
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1).withContentNodes(3000)
+                .withDefinitionProperty("includedPaths", "[/content/generated]");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+
+        builder.withIndexedProperty("jcr:encoding");
+        try {
+            installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+            fail("Installation should fail in the prepare phase");
+        } catch (PackageException e) {
+            // expected
+        }
+        admin.refresh(false);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        assertEquals("jcr:mimeType", definition.getProperty("propertyNames").getValues()[0].getString());
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void discoverNestedDefinitionsByQuery() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.DISCOVERY,
+                HookConfiguration.DISCOVERY_QUERY);
+        final TestPackageBuilder builder = new TestPackageBuilder()
+                .withDefinitions(1).withContentNodes(10).withNestedDefinitions(2);
+        final File packageDirectory = builder.build(temporaryFolder.newFolder());
+        installWithHook(admin, packageDirectory, new OakReindexInstallHook(), properties);
+        final Set<String> expected = new HashSet<String>(Arrays.asList("/oak:index/generated0",
+                "/content/generated/oak:index/nested0", "/content/generated/oak:index/nested1"));
+        final FileArchive archive = new FileArchive(packageDirectory);
+        archive.open(true);
+        try {
+            assertEquals(expected, new IndexDefinitionFinder(admin).find(archive.getMetaInf().getFilter()));
+        } finally {
+            archive.close();
+        }
+        for (final String path : expected) {
+            assertEquals(1, admin.getProperty(path + "/" + PN_REINDEX_COUNT).getLong());
+        }
+
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        for (final String path : expected) {
+            assertFalse(admin.getProperty(path + "/" + PN_REINDEX).getBoolean());
+            assertEquals(2, admin.getProperty(path + "/" + PN_REINDEX_COUNT).getLong());
+        }
+    }
+
+    @Test
+    public void indexAddedPropertyRulesIncrementally() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.PARTIAL_INDEXER,
+                InMemoryPartialIndexer.class.getName());
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1).withType("lucene")
+                .withContentNodes(20).withDefinitionProperty("includedPaths", "[/content/generated]")
+                .withIndexRule("nt:unstructured", "jcr:mimeType");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // an added property rule is indexed incrementally
+        builder.withIndexRule("nt:unstructured", "jcr:mimeType", "title");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+        assertTrue(definition.getProperty(PN_REFRESH).getBoolean());
+        final Map<String, Map<PropertyRule, String[]>> fields =
+                InMemoryPartialIndexer.INDEXES.get("/oak:index/generated0");
+        assertEquals(20, fields.size());
+        final Map.Entry<PropertyRule, String[]> field =
+                fields.get("/content/generated/folder0/node7").entrySet().iterator().next();
+        assertEquals("title", field.getKey().getName());
+        assertTrue(field.getKey().isPropertyIndex());
+        assertFalse(field.getKey().isAnalyzed());
+        assertArrayEquals(new String[]{"Node 7"}, field.getValue());
+
+        // other changes are reindexed
+        builder.withIndexRule("nt:unstructured", "title");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void reindexAddedPropertyRulesBehindEarlierRules()
+            throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.PARTIAL_INDEXER,
+                InMemoryPartialIndexer.class.getName());
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1).withType("lucene")
+                .withContentNodes(20).withDefinitionProperty("includedPaths", "[/content/generated]")
+                .withIndexRule("nt:base", "jcr:title").withIndexRule("nt:unstructured", "jcr:mimeType");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        assertEquals(1, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // Oak indexes the nodes by the earlier nt:base rule, which ignores the added property
+        builder.withIndexRule("nt:unstructured", "jcr:mimeType", "title");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+
+        // so do the rules of nt:base itself
+        builder.withIndexRule("nt:base", "jcr:title", "title");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertEquals(3, definition.getProperty(PN_REINDEX_COUNT).getLong());
+    }
+
+    public static class InMemoryPartialIndexer implements PartialIndexer {
+
+        static final Map<String, Map<String, Map<PropertyRule, String[]>>> INDEXES =
+                new HashMap<String, Map<String, Map<PropertyRule, String[]>>>();
+
+        private final Map<String, Map<String, Map<PropertyRule, String[]>>> pending =
+                new HashMap<String, Map<String, Map<PropertyRule, String[]>>>();
+
+        @Override
+        public void addFields(final String indexPath, final String nodePath,
+                              final Map<PropertyRule, String[]> fields) {
+            if (!pending.containsKey(indexPath)) {
+                pending.put(indexPath, new HashMap<String, Map<PropertyRule, String[]>>());
+            }
+            pending.get(indexPath).put(nodePath, fields);
+        }
+
+        @Override
+        public boolean commit(final String indexPath) {
+            INDEXES.put(indexPath, pending.remove(indexPath));
+            return true;
+        }
+    }
+
+    @Test
+    public void readDefinitionsInParallel() throws PackageException, IOException, RepositoryException {
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(8);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), new Properties());
+        assertReindexCounts(admin, 1, 1, 1, 1, 1, 1, 1, 1);
+
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.PREPARE_THREADS, "4");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertReindexCounts(admin, 1, 1, 1, 1, 1, 1, 1, 1);
+
+        final OakReindexInstallHook hook = new OakReindexInstallHook();
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), hook, properties);
+        assertReindexCounts(admin, 2, 2, 2, 2, 2, 2, 2, 2);
+        assertEquals("~propertyNames [jcr:mimeType] -> [jcr:encoding]",
+                hook.getDefinitionChanges().get("/oak:index/generated5").getChanges().get(0).toString());
+    }
+
+
+    @Test
+    public void publishInstallMetrics() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.METRICS,
+                HookConfiguration.METRICS_JMX + ", " + RecordingMetricsSink.class.getName());
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(3);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        final InstallMetrics metrics = RecordingMetricsSink.metrics;
+        assertEquals(Long.valueOf(3), metrics.getCounters().get(InstallMetrics.DEFINITIONS_SCANNED));
+        assertEquals(Long.valueOf(3), metrics.getCounters().get(InstallMetrics.DEFINITIONS_CHANGED));
+        assertEquals(Long.valueOf(3), metrics.getCounters().get(InstallMetrics.DEFINITIONS_REINDEXED));
+        assertEquals(Long.valueOf(3), metrics.getCounters().get(InstallMetrics.DEFINITIONS_RESTORED));
+        assertTrue(metrics.getCounters().get(InstallMetrics.LISTENER_MESSAGES) > 3);
+        for (final String timer : Arrays.asList(InstallMetrics.PREPARE, InstallMetrics.PREPARE_COVERAGE,
+                InstallMetrics.PREPARE_PROPERTIES, InstallMetrics.IMPORT, InstallMetrics.INSTALLED,
+                InstallMetrics.INSTALLED_CHANGES, InstallMetrics.END_RESTORE, InstallMetrics.END_SAVE,
+                InstallMetrics.LISTENER)) {
+            assertTrue(timer, metrics.getTimers().containsKey(timer));
+        }
+
+        final ObjectName name = new ObjectName(JmxMetricsSink.OBJECT_NAME);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(metrics.getPackageId(), server.getAttribute(name, "LastPackageId"));
+        assertTrue((Long) server.getAttribute(name, "Installations") >= 2);
+    }
+
+    @Test
+    public void waitForReindexCompletion() throws Exception {
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1).withAsync("async");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), new Properties());
+        final Node definition = admin.getNode("/oak:index/generated0");
+        definition.setProperty(PN_REINDEX, false);
+        definition.setProperty(PN_REINDEX_COUNT, 1L);
+        admin.save();
+
+        // another session completes the reindex while the installation waits
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.WAIT_TIMEOUT, "60");
+        final Session indexer = admin.getRepository().login(ADMIN_CREDENTIALS, null);
+        final Thread reindex = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!indexer.getNode("/oak:index/generated0").getProperty(PN_REINDEX).getBoolean()) {
+                        Thread.sleep(50);
+                        indexer.refresh(false);
+                    }
+                    indexer.getNode("/oak:index/generated0").setProperty(PN_REINDEX, false);
+                    indexer.getNode("/oak:index/generated0").setProperty(PN_REINDEX_COUNT, 2L);
+                    indexer.save();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reindex.start();
+        builder.withIndexedProperty("jcr:encoding");
+        final long start = System.currentTimeMillis();
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        reindex.join();
+        admin.refresh(false);
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+        indexer.logout();
+
+        // without async indexer, waiting ends with the timeout
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.WAIT_TIMEOUT, "1");
+        builder.withIndexedProperty("jcr:language");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertTrue(definition.getProperty(PN_REINDEX).getBoolean());
+    }
+
+    @Test
+    public void waitForReindexCompletionOfMultipleDefinitions() throws Exception {
+        installWithHook(admin, "multiple-wait-paths/version1", new OakReindexInstallHook());
+        final String[] paths = {"/waiting/oak:index/waitNested", "/oak:index/waitRoot"};
+        for (final String path : paths) {
+            admin.getNode(path).setProperty(PN_REINDEX, false);
+            admin.getNode(path).setProperty(PN_REINDEX_COUNT, 1L);
+        }
+        admin.save();
+
+        // another session completes the reindexes one after another while the installation waits
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.WAIT_TIMEOUT, "60");
+        final Session indexer = admin.getRepository().login(ADMIN_CREDENTIALS, null);
+        final Thread reindex = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (final String path : paths) {
+                        // the property is missing while the package is imported
+                        while (!indexer.getNode(path).hasProperty(PN_REINDEX)
+                                || !indexer.getNode(path).getProperty(PN_REINDEX).getBoolean()) {
+                            Thread.sleep(50);
+                            indexer.refresh(false);
+                        }
+                        Thread.sleep(200);
+                        indexer.getNode(path).setProperty(PN_REINDEX, false);
+                        indexer.getNode(path).setProperty(PN_REINDEX_COUNT, 2L);
+                        indexer.save();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reindex.start();
+        final long start = System.currentTimeMillis();
+        installWithHook(admin, "multiple-wait-paths/version2", new OakReindexInstallHook(), properties);
+        // each completion is observed, the installation does not wait for the next progress interval
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        reindex.join();
+        indexer.logout();
+        admin.refresh(false);
+        for (final String path : paths) {
+            assertEquals(2, admin.getNode(path).getProperty(PN_REINDEX_COUNT).getLong());
+        }
+    }
+
+    public static class RecordingMetricsSink implements MetricsSink {
+
+        static InstallMetrics metrics;
+
+        @Override
+        public void publish(final InstallMetrics metrics) {
+            RecordingMetricsSink.metrics = metrics;
+        }
+    }
+
     private void assertExists(final Session session, final String path) throws RepositoryException {
         final String relPath = path.substring(1);
         assertTrue(path + " does not exist", session.getRootNode().hasNode(relPath));
@@ -0,0 +1,59 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexDefinitionFinderTest {
+
+    private static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    private Session admin;
+
+    @Before
+    public void setup() throws RepositoryException {
+        admin = new Jcr().createRepository().login(ADMIN_CREDENTIALS, null);
+        final Node content = admin.getRootNode().addNode("content", "nt:unstructured");
+        for (int i = 0; i < 100; i++) {
+            content.addNode("node" + i, "nt:unstructured").addNode("child", "nt:unstructured");
+        }
+        admin.save();
+    }
+
+    @After
+    public void tearDown() {
+        admin.logout();
+    }
+
+    @Test
+    public void queryDefinitionsWithNodeTypeIndex() throws RepositoryException {
+        final IndexDefinitionFinder finder = new IndexDefinitionFinder(admin);
+
+        // the stock node type index covers all node types
+        assertFalse(finder.getPlan("/content").contains("traverse"));
+
+        // a node type index restricted to other types cannot answer the query
+        final Node nodeTypeIndex = admin.getNode("/oak:index/nodetype");
+        nodeTypeIndex.setProperty("declaringNodeTypes", new String[]{"nt:file"}, PropertyType.NAME);
+        nodeTypeIndex.setProperty(PN_REINDEX, true);
+        admin.save();
+        assertTrue(finder.getPlan("/content").contains("traverse"));
+
+        nodeTypeIndex.setProperty("declaringNodeTypes", new String[]{"nt:file", "oak:QueryIndexDefinition"},
+                PropertyType.NAME);
+        nodeTypeIndex.setProperty(PN_REINDEX, true);
+        admin.save();
+        assertFalse(finder.getPlan("/content").contains("traverse"));
+    }
+}
@@ -0,0 +1,71 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.vault.fs.api.ProgressTrackerListener.Mode;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexDefinitionListenerTest {
+
+    @Test
+    public void recordDefinitionPaths() {
+        final IndexDefinitionListener listener = new IndexDefinitionListener("A", "U");
+        listener.onMessage(Mode.PATHS, "A", "/oak:index/foo/bar");
+        listener.onMessage(Mode.PATHS, "U", "/oak:index/foo");
+        listener.onMessage(Mode.PATHS, "A", "/oak:index");
+        listener.onMessage(Mode.PATHS, "A", "/foobar/oak:index/foo/bar");
+        listener.onMessage(Mode.PATHS, "A", "/foobar/oak:index");
+        listener.onMessage(Mode.PATHS, "A", "/content/foo");
+        listener.onMessage(Mode.PATHS, "D", "/oak:index/deleted");
+        listener.onMessage(Mode.PATHS, "-", "/oak:index/unmodified");
+        assertEquals(paths("/oak:index/foo", "/foobar/oak:index/foo"), listener.getIndexDefinitionPaths());
+    }
+
+    @Test
+    public void recordDefinitionPathsWithinIndexContainers() {
+        final IndexDefinitionListener listener =
+                new IndexDefinitionListener(paths("/oak:index", "/content/oak:index"), "A", "U", "D");
+        listener.onMessage(Mode.PATHS, "A", "/oak:index/foo/bar");
+        listener.onMessage(Mode.PATHS, "U", "/oak:index/foo");
+        listener.onMessage(Mode.PATHS, "D", "/oak:index/bar");
+        listener.onMessage(Mode.PATHS, "A", "/oak:index");
+        listener.onMessage(Mode.PATHS, "A", "/content/oak:index/foo/indexRules");
+        listener.onMessage(Mode.PATHS, "A", "/content/foo/oak:index/bar");
+        listener.onMessage(Mode.PATHS, "A", "/foobar/oak:index/foo");
+        assertEquals(paths("/oak:index/foo", "/oak:index/bar", "/content/oak:index/foo"),
+                listener.getIndexDefinitionPaths());
+    }
+
+    @Test
+    public void recordDefinitionPathsBelowSearchRoots() {
+        final IndexDefinitionListener listener = new IndexDefinitionListener(paths("/oak:index"),
+                paths("/content/site"), "A", "U");
+        listener.onMessage(Mode.PATHS, "A", "/oak:index/foo");
+        listener.onMessage(Mode.PATHS, "A", "/content/site/oak:index/bar/indexRules");
+        listener.onMessage(Mode.PATHS, "A", "/content/site/en/oak:index/baz");
+        listener.onMessage(Mode.PATHS, "A", "/content/site/oak:index");
+        listener.onMessage(Mode.PATHS, "A", "/content/other/oak:index/foo");
+        assertEquals(paths("/oak:index/foo", "/content/site/oak:index/bar", "/content/site/en/oak:index/baz"),
+                listener.getIndexDefinitionPaths());
+    }
+
+    @Test
+    public void recordManyDefinitionPaths() {
+        final IndexDefinitionListener listener = new IndexDefinitionListener(paths("/oak:index"), "A");
+        final Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            listener.onMessage(Mode.PATHS, "A", "/oak:index/index" + i + "/indexRules");
+            listener.onMessage(Mode.PATHS, "A", "/oak:index/index" + i);
+            expected.add("/oak:index/index" + i);
+        }
+        assertEquals(expected, listener.getIndexDefinitionPaths());
+    }
+
+    private static Set<String> paths(final String... paths) {
+        return new HashSet<String>(Arrays.asList(paths));
+    }
+}
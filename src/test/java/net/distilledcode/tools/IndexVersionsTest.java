@@ -0,0 +1,138 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import static net.distilledcode.tools.InstallHookTestUtils.assertReindexCounts;
+import static net.distilledcode.tools.InstallHookTestUtils.installWithHook;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class IndexVersionsTest {
+
+    private static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Session admin;
+
+    @Before
+    public void setup() throws RepositoryException {
+        admin = new Jcr().createRepository().login(ADMIN_CREDENTIALS, null);
+    }
+
+    @After
+    public void tearDown() {
+        admin.logout();
+    }
+
+    @Test
+    public void buildChangedDefinitionsAsVersions() throws PackageException, IOException, RepositoryException {
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(2);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), new Properties());
+        assertReindexCounts(admin, 1, 1);
+
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.VERSIONING,
+                HookConfiguration.VERSIONING_SIDE_BY_SIDE);
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.POLL_INTERVAL, "0");
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+
+        // the installed definitions keep their content and index
+        assertReindexCounts(admin, 1, 1);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        assertEquals("jcr:mimeType", definition.getProperty("propertyNames").getValues()[0].getString());
+        assertFalse(definition.getProperty(PN_REINDEX).getBoolean());
+        assertEquals("property", definition.getProperty(IndexVersions.PN_TYPE).getString());
+        final Node version = admin.getNode("/oak:index/generated0-custom-1");
+        assertEquals("jcr:encoding", version.getProperty("propertyNames").getValues()[0].getString());
+        assertEquals(1, version.getProperty(PN_REINDEX_COUNT).getLong());
+        assertFalse(version.getProperty(PN_REINDEX).getBoolean());
+
+        // installing the package again reuses the built versions and retires the installed definitions
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertReindexCounts(admin, 1, 1);
+        assertFalse(admin.nodeExists("/oak:index/generated0-custom-2"));
+        assertEquals(IndexVersions.TYPE_DISABLED, definition.getProperty(IndexVersions.PN_TYPE).getString());
+        assertEquals("jcr:mimeType", definition.getProperty("propertyNames").getValues()[0].getString());
+        assertEquals(1, version.getProperty(PN_REINDEX_COUNT).getLong());
+        assertEquals(IndexVersions.TYPE_DISABLED,
+                admin.getProperty("/oak:index/generated1/" + IndexVersions.PN_TYPE).getString());
+    }
+
+    @Test
+    public void retireDefinitionsEnabledByThePackageAgain() throws PackageException, IOException, RepositoryException {
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(1);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), new Properties());
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.VERSIONING,
+                HookConfiguration.VERSIONING_SIDE_BY_SIDE);
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.POLL_INTERVAL, "0");
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        final Node definition = admin.getNode("/oak:index/generated0");
+        assertEquals(IndexVersions.TYPE_DISABLED, definition.getProperty(IndexVersions.PN_TYPE).getString());
+
+        // the package enables the definition, which is not reset as its changes need no reindexing
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.CLASSIFIER,
+                UnaffectedClassifier.class.getName());
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertEquals(IndexVersions.TYPE_DISABLED, definition.getProperty(IndexVersions.PN_TYPE).getString());
+        assertEquals(1, admin.getProperty("/oak:index/generated0-custom-1/" + PN_REINDEX_COUNT).getLong());
+    }
+
+    @Test
+    public void reindexInPlaceIfFilterRemovesVersions() throws PackageException, IOException, RepositoryException {
+        installWithHook(admin, "covered-index-versions/version1", new OakReindexInstallHook());
+        assertEquals(1, admin.getProperty("/oak:index/covered/" + PN_REINDEX_COUNT).getLong());
+
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.VERSIONING,
+                HookConfiguration.VERSIONING_SIDE_BY_SIDE);
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.POLL_INTERVAL, "0");
+        installWithHook(admin, "covered-index-versions/version2", new OakReindexInstallHook(), properties);
+
+        // the filter contains /oak:index/covered-custom-1, the next installation would remove it
+        assertFalse(admin.nodeExists("/oak:index/covered-custom-1"));
+        final Node definition = admin.getNode("/oak:index/covered");
+        assertEquals(2, definition.getProperty("propertyNames").getValues().length);
+        assertEquals(2, definition.getProperty(PN_REINDEX_COUNT).getLong());
+        assertEquals("property", definition.getProperty(IndexVersions.PN_TYPE).getString());
+    }
+
+    @Test
+    public void nameVersionsLikeOak() throws RepositoryException {
+        final Node parent = admin.getRootNode().addNode("versions");
+        assertEquals("foo-custom-1", IndexVersions.getNextVersionName(parent, "foo"));
+        assertEquals("foo-2-custom-1", IndexVersions.getNextVersionName(parent, "foo-2"));
+        assertEquals("foo-2-custom-2", IndexVersions.getNextVersionName(parent, "foo-2-custom-1"));
+        parent.addNode("foo-custom-2");
+        assertEquals("foo-custom-3", IndexVersions.getNextVersionName(parent, "foo-custom-1"));
+    }
+
+    public static class UnaffectedClassifier implements IndexChangeClassifier {
+
+        @Override
+        public Action classify(final String indexType, final List<DefinitionChange> changes) {
+            return Action.NONE;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.InstallHook;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static net.distilledcode.tools.InstallHookTestUtils.installWithHook;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Installs generated packages with many definitions, nested
+ * {@code oak:index} nodes and unrelated content, and checks the exact
+ * set of reindexed definitions as well as the time spent and the memory
+ * allocated by the hook itself (i.e. not by FileVault's import).
+ * <br>
+ * The scale and the budgets can be raised with system properties, e.g.
+ * {@code mvn test -Dtest=InstallHookLoadTest -DloadTest.scale=10
+ * -DloadTest.timeBudget=6000}. The budgets are multiplied by the scale.
+ * The allocation budget is only checked on JVMs that measure thread
+ * allocation.
+ */
+public class InstallHookLoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InstallHookLoadTest.class);
+
+    private static final int SCALE = Integer.getInteger("loadTest.scale", 1);
+
+    /**
+     * Milliseconds the hook may spend per installation and scale.
+     */
+    private static final long TIME_BUDGET = Long.getLong("loadTest.timeBudget", 3000L);
+
+    /**
+     * Bytes the hook may allocate per installation and scale.
+     */
+    private static final long ALLOCATION_BUDGET = Long.getLong("loadTest.allocationBudget", 128L * 1024 * 1024);
+
+    private static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Session admin;
+
+    @Before
+    public void setup() throws RepositoryException {
+        admin = new Jcr().createRepository().login(ADMIN_CREDENTIALS, null);
+    }
+
+    @After
+    public void tearDown() {
+        admin.logout();
+    }
+
+    @Test
+    public void reindexChangedDefinitionsFoundByCoverage() throws PackageException, IOException, RepositoryException {
+        assertExactReindexingWithinBudget(new Properties());
+    }
+
+    @Test
+    public void reindexChangedDefinitionsFoundByQuery() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.DISCOVERY,
+                HookConfiguration.DISCOVERY_QUERY);
+        assertExactReindexingWithinBudget(properties);
+    }
+
+    @Test
+    public void reindexChangedDefinitionsReadInParallel() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.PREPARE_THREADS, "4");
+        assertExactReindexingWithinBudget(properties);
+    }
+
+    private void assertExactReindexingWithinBudget(final Properties properties)
+            throws PackageException, IOException, RepositoryException {
+        // asynchronous definitions keep the reindex flag, as no async indexing is running
+        final TestPackageBuilder builder = new TestPackageBuilder()
+                .withDefinitions(100 * SCALE)
+                .withNestedDefinitions(10)
+                .withNestedLocations(5 * SCALE)
+                .withNestingDepth(3)
+                .withContentNodes(2000 * SCALE)
+                .withAsync("async");
+        install(builder, properties);
+
+        // every 7th definition changes
+        builder.withAlternateIndexedProperty("jcr:encoding", 7);
+        install(builder, properties);
+        assertEquals(new TreeSet<String>(builder.getAlternateDefinitionPaths()), getReindexPaths(builder));
+
+        // installing identical definitions does not reindex
+        install(builder, properties);
+        assertEquals(Collections.<String>emptySet(), getReindexPaths(builder));
+    }
+
+    private void install(final TestPackageBuilder builder, final Properties properties)
+            throws PackageException, IOException, RepositoryException {
+        // the flags of the previous installation are reset, such that only this installation sets them
+        for (final String path : builder.getDefinitionPaths()) {
+            if (admin.nodeExists(path)) {
+                admin.getNode(path).setProperty(PN_REINDEX, false);
+            }
+        }
+        admin.save();
+
+        final File directory = builder.build(temporaryFolder.newFolder());
+        final MeasuringInstallHook hook = new MeasuringInstallHook(new OakReindexInstallHook());
+        installWithHook(admin, directory, hook, properties);
+        LOG.info("Hook spent {}ms and allocated {} bytes for {} definitions", hook.nanos / 1000000,
+                hook.allocatedBytes, builder.getDefinitionPaths().size());
+        assertTrue("Hook spent " + hook.nanos / 1000000 + "ms",
+                hook.nanos / 1000000 <= TIME_BUDGET * SCALE);
+        assertTrue("Hook allocated " + hook.allocatedBytes + " bytes",
+                hook.allocatedBytes <= ALLOCATION_BUDGET * SCALE);
+    }
+
+    private Set<String> getReindexPaths(final TestPackageBuilder builder) throws RepositoryException {
+        final Set<String> paths = new TreeSet<String>();
+        for (final String path : builder.getDefinitionPaths()) {
+            if (admin.getNode(path).getProperty(PN_REINDEX).getBoolean()) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Measures the time spent and the memory allocated by the delegate on
+     * the installing thread. The allocated bytes remain {@code -1} if the
+     * JVM does not measure them.
+     */
+    private static class MeasuringInstallHook implements InstallHook {
+
+        private final InstallHook delegate;
+
+        private long nanos;
+
+        private long allocatedBytes = -1;
+
+        MeasuringInstallHook(final InstallHook delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(final InstallContext context) throws PackageException {
+            final long allocatedStart = getAllocatedBytes();
+            final long start = System.nanoTime();
+            try {
+                delegate.execute(context);
+            } finally {
+                nanos += System.nanoTime() - start;
+                final long allocatedEnd = getAllocatedBytes();
+                if (allocatedStart != -1 && allocatedEnd != -1) {
+                    allocatedBytes = Math.max(allocatedBytes, 0) + allocatedEnd - allocatedStart;
+                }
+            }
+        }
+
+        private static long getAllocatedBytes() {
+            final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+                if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+                    return allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+                }
+            }
+            return -1;
+        }
+    }
+}
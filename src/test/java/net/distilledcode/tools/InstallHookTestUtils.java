@@ -15,6 +15,8 @@ import org.apache.jackrabbit.vault.packaging.impl.ZipVaultPackage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import java.io.File;
@@ -22,6 +24,10 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+import static org.junit.Assert.assertArrayEquals;
 
 public class InstallHookTestUtils {
 
@@ -29,18 +35,45 @@ public class InstallHookTestUtils {
 
     public static void installWithHook(final Session session, final String packagePath, final InstallHook hook)
             throws IOException, PackageException, RepositoryException {
-        final VaultPackage vaultPackage = loadVaultPackage(packagePath);
+        installWithHook(session, packagePath, hook, new Properties());
+    }
+
+    public static void installWithHook(final Session session, final String packagePath, final InstallHook hook,
+                                       final Properties packageProperties)
+            throws IOException, PackageException, RepositoryException {
+        final URL packageURL = IndexChangeHandlerTest.class.getResource("/packages/" + packagePath);
+        installWithHook(session, new File(packageURL.getFile()), hook, packageProperties);
+    }
+
+    public static void installWithHook(final Session session, final File packageDirectory, final InstallHook hook,
+                                       final Properties packageProperties)
+            throws IOException, PackageException, RepositoryException {
+        final VaultPackage vaultPackage = new TestVaultPackage(new FileArchive(packageDirectory), true, packageProperties);
         final HookImportOptions defaultOptions = getDefaultOptions();
         defaultOptions.addHook(hook);
         vaultPackage.extract(session, defaultOptions);
         session.refresh(false);
     }
 
-    private static VaultPackage loadVaultPackage(final String packageName) throws IOException {
-        final URL packageURL = IndexChangeHandlerTest.class.getResource("/packages/" + packageName);
-        final String filename = packageURL.getFile();
-        final File file = new File(filename);
-        return new TestVaultPackage(new FileArchive(file), true);
+    /**
+     * Assert the {@code reindexCount} of the definitions
+     * {@code /oak:index/generated<i>} generated by a {@link TestPackageBuilder}.
+     */
+    public static void assertReindexCounts(final Session session, final long... reindexCounts)
+            throws RepositoryException {
+        final long[] actual = new long[reindexCounts.length];
+        for (int i = 0; i < reindexCounts.length; i++) {
+            actual[i] = session.getProperty("/oak:index/generated" + i + "/" + PN_REINDEX_COUNT).getLong();
+        }
+        assertArrayEquals(reindexCounts, actual);
+    }
+
+    public static List<String> getChildNames(final Node node) throws RepositoryException {
+        final List<String> names = new ArrayList<String>();
+        for (final NodeIterator children = node.getNodes(); children.hasNext(); ) {
+            names.add(children.nextNode().getName());
+        }
+        return names;
     }
 
     private static HookImportOptions getDefaultOptions() {
@@ -61,11 +94,27 @@ public class InstallHookTestUtils {
     }
 
     /**
-     * VaultPackage implementation that makes constructor visible for testing.
+     * VaultPackage implementation that makes constructor visible for testing
+     * and allows overriding package properties.
      */
     private static class TestVaultPackage extends ZipVaultPackage {
-        public TestVaultPackage(final Archive archive, final boolean strict) throws IOException {
+
+        private final Properties packageProperties;
+
+        public TestVaultPackage(final Archive archive, final boolean strict, final Properties packageProperties)
+                throws IOException {
             super(archive, strict);
+            this.packageProperties = packageProperties;
+        }
+
+        @Override
+        protected Properties getPropertiesMap() {
+            final Properties properties = new Properties();
+            properties.putAll(super.getPropertiesMap());
+            if (packageProperties != null) {
+                properties.putAll(packageProperties);
+            }
+            return properties;
         }
     }
 
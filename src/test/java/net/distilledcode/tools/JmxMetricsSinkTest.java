@@ -0,0 +1,55 @@
+package net.distilledcode.tools;
+
+import org.junit.Test;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.Assert.assertEquals;
+
+public class JmxMetricsSinkTest {
+
+    @Test
+    public void keepTotalsAcrossClassLoaders() throws Exception {
+        final InstallMetrics metrics = new InstallMetrics("group:first:1.0");
+        metrics.count(InstallMetrics.DEFINITIONS_SCANNED, 3);
+        new JmxMetricsSink().publish(metrics);
+        final OakReindexHookMetricsMXBean registered = getRegistered();
+        final long installations = registered.getInstallations();
+        final Long scanned = registered.getTotalCounters().get(InstallMetrics.DEFINITIONS_SCANNED);
+
+        // FileVault loads the hook of the next installation in a new class loader
+        final URL classes = JmxMetricsSink.class.getProtectionDomain().getCodeSource().getLocation();
+        final ClassLoader hookClassLoader = new URLClassLoader(new URL[]{classes}, getClass().getClassLoader()) {
+            @Override
+            protected synchronized Class<?> loadClass(final String name, final boolean resolve)
+                    throws ClassNotFoundException {
+                if (!name.startsWith(JmxMetricsSink.class.getPackage().getName() + ".")) {
+                    return super.loadClass(name, resolve);
+                }
+                final Class<?> loaded = findLoadedClass(name);
+                return loaded != null ? loaded : findClass(name);
+            }
+        };
+        hookClassLoader.loadClass(JmxMetricsSink.class.getName()).newInstance();
+
+        assertEquals(installations, getRegistered().getInstallations());
+        assertEquals("group:first:1.0", getRegistered().getLastPackageId());
+        assertEquals(scanned, getRegistered().getTotalCounters().get(InstallMetrics.DEFINITIONS_SCANNED));
+
+        new JmxMetricsSink().publish(metrics);
+        assertEquals(installations + 1, getRegistered().getInstallations());
+        assertEquals(Long.valueOf(scanned + 3),
+                getRegistered().getTotalCounters().get(InstallMetrics.DEFINITIONS_SCANNED));
+    }
+
+    private static OakReindexHookMetricsMXBean getRegistered() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        return JMX.newMXBeanProxy(server, new ObjectName(JmxMetricsSink.OBJECT_NAME),
+                OakReindexHookMetricsMXBean.class);
+    }
+}
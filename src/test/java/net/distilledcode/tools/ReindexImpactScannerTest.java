@@ -0,0 +1,42 @@
+package net.distilledcode.tools;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexImpactScannerTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void scanPackagesFromCommandLine() throws IOException, InterruptedException {
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(2);
+        final File snapshot = builder.build(temporaryFolder.newFolder());
+        final File packages = temporaryFolder.newFolder();
+        builder.withName("unchanged").build(new File(packages, "a"));
+        builder.withName("changed").withIndexedProperty("jcr:encoding").build(new File(packages, "b"));
+
+        final StringWriter report = new StringWriter();
+        final int exitCode = ReindexImpactScanner.run(new String[]{"--threads", "2", "--classifier", "default",
+                snapshot.getPath(), packages.getPath(), new File(packages, "missing.zip").getPath()},
+                report, System.err);
+
+        assertEquals(ReindexImpactScanner.EXIT_FAILED, exitCode);
+        final String[] lines = report.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals(new File(packages, "a") + "\tgenerated:unchanged:1.0\treindex=0\trefresh=0"
+                + "\texceedsBudget=false\t", lines[0]);
+        assertEquals(new File(packages, "b") + "\tgenerated:changed:1.0\treindex=2\trefresh=0"
+                + "\texceedsBudget=false\t/oak:index/generated0,/oak:index/generated1", lines[1]);
+        assertTrue(lines[2].startsWith(new File(packages, "missing.zip") + "\tERROR\t"));
+    }
+
+}
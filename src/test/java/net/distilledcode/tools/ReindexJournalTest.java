@@ -0,0 +1,152 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static net.distilledcode.tools.InstallHookTestUtils.assertReindexCounts;
+import static net.distilledcode.tools.InstallHookTestUtils.installWithHook;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReindexJournalTest {
+
+    private static final String JOURNAL_DIRECTORY = HookConfiguration.PREFIX + HookConfiguration.JOURNAL_DIRECTORY;
+
+    private static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Session admin;
+
+    @Before
+    public void setup() throws RepositoryException {
+        admin = new Jcr().createRepository().login(ADMIN_CREDENTIALS, null);
+    }
+
+    @After
+    public void tearDown() {
+        admin.logout();
+    }
+
+    @Test
+    public void restoreInterruptedInstallationFromRepositoryJournal()
+            throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.JOURNAL,
+                HookConfiguration.JOURNAL_REPOSITORY);
+        assertInterruptedInstallationRestored(properties,
+                ReindexJournal.inRepository(admin, HookConfiguration.DEFAULT_STATE_ROOT));
+        assertFalse(admin.getNode(HookConfiguration.DEFAULT_STATE_ROOT + "/journal")
+                .hasProperty(ReindexJournal.PN_ENTRIES));
+        assertFalse(admin.getNode(HookConfiguration.DEFAULT_STATE_ROOT + "/journal").hasNodes());
+    }
+
+    @Test
+    public void appendBatchesToRepositoryJournal() throws RepositoryException {
+        final ReindexJournal journal = ReindexJournal.inRepository(admin, HookConfiguration.DEFAULT_STATE_ROOT);
+        for (int i = 0; i < 12; i++) {
+            journal.append(Collections.singletonList(
+                    new ReindexJournal.Entry("/oak:index/generated" + i, false, i, "fingerprint")));
+        }
+        final Node batches = admin.getNode(HookConfiguration.DEFAULT_STATE_ROOT + "/journal");
+        assertEquals(12, batches.getNodes().getSize());
+        assertFalse(batches.hasProperty(ReindexJournal.PN_ENTRIES));
+        final List<ReindexJournal.Entry> entries = journal.read();
+        assertEquals(12, entries.size());
+        for (int i = 0; i < 12; i++) {
+            assertEquals("/oak:index/generated" + i, entries.get(i).path);
+        }
+        journal.clear();
+        assertTrue(journal.read().isEmpty());
+    }
+
+    @Test
+    public void restoreInterruptedInstallationFromFileJournal()
+            throws PackageException, IOException, RepositoryException {
+        final File journalDirectory = temporaryFolder.newFolder();
+        final File journalFile = new File(journalDirectory, "reindex.journal");
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.JOURNAL, HookConfiguration.JOURNAL_FILE);
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.JOURNAL_PATH, journalFile.getName());
+        final ReindexJournal journal = ReindexJournal.inFile(journalFile);
+        System.setProperty(JOURNAL_DIRECTORY, journalDirectory.getPath());
+        try {
+            assertInterruptedInstallationRestored(properties, journal);
+        } finally {
+            System.clearProperty(JOURNAL_DIRECTORY);
+        }
+        assertEquals(0, journalFile.length());
+    }
+
+    @Test
+    public void keepFileJournalInJournalDirectory() throws IOException, RepositoryException {
+        final File journalDirectory = temporaryFolder.newFolder();
+        assertEquals(new File(journalDirectory, "sub/reindex.journal").getCanonicalFile(),
+                ReindexJournal.getJournalFile(journalDirectory, "sub/reindex.journal"));
+        for (final String path : new String[]{"../reindex.journal", "sub/../../reindex.journal"}) {
+            try {
+                ReindexJournal.getJournalFile(journalDirectory, path);
+                fail("Journal " + path + " is outside of the journal directory");
+            } catch (RepositoryException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Simulates an installation that was interrupted after FileVault saved
+     * the removal of the properties and a change of {@code generated0}.
+     */
+    private void assertInterruptedInstallationRestored(final Properties properties, final ReindexJournal journal)
+            throws PackageException, IOException, RepositoryException {
+        installWithHook(admin, new TestPackageBuilder().withDefinitions(3).build(temporaryFolder.newFolder()),
+                new OakReindexInstallHook(), new Properties());
+        assertReindexCounts(admin, 1, 1, 1);
+
+        final IndexDefinitionFingerprint fingerprint = new IndexDefinitionFingerprint();
+        final List<ReindexJournal.Entry> entries = new ArrayList<ReindexJournal.Entry>();
+        for (int i = 0; i < 2; i++) {
+            final Node definition = admin.getNode("/oak:index/generated" + i);
+            entries.add(new ReindexJournal.Entry(definition.getPath(), false, 1, fingerprint.compute(definition)));
+        }
+        journal.append(entries);
+        for (final ReindexJournal.Entry entry : entries) {
+            admin.getNode(entry.path).getProperty(PN_REINDEX).remove();
+            admin.getNode(entry.path).getProperty(PN_REINDEX_COUNT).remove();
+        }
+        admin.getNode("/oak:index/generated0").setProperty("propertyNames", new String[]{"jcr:encoding"});
+        admin.save();
+
+        final TestPackageBuilder other = new TestPackageBuilder().withName("other").withDefinitions(0)
+                .withContentNodes(1);
+        installWithHook(admin, other.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+
+        // only the changed definition is reindexed, the others keep their count
+        assertReindexCounts(admin, 2, 1, 1);
+        for (int i = 0; i < 3; i++) {
+            assertFalse(admin.getProperty("/oak:index/generated" + i + "/" + PN_REINDEX).getBoolean());
+        }
+        assertTrue(journal.read().isEmpty());
+    }
+}
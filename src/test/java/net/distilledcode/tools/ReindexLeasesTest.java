@@ -0,0 +1,153 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.vault.packaging.InstallContext;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.io.IOException;
+import java.util.Properties;
+
+import static net.distilledcode.tools.InstallHookTestUtils.assertReindexCounts;
+import static net.distilledcode.tools.InstallHookTestUtils.installWithHook;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexLeasesTest {
+
+    private static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Session admin;
+
+    @Before
+    public void setup() throws RepositoryException {
+        admin = new Jcr().createRepository().login(ADMIN_CREDENTIALS, null);
+    }
+
+    @After
+    public void tearDown() {
+        admin.logout();
+    }
+
+    @Test
+    public void skipDefinitionsLeasedByAnotherInstallation() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.COORDINATION,
+                HookConfiguration.COORDINATION_LEASE);
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(2);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertReindexCounts(admin, 1, 1);
+
+        // another cluster member is installing the modified package and holds the lease of generated0
+        final Session member = admin.getRepository().login(ADMIN_CREDENTIALS, null);
+        final String packageId = "generated:generated:1.0";
+        final String fingerprint = new IndexDefinitionFingerprint().compute(member.getNode("/oak:index/generated0"));
+        final ReindexLeases memberLeases = new ReindexLeases(member, HookConfiguration.DEFAULT_STATE_ROOT,
+                packageId, 60000);
+        assertTrue(memberLeases.acquire("/oak:index/generated0", fingerprint));
+        final ReindexLeases otherLeases = new ReindexLeases(admin.getRepository().login(ADMIN_CREDENTIALS, null),
+                HookConfiguration.DEFAULT_STATE_ROOT, packageId, 60000);
+        assertFalse(otherLeases.acquire("/oak:index/generated0", fingerprint));
+        otherLeases.logout();
+
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertFalse(admin.getProperty("/oak:index/generated0/" + PN_REINDEX).getBoolean());
+        assertReindexCounts(admin, 1, 2);
+        memberLeases.release(true);
+        memberLeases.logout();
+
+        // an expired lease is taken over
+        final ReindexLeases expired = new ReindexLeases(admin.getRepository().login(ADMIN_CREDENTIALS, null),
+                HookConfiguration.DEFAULT_STATE_ROOT, packageId, -1);
+        final String modified = new IndexDefinitionFingerprint().compute(admin.getNode("/oak:index/generated1"));
+        assertTrue(expired.acquire("/oak:index/generated1", modified));
+        expired.logout();
+        builder.withIndexedProperty("jcr:language");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+        assertReindexCounts(admin, 2, 3);
+        assertEquals(ReindexLeases.STATE_COMPLETED, admin.getProperty(HookConfiguration.DEFAULT_STATE_ROOT
+                + "/leases/%2Foak%3Aindex%2Fgenerated1/" + ReindexLeases.PN_STATE).getString());
+    }
+
+    @Test
+    public void keepPropertiesSetByTheLeaseHolder() throws PackageException, IOException, RepositoryException {
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.COORDINATION,
+                HookConfiguration.COORDINATION_LEASE);
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(2).withAsync("async");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), properties);
+
+        final Session member = admin.getRepository().login(ADMIN_CREDENTIALS, null);
+        final String fingerprint = new IndexDefinitionFingerprint().compute(member.getNode("/oak:index/generated0"));
+        final ReindexLeases memberLeases = new ReindexLeases(member, HookConfiguration.DEFAULT_STATE_ROOT,
+                "generated:generated:1.0", 60000);
+        assertTrue(memberLeases.acquire("/oak:index/generated0", fingerprint));
+
+        // the lease holder marks the definition for reindexing before this installation ends
+        final OakReindexInstallHook hook = new OakReindexInstallHook() {
+            @Override
+            public void execute(final InstallContext context) throws PackageException {
+                if (context.getPhase() == InstallContext.Phase.INSTALLED) {
+                    try {
+                        member.refresh(false);
+                        member.getNode("/oak:index/generated0").setProperty(PN_REINDEX, true);
+                        member.save();
+                    } catch (RepositoryException e) {
+                        throw new PackageException(e);
+                    }
+                }
+                super.execute(context);
+            }
+        };
+        builder.withIndexedProperty("jcr:encoding");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), hook, properties);
+        admin.refresh(false);
+        assertTrue(admin.getProperty("/oak:index/generated0/" + PN_REINDEX).getBoolean());
+        assertTrue(admin.getProperty("/oak:index/generated1/" + PN_REINDEX).getBoolean());
+        assertFalse(hook.getDefinitionChanges().containsKey("/oak:index/generated0"));
+        memberLeases.release(true);
+        memberLeases.logout();
+    }
+
+    @Test
+    public void expireCompletedLeases() throws RepositoryException, InterruptedException {
+        final String packageId = "generated:generated:1.0";
+        final ReindexLeases memberLeases = new ReindexLeases(admin.getRepository().login(ADMIN_CREDENTIALS, null),
+                HookConfiguration.DEFAULT_STATE_ROOT, packageId, 200);
+        assertTrue(memberLeases.acquire("/oak:index/generated0", "fingerprint"));
+        memberLeases.release(true);
+        memberLeases.logout();
+        final String leasePath = HookConfiguration.DEFAULT_STATE_ROOT + "/leases/%2Foak%3Aindex%2Fgenerated0";
+        assertEquals(ReindexLeases.STATE_COMPLETED,
+                admin.getProperty(leasePath + "/" + ReindexLeases.PN_STATE).getString());
+
+        // a concurrent installation skips the definition
+        final ReindexLeases otherLeases = new ReindexLeases(admin.getRepository().login(ADMIN_CREDENTIALS, null),
+                HookConfiguration.DEFAULT_STATE_ROOT, packageId, 60000);
+        assertFalse(otherLeases.acquire("/oak:index/generated0", "fingerprint"));
+
+        // once expired, the completed lease no longer holds and is removed on release
+        Thread.sleep(300);
+        final ReindexLeases laterLeases = new ReindexLeases(admin.getRepository().login(ADMIN_CREDENTIALS, null),
+                HookConfiguration.DEFAULT_STATE_ROOT, packageId, 60000);
+        laterLeases.release(true);
+        laterLeases.logout();
+        admin.refresh(false);
+        assertFalse(admin.nodeExists(leasePath));
+        assertTrue(otherLeases.acquire("/oak:index/generated0", "fingerprint"));
+        otherLeases.logout();
+    }
+}
@@ -0,0 +1,102 @@
+package net.distilledcode.tools;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.vault.fs.io.FileArchive;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import static net.distilledcode.tools.InstallHookTestUtils.installWithHook;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX_COUNT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexPlannerTest {
+
+    private static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Session admin;
+
+    @Before
+    public void setup() throws RepositoryException {
+        admin = new Jcr().createRepository().login(ADMIN_CREDENTIALS, null);
+    }
+
+    @After
+    public void tearDown() {
+        admin.logout();
+    }
+
+    @Test
+    public void planReindexingInDryRun() throws PackageException, IOException, RepositoryException {
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(2).withContentNodes(100)
+                .withDefinitionProperty("includedPaths", "[/content/generated]");
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), new OakReindexInstallHook(), new Properties());
+
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.DRY_RUN, "true");
+        final File planFile = temporaryFolder.newFile("plan.json");
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.PLAN_FILE, planFile.getPath());
+        final OakReindexInstallHook hook = new OakReindexInstallHook();
+        builder.withIndexedProperty("jcr:encoding").withContentNodes(200);
+        installWithHook(admin, builder.build(temporaryFolder.newFolder()), hook, properties);
+
+        // nothing was saved
+        assertFalse(admin.nodeExists("/content/generated/folder0/node150"));
+        assertEquals("jcr:mimeType",
+                admin.getProperty("/oak:index/generated0/propertyNames").getValues()[0].getString());
+        assertEquals(1, admin.getProperty("/oak:index/generated0/" + PN_REINDEX_COUNT).getLong());
+
+        final ReindexPlan plan = hook.getPlan();
+        assertEquals(2, plan.getReindexed().size());
+        final ReindexPlan.Entry entry = plan.getEntries().get(0);
+        assertEquals("/oak:index/generated0", entry.getPath());
+        assertEquals("property", entry.getType());
+        // content is not imported in a dry run, the estimate samples the installed content
+        assertEquals(102, entry.getEstimate());
+        assertEquals("~propertyNames [jcr:mimeType] -> [jcr:encoding]", entry.getChanges().get(0).toString());
+        assertEquals(plan.toJson(), FileUtils.readFileToString(planFile, "UTF-8"));
+    }
+
+
+    @Test
+    public void planReindexingOffline() throws IOException {
+        final TestPackageBuilder builder = new TestPackageBuilder().withDefinitions(2);
+        final FileArchive snapshot = new FileArchive(builder.build(temporaryFolder.newFolder()));
+        builder.withIndexedProperty("jcr:encoding").withDefinitionProperty("entryCount", "{Long}5000");
+        final FileArchive archive = new FileArchive(builder.build(temporaryFolder.newFolder()));
+        snapshot.open(true);
+        archive.open(true);
+        try {
+            final ReindexPlan plan = new ReindexPlanner(new DefaultIndexChangeClassifier(), 1000)
+                    .plan(archive, snapshot);
+            assertEquals("generated:generated:1.0", plan.getPackageId());
+            assertEquals(2, plan.getReindexed().size());
+            assertEquals(5000, plan.getEntries().get(1).getEstimate());
+            assertTrue(plan.exceedsBudget());
+            assertTrue(plan.toJson().startsWith("{\"packageId\":\"generated:generated:1.0\",\"budget\":1000,"
+                    + "\"exceedsBudget\":true,\"indexes\":[{\"path\":\"/oak:index/generated0\",\"type\":\"property\","
+                    + "\"action\":\"reindex\",\"estimate\":5000,\"exceedsBudget\":true,"
+                    + "\"changes\":[\"~propertyNames [jcr:mimeType] -> [jcr:encoding]\",\"+entryCount [5000]\"]}"));
+        } finally {
+            archive.close();
+            snapshot.close();
+        }
+    }
+
+}
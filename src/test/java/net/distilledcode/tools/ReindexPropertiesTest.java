@@ -0,0 +1,113 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import static net.distilledcode.tools.InstallHookTestUtils.installWithHook;
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexPropertiesTest {
+
+    private static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    private static Session concurrentSession;
+
+    private static boolean conflictingReindex;
+
+    private Repository repository;
+
+    private Session admin;
+
+    @Before
+    public void setup() throws RepositoryException {
+        repository = new Jcr().createRepository();
+        admin = repository.login(ADMIN_CREDENTIALS, null);
+    }
+
+    @After
+    public void tearDown() {
+        if (concurrentSession != null) {
+            concurrentSession.logout();
+            concurrentSession = null;
+        }
+        admin.logout();
+    }
+
+    @Test
+    public void keepVersionsWhenRetryingConflictingBatch() throws PackageException, IOException, RepositoryException {
+        installWithHook(admin, "conflicting-save/version1", new OakReindexInstallHook());
+        assertEquals(1, admin.getProperty("/oak:index/changed/reindexCount").getLong());
+        final Node asyncTitle = admin.getNode("/oak:index/asyncTitle");
+        final boolean reindex = asyncTitle.hasProperty(PN_REINDEX) && asyncTitle.getProperty(PN_REINDEX).getBoolean();
+
+        final Properties properties = new Properties();
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.VERSIONING,
+                HookConfiguration.VERSIONING_SIDE_BY_SIDE);
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.POLL_INTERVAL, "0");
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.BATCH_SIZE, "10");
+        properties.setProperty(HookConfiguration.PREFIX + HookConfiguration.CLASSIFIER,
+                ConflictingClassifier.class.getName());
+        concurrentSession = repository.login(ADMIN_CREDENTIALS, null);
+        conflictingReindex = !reindex;
+        installWithHook(admin, "conflicting-save/version2", new OakReindexInstallHook(), properties);
+
+        // the first save of the batch conflicted, the retry keeps the version
+        assertTrue(admin.nodeExists("/oak:index/changed-custom-1"));
+        assertEquals(1, admin.getProperty("/oak:index/changed-custom-1/reindexCount").getLong());
+        assertEquals("/oak:index/changed-custom-1",
+                admin.getProperty("/var/oakReindexHook/versions/%2Foak%3Aindex%2Fchanged/version").getString());
+        assertEquals(1, admin.getProperty("/oak:index/changed/reindexCount").getLong());
+        assertEquals(reindex, admin.getProperty("/oak:index/asyncTitle/" + PN_REINDEX).getBoolean());
+    }
+
+    /**
+     * Reindexes all changes and, while the installation's session has
+     * transient changes, saves a conflicting {@code reindex} property on
+     * the unchanged asynchronous definition. The property is saved from
+     * another thread, sessions of the same thread would see each other's
+     * changes.
+     */
+    public static class ConflictingClassifier implements IndexChangeClassifier {
+
+        @Override
+        public Action classify(final String indexType, final List<DefinitionChange> changes) {
+            final RepositoryException[] failure = new RepositoryException[1];
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        concurrentSession.refresh(false);
+                        concurrentSession.getNode("/oak:index/asyncTitle").setProperty(PN_REINDEX, conflictingReindex);
+                        concurrentSession.save();
+                    } catch (RepositoryException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            thread.start();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure[0] != null) {
+                throw new IllegalStateException(failure[0]);
+            }
+            return Action.REINDEX;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.distilledcode.tools;
+
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import static net.distilledcode.tools.OakReindexInstallHook.PN_REINDEX;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexQueueWatcherTest {
+
+    private static final SimpleCredentials ADMIN_CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    private static final String WATCHER_PATH = HookConfiguration.DEFAULT_STATE_ROOT + "/watcher";
+
+    private Session admin;
+
+    @Before
+    public void setup() throws RepositoryException {
+        admin = new Jcr().createRepository().login(ADMIN_CREDENTIALS, null);
+        // a definition whose reindexing never finishes
+        admin.getRootNode().addNode("definition").setProperty(PN_REINDEX, true);
+        new ReindexQueue(admin, HookConfiguration.DEFAULT_STATE_ROOT).addReindexing("/definition", 0L);
+        admin.save();
+    }
+
+    @After
+    public void tearDown() throws RepositoryException {
+        ReindexQueueWatcher.stop(admin, HookConfiguration.DEFAULT_STATE_ROOT);
+        admin.logout();
+    }
+
+    @Test
+    public void stopWatchingAfterTimeout() throws InterruptedException, RepositoryException {
+        final Thread watcher = ReindexQueueWatcher.start(admin, HookConfiguration.DEFAULT_STATE_ROOT, 10, 200);
+        assertTrue(watcher.isAlive());
+        watcher.join(5000);
+        assertFalse(watcher.isAlive());
+        admin.refresh(false);
+        assertFalse(admin.nodeExists(WATCHER_PATH));
+    }
+
+    @Test
+    public void stopWatchingOnRequest() throws InterruptedException, RepositoryException {
+        final Thread watcher = ReindexQueueWatcher.start(admin, HookConfiguration.DEFAULT_STATE_ROOT, 10, 60000);
+        assertTrue(watcher.isAlive());
+        // e.g. by an installation whose hook runs in another class loader
+        ReindexQueueWatcher.stop(admin, HookConfiguration.DEFAULT_STATE_ROOT);
+        watcher.join(5000);
+        assertFalse(watcher.isAlive());
+    }
+
+    @Test
+    public void takeOverFromRunningWatcher() throws InterruptedException, RepositoryException {
+        final Thread first = ReindexQueueWatcher.start(admin, HookConfiguration.DEFAULT_STATE_ROOT, 10, 60000);
+        final Thread second = ReindexQueueWatcher.start(admin, HookConfiguration.DEFAULT_STATE_ROOT, 10, 60000);
+        first.join(5000);
+        assertFalse(first.isAlive());
+        assertTrue(second.isAlive());
+        ReindexQueueWatcher.stop(admin, HookConfiguration.DEFAULT_STATE_ROOT);
+        second.join(5000);
+        assertFalse(second.isAlive());
+    }
+}
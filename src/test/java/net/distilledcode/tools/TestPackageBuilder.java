@@ -0,0 +1,414 @@
+package net.distilledcode.tools;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates FileVault packages with synthetic index definitions and
+ * unrelated content as exploded directories, which can be installed
+ * using a {@link org.apache.jackrabbit.vault.fs.io.FileArchive}.
+ * <br>
+ * Definitions are generated below {@code /oak:index} and, optionally,
+ * in nested {@code oak:index} nodes below {@code /content/generated}.
+ * The paths of the generated definitions are available from
+ * {@link #getDefinitionPaths()}, such that tests can assert the exact
+ * set of reindexed definitions.
+ */
+public class TestPackageBuilder {
+
+    private static final String NAMESPACES = "xmlns:oak=\"http://jackrabbit.apache.org/oak/ns/1.0\" "
+            + "xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" xmlns:nt=\"http://www.jcp.org/jcr/nt/1.0\"";
+
+    private static final int NODES_PER_FOLDER = 1000;
+
+    private String name = "generated";
+
+    private String version = "1.0";
+
+    private int definitions = 1;
+
+    private int contentNodes = 0;
+
+    private int nestedDefinitions = 0;
+
+    private int nestedLocations = 1;
+
+    private int nestingDepth = 0;
+
+    private String alternatePropertyName;
+
+    private int alternateEvery;
+
+    private String propertyName = "jcr:mimeType";
+
+    private String async;
+
+    private String type = "property";
+
+    private final Map<String, String> definitionProperties = new LinkedHashMap<String, String>();
+
+    private final Map<String, String[]> indexRules = new LinkedHashMap<String, String[]>();
+
+    public TestPackageBuilder withName(final String name) {
+        this.name = name;
+        return this;
+    }
+
+    public TestPackageBuilder withVersion(final String version) {
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * @param definitions number of property index definitions below {@code /oak:index}
+     * @return this builder
+     */
+    public TestPackageBuilder withDefinitions(final int definitions) {
+        this.definitions = definitions;
+        return this;
+    }
+
+    /**
+     * @param contentNodes number of unrelated content nodes below {@code /content/generated}
+     * @return this builder
+     */
+    public TestPackageBuilder withContentNodes(final int contentNodes) {
+        this.contentNodes = contentNodes;
+        return this;
+    }
+
+    /**
+     * @param nestedDefinitions number of property index definitions below
+     *                          {@code /content/generated/oak:index}, which
+     *                          are covered by the content's filter root
+     * @return this builder
+     */
+    public TestPackageBuilder withNestedDefinitions(final int nestedDefinitions) {
+        this.nestedDefinitions = nestedDefinitions;
+        return this;
+    }
+
+    /**
+     * @param nestedLocations number of nested {@code oak:index} nodes, each
+     *                        with the given number of nested definitions
+     * @return this builder
+     */
+    public TestPackageBuilder withNestedLocations(final int nestedLocations) {
+        this.nestedLocations = nestedLocations;
+        return this;
+    }
+
+    /**
+     * @param nestingDepth number of levels between {@code /content/generated}
+     *                     and the nested {@code oak:index} nodes, at least
+     *                     {@code 1} with several nested locations
+     * @return this builder
+     */
+    public TestPackageBuilder withNestingDepth(final int nestingDepth) {
+        this.nestingDepth = nestingDepth;
+        return this;
+    }
+
+    /**
+     * @param propertyName the property indexed by the generated definitions
+     * @return this builder
+     */
+    public TestPackageBuilder withIndexedProperty(final String propertyName) {
+        this.propertyName = propertyName;
+        return this;
+    }
+
+    /**
+     * @param propertyName the property indexed by every n-th definition
+     *                     instead, or {@code null} for none
+     * @param every the interval of these definitions, counted per
+     *              {@code oak:index} node and starting with the first one
+     * @return this builder
+     */
+    public TestPackageBuilder withAlternateIndexedProperty(final String propertyName, final int every) {
+        this.alternatePropertyName = propertyName;
+        this.alternateEvery = every;
+        return this;
+    }
+
+    /**
+     * @param async the async lane of the generated definitions, or {@code null}
+     *              for synchronous definitions
+     * @return this builder
+     */
+    public TestPackageBuilder withAsync(final String async) {
+        this.async = async;
+        return this;
+    }
+
+    /**
+     * @param type the type of the generated definitions, {@code property} by default
+     * @return this builder
+     */
+    public TestPackageBuilder withType(final String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * @param name name of an additional property of the generated definitions
+     * @param value the property's docview value, or {@code null} to remove it
+     * @return this builder
+     */
+    public TestPackageBuilder withDefinitionProperty(final String name, final String value) {
+        if (value == null) {
+            definitionProperties.remove(name);
+        } else {
+            definitionProperties.put(name, value);
+        }
+        return this;
+    }
+
+    /**
+     * @param nodeType the node type of an index rule of the generated definitions
+     * @param propertyNames the names of the rule's property rules, none to remove the rule
+     * @return this builder
+     */
+    public TestPackageBuilder withIndexRule(final String nodeType, final String... propertyNames) {
+        if (propertyNames.length == 0) {
+            indexRules.remove(nodeType);
+        } else {
+            indexRules.put(nodeType, propertyNames);
+        }
+        return this;
+    }
+
+    /**
+     * @return the paths of all generated definitions
+     */
+    public List<String> getDefinitionPaths() {
+        return getDefinitionPaths(false);
+    }
+
+    /**
+     * @return the paths of the definitions indexing the
+     *         {@link #withAlternateIndexedProperty alternate property}
+     */
+    public List<String> getAlternateDefinitionPaths() {
+        return getDefinitionPaths(true);
+    }
+
+    private List<String> getDefinitionPaths(final boolean alternateOnly) {
+        final List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < definitions; i++) {
+            if (!alternateOnly || isAlternate(i)) {
+                paths.add("/oak:index/" + definitionName(i));
+            }
+        }
+        for (int location = 0; location < getNestedLocations(); location++) {
+            final StringBuilder parent = new StringBuilder("/content/generated");
+            for (final String level : getNestingLevels(location)) {
+                parent.append('/').append(level);
+            }
+            for (int i = 0; i < nestedDefinitions; i++) {
+                if (!alternateOnly || isAlternate(i)) {
+                    paths.add(parent + "/oak:index/nested" + i);
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Write the package into {@code directory}, replacing any previous content.
+     *
+     * @param directory the package root directory
+     * @return the package root directory
+     * @throws IOException if writing fails
+     */
+    public File build(final File directory) throws IOException {
+        FileUtils.deleteDirectory(directory);
+        writeMetaInf(new File(directory, "META-INF/vault"));
+        final File jcrRoot = new File(directory, "jcr_root");
+        if (definitions > 0) {
+            writeDefinitions(new File(jcrRoot, "_oak_index"));
+        }
+        if (contentNodes > 0 || nestedDefinitions > 0) {
+            writeContent(new File(jcrRoot, "content/generated"));
+        }
+        return directory;
+    }
+
+    private void writeMetaInf(final File metaInf) throws IOException {
+        final PrintWriter filter = open(new File(metaInf, "filter.xml"));
+        try {
+            filter.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            filter.println("<workspaceFilter version=\"1.0\">");
+            for (int i = 0; i < definitions; i++) {
+                filter.println("    <filter root=\"/oak:index/" + definitionName(i) + "\"/>");
+            }
+            if (contentNodes > 0 || nestedDefinitions > 0) {
+                filter.println("    <filter root=\"/content/generated\"/>");
+            }
+            filter.println("</workspaceFilter>");
+        } finally {
+            filter.close();
+        }
+
+        final PrintWriter properties = open(new File(metaInf, "properties.xml"));
+        try {
+            properties.println("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"no\"?>");
+            properties.println("<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">");
+            properties.println("<properties>");
+            properties.println("<entry key=\"name\">" + name + "</entry>");
+            properties.println("<entry key=\"group\">generated</entry>");
+            properties.println("<entry key=\"version\">" + version + "</entry>");
+            properties.println("</properties>");
+        } finally {
+            properties.close();
+        }
+    }
+
+    private void writeDefinitions(final File oakIndex) throws IOException {
+        final PrintWriter writer = open(new File(oakIndex, ".content.xml"));
+        try {
+            startDocView(writer, "nt:unstructured");
+            for (int i = 0; i < definitions; i++) {
+                writeDefinition(writer, definitionName(i), isAlternate(i), "    ");
+            }
+            writer.println("</jcr:root>");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeDefinition(final PrintWriter writer, final String name, final boolean alternate,
+                                 final String indent) {
+        writer.println(indent + "<" + name);
+        writer.println(indent + "    jcr:primaryType=\"oak:QueryIndexDefinition\"");
+        writer.println(indent + "    propertyNames=\"{Name}[" + (alternate ? alternatePropertyName : propertyName) + "]\"");
+        if (async != null) {
+            writer.println(indent + "    async=\"" + async + "\"");
+        }
+        for (final Map.Entry<String, String> property : definitionProperties.entrySet()) {
+            writer.println(indent + "    " + property.getKey() + "=\"" + property.getValue() + "\"");
+        }
+        if (indexRules.isEmpty()) {
+            writer.println(indent + "    type=\"" + type + "\"/>");
+            return;
+        }
+        writer.println(indent + "    type=\"" + type + "\">");
+        writer.println(indent + "    <indexRules jcr:primaryType=\"nt:unstructured\">");
+        for (final Map.Entry<String, String[]> rule : indexRules.entrySet()) {
+            writer.println(indent + "        <" + rule.getKey() + " jcr:primaryType=\"nt:unstructured\">");
+            writer.println(indent + "            <properties jcr:primaryType=\"nt:unstructured\">");
+            for (final String property : rule.getValue()) {
+                writer.println(indent + "                <" + property.replace(':', '_')
+                        + " jcr:primaryType=\"nt:unstructured\" name=\"" + property
+                        + "\" propertyIndex=\"{Boolean}true\"/>");
+            }
+            writer.println(indent + "            </properties>");
+            writer.println(indent + "        </" + rule.getKey() + ">");
+        }
+        writer.println(indent + "    </indexRules>");
+        writer.println(indent + "</" + name + ">");
+    }
+
+    private void writeContent(final File root) throws IOException {
+        final PrintWriter parentWriter = open(new File(root.getParentFile(), ".content.xml"));
+        try {
+            startDocView(parentWriter, "nt:unstructured");
+            parentWriter.println("    <" + root.getName() + "/>");
+            parentWriter.println("</jcr:root>");
+        } finally {
+            parentWriter.close();
+        }
+
+        final int folders = (contentNodes + NODES_PER_FOLDER - 1) / NODES_PER_FOLDER;
+        final PrintWriter rootWriter = open(new File(root, ".content.xml"));
+        try {
+            startDocView(rootWriter, "nt:unstructured");
+            for (int folder = 0; folder < folders; folder++) {
+                rootWriter.println("    <folder" + folder + "/>");
+            }
+            for (int location = 0; nestedDefinitions > 0 && location < getNestedLocations(); location++) {
+                writeNestedDefinitions(rootWriter, getNestingLevels(location));
+            }
+            rootWriter.println("</jcr:root>");
+        } finally {
+            rootWriter.close();
+        }
+
+        for (int folder = 0; folder < folders; folder++) {
+            final PrintWriter writer = open(new File(root, "folder" + folder + "/.content.xml"));
+            try {
+                startDocView(writer, "nt:unstructured");
+                final int end = Math.min(contentNodes, (folder + 1) * NODES_PER_FOLDER);
+                for (int i = folder * NODES_PER_FOLDER; i < end; i++) {
+                    writer.println("    <node" + i + " jcr:primaryType=\"nt:unstructured\" title=\"Node " + i + "\"/>");
+                }
+                writer.println("</jcr:root>");
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private void writeNestedDefinitions(final PrintWriter writer, final List<String> levels) {
+        String indent = "    ";
+        for (final String level : levels) {
+            writer.println(indent + "<" + level + " jcr:primaryType=\"nt:unstructured\">");
+            indent += "    ";
+        }
+        writer.println(indent + "<oak:index jcr:primaryType=\"nt:unstructured\">");
+        for (int i = 0; i < nestedDefinitions; i++) {
+            writeDefinition(writer, "nested" + i, isAlternate(i), indent + "    ");
+        }
+        writer.println(indent + "</oak:index>");
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            indent = indent.substring(4);
+            writer.println(indent + "</" + levels.get(i) + ">");
+        }
+    }
+
+    private int getNestedLocations() {
+        return nestedDefinitions > 0 ? nestedLocations : 0;
+    }
+
+    /**
+     * The names of the nodes between {@code /content/generated} and the
+     * {@code oak:index} node of a nested location.
+     */
+    private List<String> getNestingLevels(final int location) {
+        final List<String> levels = new ArrayList<String>();
+        final int depth = nestedLocations > 1 ? Math.max(nestingDepth, 1) : nestingDepth;
+        for (int level = 0; level < depth; level++) {
+            levels.add(level == 0 && nestedLocations > 1 ? "branch" + location : "level" + level);
+        }
+        return levels;
+    }
+
+    private boolean isAlternate(final int i) {
+        return alternatePropertyName != null && i % alternateEvery == 0;
+    }
+
+    private static String definitionName(final int i) {
+        return "generated" + i;
+    }
+
+    private static void startDocView(final PrintWriter writer, final String primaryType) {
+        writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        writer.println("<jcr:root " + NAMESPACES + " jcr:primaryType=\"" + primaryType + "\">");
+    }
+
+    private static PrintWriter open(final File file) throws IOException {
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+        return new PrintWriter(new OutputStreamWriter(FileUtils.openOutputStream(file), "UTF-8"));
+    }
+}